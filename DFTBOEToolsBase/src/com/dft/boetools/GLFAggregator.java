@@ -0,0 +1,291 @@
+package com.dft.boetools;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counts GLF trace log records across many files, grouped by the values of some columns and by
+ * time bucket.  For example, error counts per CalleeName per minute:
+ * <pre>
+ * GLFAggregator aggregator = new GLFAggregator("CalleeName");
+ * aggregator.setBucketSize(60000);
+ * aggregator.setFilter(new GLFAggregator.Filter() {
+ * 	public boolean accept(GLFReader.Record record) {
+ * 		return record.is("Trace", "Error");
+ * 	}
+ * });
+ * SortedMap&lt;GLFAggregator.Key, Long&gt; counts = aggregator.aggregate(files);
+ * </pre>
+ * Files are cut into byte ranges of CHUNK_SIZE that are read on a pool of threads and the
+ * partial counts are merged at the end.  If an index directory is set, a GLFTimeIndex is saved
+ * for each file as a by-product of a full scan and later queries with a time range only read
+ * the parts of the file the index points to.
+ * @author rwells
+ *
+ */
+public class GLFAggregator {
+	private static Logger logger = Logger.getLogger(GLFAggregator.class);
+
+	/**
+	 * Size of the ranges files are cut into.  It is a multiple of the index block size so that the
+	 * index entries collected for each range join up.
+	 */
+	public static final long CHUNK_SIZE = 16L * GLFTimeIndex.BLOCK_SIZE;
+
+	/**
+	 * Decides which records are counted.  Filters are called from several threads at once.
+	 */
+	public interface Filter {
+		boolean accept(GLFReader.Record record);
+	}
+
+	private final String[] groupBy;
+	private long bucketSize = 60000;
+	private long from = Long.MIN_VALUE;
+	private long to = Long.MAX_VALUE;
+	private Filter filter;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private File indexDirectory;
+
+	/**
+	 * @param groupBy the columns whose values make up the group of a record, along with its time bucket
+	 */
+	public GLFAggregator(String... groupBy) {
+		this.groupBy = groupBy.clone();
+	}
+
+	/**
+	 * Sets the width of the time buckets in milliseconds, one minute by default.  With a size of 0
+	 * records are grouped by column values only.  Records without a time are only counted when
+	 * buckets are turned off and no time range is set.
+	 */
+	public void setBucketSize(long bucketSize) {
+		this.bucketSize = bucketSize;
+	}
+
+	/**
+	 * Only counts records with a time at or after from and before to, in milliseconds since the epoch.
+	 */
+	public void setTimeRange(long from, long to) {
+		this.from = from;
+		this.to = to;
+	}
+
+	public void setFilter(Filter filter) {
+		this.filter = filter;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets the directory where a time index is kept for each trace file.  Trace directories
+	 * belong to the servers, so indexes are only written when this is set.
+	 */
+	public void setIndexDirectory(File indexDirectory) {
+		this.indexDirectory = indexDirectory;
+	}
+
+	/**
+	 * Reads the files and counts the records that pass the time range and filter.
+	 * @return the count for each group, ordered by time bucket and then column values
+	 */
+	public SortedMap<Key, Long> aggregate(Collection<File> files) throws Exception {
+		boolean ranged = from != Long.MIN_VALUE || to != Long.MAX_VALUE;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Map<GLFReader, List<Future<Chunk>>> scans = new LinkedHashMap<GLFReader, List<Future<Chunk>>>();
+		Map<GLFReader, File> indexFiles = new HashMap<GLFReader, File>();
+		try {
+			for (File file : files) {
+				GLFReader reader = new GLFReader(file);
+				File indexFile = indexDirectory == null ? null : new File(indexDirectory, file.getName() + ".idx");
+				GLFTimeIndex index = indexFile == null ? null : GLFTimeIndex.read(indexFile, reader);
+
+				// Without a usable index the whole file is read, and the index is rebuilt on the way
+				List<long[]> ranges;
+				if (index != null && ranged) {
+					ranges = index.ranges(from, to);
+					logger.debug(file + ": reading " + ranges.size() + " ranges of " + index.size() + " indexed blocks");
+				} else {
+					ranges = new ArrayList<long[]>();
+					ranges.add(new long[] {reader.getDataStart(), reader.getSize()});
+				}
+				boolean indexing = index == null && indexFile != null;
+				if (indexing) indexFiles.put(reader, indexFile);
+
+				List<Future<Chunk>> chunks = new ArrayList<Future<Chunk>>();
+				scans.put(reader, chunks);
+				for (long[] range : ranges) {
+					for (long start = range[0]; start < range[1]; ) {
+						long end = Math.min(range[1], start - start % CHUNK_SIZE + CHUNK_SIZE);
+						chunks.add(pool.submit(new Scan(reader, start, end, indexing)));
+						start = end;
+					}
+				}
+			}
+
+			Map<Key, long[]> counts = new HashMap<Key, long[]>();
+			for (Map.Entry<GLFReader, List<Future<Chunk>>> scan : scans.entrySet()) {
+				GLFTimeIndex.Builder index = new GLFTimeIndex.Builder();
+				for (Future<Chunk> future : scan.getValue()) {
+					Chunk chunk;
+					try {
+						chunk = future.get();
+					} catch (ExecutionException e) {
+						throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+					}
+					merge(counts, chunk.counts);
+					if (chunk.index != null) index.addAll(chunk.index);
+				}
+				File indexFile = indexFiles.get(scan.getKey());
+				if (indexFile != null) {
+					index.build(scan.getKey()).write(indexFile);
+					logger.debug("Saved time index " + indexFile);
+				}
+			}
+
+			SortedMap<Key, Long> result = new TreeMap<Key, Long>();
+			for (Map.Entry<Key, long[]> count : counts.entrySet()) {
+				result.put(count.getKey(), Long.valueOf(count.getValue()[0]));
+			}
+			return result;
+		} finally {
+			pool.shutdownNow();
+			for (GLFReader reader : scans.keySet()) {
+				reader.close();
+			}
+		}
+	}
+
+	private static void merge(Map<Key, long[]> counts, Map<Key, long[]> partial) {
+		for (Map.Entry<Key, long[]> entry : partial.entrySet()) {
+			long[] count = counts.get(entry.getKey());
+			if (count == null) counts.put(entry.getKey(), entry.getValue());
+			else count[0] += entry.getValue()[0];
+		}
+	}
+
+	/**
+	 * The counts from one range of a file, and its index entries if the index is being rebuilt.
+	 */
+	private static final class Chunk {
+		private final Map<Key, long[]> counts = new HashMap<Key, long[]>();
+		private GLFTimeIndex.Builder index;
+	}
+
+	private final class Scan implements Callable<Chunk> {
+		private final GLFReader reader;
+		private final long start;
+		private final long end;
+		private final boolean indexing;
+
+		Scan(GLFReader reader, long start, long end, boolean indexing) {
+			this.reader = reader;
+			this.start = start;
+			this.end = end;
+			this.indexing = indexing;
+		}
+
+		public Chunk call() throws Exception {
+			Chunk chunk = new Chunk();
+			if (indexing) chunk.index = new GLFTimeIndex.Builder();
+			boolean timed = bucketSize > 0 || from != Long.MIN_VALUE || to != Long.MAX_VALUE;
+
+			// Columns this file does not have group as blank
+			int[] columns = new int[groupBy.length];
+			for (int i = 0; i < groupBy.length; i++) {
+				columns[i] = reader.getColumnIndex(groupBy[i]);
+			}
+
+			Iterator<GLFReader.Record> records = reader.iterator(start, end);
+			while (records.hasNext()) {
+				GLFReader.Record record = records.next();
+				long time = record.getTime();
+				if (chunk.index != null) chunk.index.add(record.getOffset(), time);
+				if (timed && (time == Long.MIN_VALUE || time < from || time >= to)) continue;
+				if (filter != null && !filter.accept(record)) continue;
+
+				String[] values = new String[columns.length];
+				for (int i = 0; i < columns.length; i++) {
+					values[i] = columns[i] < 0 ? "" : record.get(columns[i]);
+				}
+				long bucket = bucketSize > 0 ? time - ((time % bucketSize) + bucketSize) % bucketSize : 0;
+				Key key = new Key(bucket, values);
+				long[] count = chunk.counts.get(key);
+				if (count == null) chunk.counts.put(key, new long[] {1});
+				else count[0]++;
+			}
+			return chunk;
+		}
+	}
+
+	/**
+	 * A group: the start of a time bucket and the values of the group by columns.
+	 */
+	public static final class Key implements Comparable<Key> {
+		private final long bucket;
+		private final String[] values;
+
+		Key(long bucket, String[] values) {
+			this.bucket = bucket;
+			this.values = values;
+		}
+
+		/**
+		 * @return the start of the time bucket in milliseconds since the epoch, or 0 if buckets are off.
+		 */
+		public long getBucket() {
+			return bucket;
+		}
+
+		/**
+		 * @return the values of the group by columns, in the order they were given.
+		 */
+		public String[] getValues() {
+			return values.clone();
+		}
+
+		public int compareTo(Key other) {
+			if (bucket != other.bucket) return bucket < other.bucket ? -1 : 1;
+			for (int i = 0; i < values.length && i < other.values.length; i++) {
+				int c = values[i].compareTo(other.values[i]);
+				if (c != 0) return c;
+			}
+			return values.length - other.values.length;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			return bucket == other.bucket && Arrays.equals(values, other.values);
+		}
+
+		public int hashCode() {
+			return (int) (bucket ^ (bucket >>> 32)) * 31 + Arrays.hashCode(values);
+		}
+
+		public String toString() {
+			String time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(bucket));
+			return time + " " + Arrays.toString(values);
+		}
+	}
+}
@@ -0,0 +1,694 @@
+package com.dft.boetools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
+
+/**
+ * Reads Business Objects GLF trace logs (the TraceLog_*_trace.glf files written by the SDK
+ * and the servers).  The file is memory mapped a window at a time and each record is split
+ * into column slices over the mapped bytes, so nothing is copied until a column value is
+ * actually asked for.  The separators, escape character, encoding and column names are
+ * taken from the header of the file.
+ *
+ * Records are read through a streaming iterator.  To keep the scan cheap the iterator reuses
+ * a single Record, which is only valid until the iterator is advanced again.  Use setProjection
+ * to name the columns you need; columns after the last of them are not split at all.
+ *
+ * Example, finding every URIQueryParser error:
+ * <pre>
+ * GLFReader reader = new GLFReader(file);
+ * reader.setProjection("Time", "Trace", "Unit", "Text");
+ * int trace = reader.getColumnIndex("Trace");
+ * int unit = reader.getColumnIndex("Unit");
+ * for (GLFReader.Record record : reader) {
+ * 	if (record.is(trace, "Error") &amp;&amp; record.contains(unit, "URIQueryParser")) {
+ * 		System.out.println(record.toMap());
+ * 	}
+ * }
+ * reader.close();
+ * </pre>
+ * A reader may hand out iterators to several threads, but each iterator belongs to one thread.
+ * @author rwells
+ *
+ */
+public class GLFReader implements Iterable<GLFReader.Record>, Closeable {
+
+	/**
+	 * Size of the region mapped at a time.  A window is doubled if a single record does not fit.
+	 */
+	private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+	// The header is small, we only look this far into the file for HEADER_END
+	private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+	private static final String HEADER_END = "HEADER_END";
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long size;
+
+	/**
+	 * File offset of the first record, just past the HEADER_END line.
+	 */
+	private final long dataStart;
+
+	private final Map<String, String> header = new LinkedHashMap<String, String>();
+	private final Map<String, Integer> columnIndex = new HashMap<String, Integer>();
+	private final Map<String, String> severities = new HashMap<String, String>();
+	private final String[] columns;
+	private final String encoding;
+	private final byte recordSeparator;
+	private final byte columnSeparator;
+	private final byte escape;
+
+	private final int timeColumn;
+	private final int tzoneColumn;
+
+	private int[] projection;
+	private int lastColumn;
+
+	public GLFReader(String fileName) throws IOException {
+		this(new File(fileName));
+	}
+
+	/**
+	 * Opens the file and reads its header.
+	 * @throws IOException if the file can not be read or does not start with a GLF header
+	 */
+	public GLFReader(File file) throws IOException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "r");
+		try {
+			this.channel = raf.getChannel();
+			this.size = channel.size();
+			this.dataStart = readHeader(channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAX_HEADER_SIZE)));
+
+			this.encoding = getHeader("ENCODING") == null ? "UTF-8" : getHeader("ENCODING");
+			if (!Charset.isSupported(encoding)) throw new IOException("Unsupported encoding " + encoding + " in " + file);
+			this.recordSeparator = separator("RECORD_SEPARATOR", 30);
+			this.columnSeparator = separator("COLUMN_SEPARATOR", 124);
+			this.escape = separator("ESC_CHARACTER", 27);
+
+			String names = getHeader("COLUMNS");
+			if (names == null) throw new IOException("No COLUMNS declared in the header of " + file);
+			this.columns = split(names);
+			for (int i = 0; i < columns.length; i++) {
+				columnIndex.put(columns[i], Integer.valueOf(i));
+			}
+
+			// SEVERITY_MAP is a list of code, name pairs.  The code for None is a blank
+			String map = getHeader("SEVERITY_MAP");
+			if (map != null) {
+				String[] pairs = split(map);
+				for (int i = 0; i + 1 < pairs.length; i += 2) {
+					severities.put(pairs[i].trim(), pairs[i + 1]);
+				}
+			}
+			this.timeColumn = getColumnIndex("Time");
+			this.tzoneColumn = getColumnIndex("Tzone");
+			setProjection();
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the key:value lines of the header up to HEADER_END.
+	 * @return the offset of the first record
+	 */
+	private long readHeader(ByteBuffer buffer) throws IOException {
+		int lineStart = 0;
+		for (int i = 0; i < buffer.limit(); i++) {
+			if (buffer.get(i) != '\n') continue;
+			byte[] bytes = new byte[i - lineStart];
+			buffer.position(lineStart);
+			buffer.get(bytes);
+			String line = new String(bytes, "UTF-8").trim();
+			lineStart = i + 1;
+			if (HEADER_END.equals(line)) return lineStart;
+			int colon = line.indexOf(':');
+			if (colon > 0) header.put(line.substring(0, colon), line.substring(colon + 1));
+		}
+		throw new IOException("No GLF header found in " + file);
+	}
+
+	private byte separator(String key, int defaultValue) throws IOException {
+		String value = getHeader(key);
+		int c = value == null ? defaultValue : Integer.parseInt(value.trim());
+		// Separators are found by scanning bytes, which only works for single byte characters
+		if (c < 0 || c > 127) throw new IOException(key + " must be an ASCII character in " + file);
+		return (byte) c;
+	}
+
+	private String[] split(String value) {
+		return value.split(Pattern.quote(String.valueOf((char) columnSeparator)), -1);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the size of the file when it was opened.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the value of a header line such as ENCODING or COLUMNS, or null if it is not present.
+	 */
+	public String getHeader(String key) {
+		return header.get(key);
+	}
+
+	/**
+	 * @return the column names declared by the header, in record order.
+	 */
+	public String[] getColumns() {
+		return columns.clone();
+	}
+
+	/**
+	 * @return the index of the named column, or -1 if the file does not have it.
+	 */
+	public int getColumnIndex(String name) {
+		Integer index = columnIndex.get(name);
+		return index == null ? -1 : index.intValue();
+	}
+
+	/**
+	 * Translates a Severity code such as "E" into its name from the SEVERITY_MAP header.
+	 * @return the name, or the code itself if the header does not map it.
+	 */
+	public String getSeverityName(String code) {
+		String name = severities.get(code.trim());
+		return name == null ? code : name;
+	}
+
+	/**
+	 * Limits the columns that iterators created after this call will split and that
+	 * Record.toMap() will return.  With no names every column is available.
+	 * @throws IllegalArgumentException if the file does not have one of the columns
+	 */
+	public void setProjection(String... names) {
+		if (names.length == 0) {
+			projection = new int[columns.length];
+			for (int i = 0; i < projection.length; i++) projection[i] = i;
+		} else {
+			projection = new int[names.length];
+			for (int i = 0; i < names.length; i++) {
+				projection[i] = getColumnIndex(names[i]);
+				if (projection[i] < 0) throw new IllegalArgumentException("No column " + names[i] + " in " + file);
+			}
+		}
+		lastColumn = 0;
+		for (int column : projection) lastColumn = Math.max(lastColumn, column);
+	}
+
+	/**
+	 * @return the offset of the first record, just past the header.
+	 */
+	public long getDataStart() {
+		return dataStart;
+	}
+
+	/**
+	 * @return an iterator over every record in the file.
+	 */
+	public Iterator<Record> iterator() {
+		return iterator(dataStart, size);
+	}
+
+	/**
+	 * Returns an iterator over the records that start at or after from and before to.  The
+	 * offsets do not need to fall on record boundaries, so a file can be cut into byte ranges
+	 * that are read independently and every record is returned by exactly one of them.
+	 */
+	public Iterator<Record> iterator(long from, long to) {
+		return iterator(from, to, lastColumn);
+	}
+
+	Iterator<Record> iterator(long from, long to, int lastColumn) {
+		try {
+			long start = align(Math.max(from, dataStart));
+			return new Cursor(start, Math.min(to, size), lastColumn);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to map " + file, e);
+		}
+	}
+
+	/**
+	 * Finds the first record boundary at or after offset.  A boundary is the end of the header or
+	 * a record separator followed by line breaks.
+	 */
+	private long align(long offset) throws IOException {
+		if (offset <= dataStart || offset >= size) return offset;
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+		// If offset is preceded by line breaks that follow a separator it is already a boundary
+		int back = (int) Math.min(offset - dataStart, 64);
+		read(buffer, offset - back);
+		int i = back - 1;
+		while (i >= 0 && (buffer.get(i) == '\r' || buffer.get(i) == '\n')) i--;
+		if (i < 0 || buffer.get(i) == recordSeparator && !isEscaped(buffer, i)) return offset;
+
+		// Otherwise skip to the end of the record offset falls in
+		long position = isEscaped(buffer, back) ? offset + 1 : offset;
+		while (position < size) {
+			read(buffer, position);
+			if (!buffer.hasRemaining()) break;
+			for (i = 0; i < buffer.limit(); i++) {
+				byte b = buffer.get(i);
+				if (b == escape) i++;
+				else if (b == recordSeparator) return position + i + 1;
+			}
+			position += i;
+		}
+		return size;
+	}
+
+	/**
+	 * @return true if the byte at index is a record separator that is not escaped.
+	 */
+	boolean isRecordEnd(ByteBuffer buffer, int index) {
+		return buffer.get(index) == recordSeparator && !isEscaped(buffer, index);
+	}
+
+	/**
+	 * @return the index of the first record separator from start that is not escaped, or -1 if
+	 * there is none before limit.
+	 */
+	int findRecordEnd(ByteBuffer buffer, int start, int limit) {
+		for (int i = start; i < limit; i++) {
+			byte b = buffer.get(i);
+			if (b == escape) i++;
+			else if (b == recordSeparator) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the byte at index follows an odd number of escape characters.
+	 */
+	private boolean isEscaped(ByteBuffer buffer, int index) {
+		int i = index;
+		while (i > 0 && buffer.get(i - 1) == escape) i--;
+		return (index - i) % 2 == 1;
+	}
+
+	private void read(ByteBuffer buffer, long position) throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {}
+		buffer.flip();
+	}
+
+	/**
+	 * Creates a Record with every column available, for callers in this package that read
+	 * the file themselves and split records with Record.scan.
+	 */
+	Record createRecord() {
+		return new Record(columns.length - 1);
+	}
+
+	/**
+	 * Closes the file.  Mapped windows are released by the garbage collector once
+	 * no iterator refers to them.
+	 */
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	/**
+	 * Walks the records of the file, mapping a new window whenever the current one runs out.
+	 */
+	private class Cursor implements Iterator<Record> {
+		private final Record record;
+		private final long end;
+		private int windowSize = WINDOW_SIZE;
+		private ByteBuffer window;
+		private long base;
+		private int position;
+		private boolean ready;
+		private boolean done;
+
+		Cursor(long offset, long end, int lastColumn) throws IOException {
+			this.record = new Record(lastColumn);
+			this.end = end;
+			map(offset);
+		}
+
+		private void map(long offset) throws IOException {
+			window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(windowSize, size - offset));
+			base = offset;
+			position = 0;
+		}
+
+		public boolean hasNext() {
+			if (!ready && !done) {
+				try {
+					ready = advance();
+				} catch (IOException e) {
+					throw new IllegalStateException("Unable to read " + file, e);
+				}
+				done = !ready;
+			}
+			return ready;
+		}
+
+		public Record next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			ready = false;
+			return record;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private boolean advance() throws IOException {
+			while (true) {
+				int limit = window.limit();
+				// Records are followed by a line break that is not part of the next record
+				while (position < limit) {
+					byte b = window.get(position);
+					if (b != '\r' && b != '\n') break;
+					position++;
+				}
+				if (base + position >= end) return false;
+				boolean eof = base + limit >= size;
+				if (position < limit) {
+					// A record cut off by the end of the file is returned as it is
+					int end = record.scan(window, base, position, limit, eof);
+					if (end >= 0) {
+						position = end + 1;
+						return true;
+					}
+				} else if (eof) {
+					return false;
+				}
+				// The record runs past the window, map again starting at the record
+				if (position == 0) windowSize = (int) Math.min(2L * windowSize, Integer.MAX_VALUE);
+				map(base + position);
+			}
+		}
+	}
+
+	/**
+	 * One record of the file, held as column slices over the mapped window it was read from.
+	 * Values are decoded from the slices on request with their padding removed.
+	 */
+	public final class Record {
+		private final int last;
+		private final int[] starts = new int[columns.length];
+		private final int[] ends = new int[columns.length];
+		private final boolean[] escaped = new boolean[columns.length];
+		private boolean anyEscaped;
+		private ByteBuffer buffer;
+		private long base;
+		private int start;
+		private int end;
+
+		// Scratch space for decoding, and the encoded form of strings passed to contains and is
+		private byte[] bytes = new byte[256];
+		private char[] chars = new char[256];
+		private final Map<String, byte[]> encoded = new HashMap<String, byte[]>();
+		private final int[] fields = new int[7];
+
+		private Record(int last) {
+			this.last = last;
+		}
+
+		/**
+		 * Splits the record that begins at start into column slices.
+		 * @param atEnd true if limit is the end of the file, so a record without a separator ends there
+		 * @return the position of the record separator, limit for a record cut off by the end of
+		 * the file, or -1 if the record runs past limit
+		 */
+		int scan(ByteBuffer buffer, long base, int start, int limit, boolean atEnd) {
+			final int lastIndex = columns.length - 1;
+			if (anyEscaped) {
+				Arrays.fill(escaped, false);
+				anyEscaped = false;
+			}
+			int col = 0;
+			starts[0] = start;
+			int i = start;
+			for (; i < limit; i++) {
+				byte b = buffer.get(i);
+				if (b == recordSeparator) {
+					break;
+				} else if (b == escape) {
+					if (col <= last) escaped[col] = anyEscaped = true;
+					i++;
+				} else if (b == columnSeparator && col < lastIndex) {
+					// Any further separators belong to the last column
+					if (col <= last) ends[col] = i;
+					col++;
+					if (col <= last) starts[col] = i + 1;
+				}
+			}
+			if (i >= limit) {
+				if (!atEnd) return -1;
+				i = limit;
+			}
+			if (col <= last) ends[col] = i;
+			// Short records leave the remaining columns empty
+			while (++col <= last) {
+				starts[col] = i;
+				ends[col] = i;
+			}
+			this.buffer = buffer;
+			this.base = base;
+			this.start = start;
+			this.end = i;
+			return i;
+		}
+
+		/**
+		 * @return the offset of the record in the file.
+		 */
+		public long getOffset() {
+			return base + start;
+		}
+
+		/**
+		 * @return the length of the record in bytes, not counting its separator.
+		 */
+		public int getLength() {
+			return end - start;
+		}
+
+		public String get(String column) {
+			return get(indexOf(column));
+		}
+
+		/**
+		 * @return the value of the column with escape characters and surrounding padding removed.
+		 */
+		public String get(int column) {
+			checkColumn(column);
+			int s = trimStart(column);
+			int e = trimEnd(column, s);
+			int n = 0;
+			boolean ascii = true;
+			if (bytes.length < e - s) bytes = new byte[e - s];
+			for (int i = s; i < e; i++) {
+				byte b = buffer.get(i);
+				if (b == escape && escaped[column] && i + 1 < e) b = buffer.get(++i);
+				ascii &= b >= 0;
+				bytes[n++] = b;
+			}
+			if (ascii) {
+				if (chars.length < n) chars = new char[n];
+				for (int i = 0; i < n; i++) chars[i] = (char) bytes[i];
+				return new String(chars, 0, n);
+			}
+			try {
+				return new String(bytes, 0, n, encoding);
+			} catch (UnsupportedEncodingException ex) {
+				// Checked when the file was opened
+				throw new IllegalStateException(ex);
+			}
+		}
+
+		public boolean contains(String column, String text) {
+			return contains(indexOf(column), text);
+		}
+
+		/**
+		 * Tests whether the column contains the text, comparing bytes in place.
+		 */
+		public boolean contains(int column, String text) {
+			checkColumn(column);
+			if (escaped[column]) return get(column).indexOf(text) >= 0;
+			byte[] needle = encode(text);
+			int s = trimStart(column);
+			int e = trimEnd(column, s) - needle.length;
+			outer:
+			for (int i = s; i <= e; i++) {
+				for (int j = 0; j < needle.length; j++) {
+					if (buffer.get(i + j) != needle[j]) continue outer;
+				}
+				return true;
+			}
+			return false;
+		}
+
+		public boolean is(String column, String text) {
+			return is(indexOf(column), text);
+		}
+
+		/**
+		 * Tests whether the column, with its padding removed, equals the text, comparing bytes in place.
+		 */
+		public boolean is(int column, String text) {
+			checkColumn(column);
+			if (escaped[column]) return get(column).equals(text);
+			byte[] value = encode(text);
+			int s = trimStart(column);
+			if (trimEnd(column, s) - s != value.length) return false;
+			for (int j = 0; j < value.length; j++) {
+				if (buffer.get(s + j) != value[j]) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Reads the Time and Tzone columns, which look like 2013 05 01 15:12:34.602 and -0400,
+		 * without decoding them.
+		 * @return the time of the record in milliseconds since the epoch, or Long.MIN_VALUE if it has none.
+		 */
+		public long getTime() {
+			if (timeColumn < 0) return Long.MIN_VALUE;
+			checkColumn(timeColumn);
+			int n = 0;
+			int value = 0;
+			int digits = 0;
+			fields[6] = 0;
+			for (int i = starts[timeColumn]; i <= ends[timeColumn] && n < fields.length; i++) {
+				byte b = i < ends[timeColumn] ? buffer.get(i) : (byte) ' ';
+				if (b >= '0' && b <= '9') {
+					value = value * 10 + (b - '0');
+					digits++;
+				} else if (digits > 0) {
+					if (n == 6) {
+						// Fraction of a second, scaled to milliseconds
+						for (; digits < 3; digits++) value *= 10;
+						for (; digits > 3; digits--) value /= 10;
+					}
+					fields[n++] = value;
+					value = 0;
+					digits = 0;
+				}
+			}
+			if (n < 6) return Long.MIN_VALUE;
+			long local = daysFromCivil(fields[0], fields[1], fields[2]) * 86400000L + fields[3] * 3600000L
+					+ fields[4] * 60000L + fields[5] * 1000L + fields[6];
+			return local - getZoneOffset() * 60000L;
+		}
+
+		/**
+		 * @return the Tzone column as minutes east of UTC, or 0 if the file has none.
+		 */
+		private int getZoneOffset() {
+			if (tzoneColumn < 0) return 0;
+			checkColumn(tzoneColumn);
+			int sign = 1;
+			int value = 0;
+			int digits = 0;
+			for (int i = starts[tzoneColumn]; i < ends[tzoneColumn]; i++) {
+				byte b = buffer.get(i);
+				if (b == '-') sign = -1;
+				else if (b >= '0' && b <= '9') {
+					value = value * 10 + (b - '0');
+					digits++;
+				}
+			}
+			if (digits != 4) return 0;
+			return sign * ((value / 100) * 60 + value % 100);
+		}
+
+		/**
+		 * @return the projected columns of the record by name, in projection order.
+		 */
+		public Map<String, String> toMap() {
+			Map<String, String> map = new LinkedHashMap<String, String>();
+			for (int column : projection) {
+				if (column <= last) map.put(columns[column], get(column));
+			}
+			return map;
+		}
+
+		public String toString() {
+			return toMap().toString();
+		}
+
+		private int indexOf(String column) {
+			int index = getColumnIndex(column);
+			if (index < 0) throw new IllegalArgumentException("No column " + column + " in " + file);
+			return index;
+		}
+
+		private void checkColumn(int column) {
+			if (column < 0 || column >= columns.length) throw new IndexOutOfBoundsException("No column " + column + " in " + file);
+			if (column > last) throw new IllegalStateException("Column " + columns[column] + " is not projected");
+		}
+
+		private int trimStart(int column) {
+			int s = starts[column];
+			int e = ends[column];
+			while (s < e && buffer.get(s) == ' ') s++;
+			return s;
+		}
+
+		private int trimEnd(int column, int s) {
+			int e = ends[column];
+			// An escaped trailing space is part of the value
+			while (e > s && buffer.get(e - 1) == ' ' && !(escaped[column] && e - 2 >= s && buffer.get(e - 2) == escape)) e--;
+			return e;
+		}
+
+		private byte[] encode(String text) {
+			byte[] value = encoded.get(text);
+			if (value == null) {
+				try {
+					value = text.getBytes(encoding);
+				} catch (UnsupportedEncodingException ex) {
+					throw new IllegalStateException(ex);
+				}
+				// Callers normally pass a handful of constants, don't let anything else pile up
+				if (encoded.size() >= 64) encoded.clear();
+				encoded.put(text, value);
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * @return the number of days from 1970-01-01 to the given date in the proleptic Gregorian calendar.
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		long y = month <= 2 ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+}
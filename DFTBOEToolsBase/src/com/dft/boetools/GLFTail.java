@@ -0,0 +1,284 @@
+package com.dft.boetools;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Follows GLF trace logs as they are written, like tail -f.  The path may be a single trace file
+ * or a directory, in which case every .glf file in it is followed and new files are picked up as
+ * the servers create them.  Each call to poll reads only the bytes appended since the last call,
+ * with positional reads, and splits out the complete records.  A record that is still being
+ * written is kept until the rest of it arrives.
+ *
+ * Records are counted in two rolling windows: by severity and component, and by severity and
+ * ThreadName.  The severity of a record is the name its Severity code maps to in the header, or
+ * the Trace column when the code is blank.  The counters hold a fixed number of keys, so memory
+ * does not grow however long the tail runs.
+ *
+ * Files are only open while they are being read, so the servers can still roll and delete them.
+ * @author rwells
+ *
+ */
+public class GLFTail {
+	private static Logger logger = Logger.getLogger(GLFTail.class);
+
+	// Bytes read from a file at a time.  The buffer only grows if a single record is larger.
+	private static final int READ_SIZE = 256 * 1024;
+	private static final int WINDOW_SLOTS = 60;
+	private static final int MAX_KEYS = 1000;
+
+	private static final FileFilter GLF_FILES = new FileFilter() {
+		public boolean accept(File file) {
+			return file.isFile() && file.getName().toLowerCase().endsWith(".glf");
+		}
+	};
+
+	/**
+	 * Receives every record read.  The record is only valid during the call.
+	 */
+	public interface Listener {
+		void record(GLFReader.Record record);
+	}
+
+	private final File path;
+	private final String componentColumn;
+	private final RollingCounter<List<String>> components;
+	private final RollingCounter<List<String>> threads;
+	private final Map<File, Follower> followers = new LinkedHashMap<File, Follower>();
+	private Listener listener;
+	private boolean fromStart;
+	private boolean started;
+
+	/**
+	 * @param path a trace file or a directory of trace files
+	 * @param componentColumn the column that names the component, such as Unit or DeveloperComponent
+	 * @param windowMillis the length of the rolling windows
+	 */
+	public GLFTail(File path, String componentColumn, long windowMillis) {
+		this.path = path;
+		this.componentColumn = componentColumn;
+		this.components = new RollingCounter<List<String>>(windowMillis, WINDOW_SLOTS, MAX_KEYS);
+		this.threads = new RollingCounter<List<String>>(windowMillis, WINDOW_SLOTS, MAX_KEYS);
+	}
+
+	/**
+	 * By default the files found by the first poll are followed from their current end, so only
+	 * new records are read.  When set, they are read from the start.  Files that appear later are
+	 * always read from the start.
+	 */
+	public void setFromStart(boolean fromStart) {
+		this.fromStart = fromStart;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Reads whatever has been appended to the followed files since the last poll.
+	 * @return the number of records read
+	 */
+	public int poll() throws IOException {
+		File[] files = path.isDirectory() ? path.listFiles(GLF_FILES) : new File[] {path};
+		if (files == null) files = new File[0];
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.exists() && !followers.containsKey(file)) {
+				followers.put(file, new Follower(file, started || fromStart));
+			}
+		}
+		started = true;
+
+		int records = 0;
+		for (Iterator<Follower> i = followers.values().iterator(); i.hasNext(); ) {
+			Follower follower = i.next();
+			if (!follower.file.exists()) {
+				logger.debug("Stopped following " + follower.file);
+				i.remove();
+				continue;
+			}
+			records += follower.read();
+		}
+		return records;
+	}
+
+	/**
+	 * @return the records in the window ending at now, keyed by [severity, component], largest first.
+	 */
+	public Map<List<String>, Long> getComponentCounts(long now) {
+		return components.getCounts(now);
+	}
+
+	/**
+	 * @return the records in the window ending at now, keyed by [severity, ThreadName], largest first.
+	 */
+	public Map<List<String>, Long> getThreadCounts(long now) {
+		return threads.getCounts(now);
+	}
+
+	private void count(Follower follower, GLFReader.Record record) {
+		long time = record.getTime();
+		if (time == Long.MIN_VALUE) time = System.currentTimeMillis();
+
+		String severity = follower.severity < 0 ? "" : record.get(follower.severity);
+		if (severity.length() > 0) {
+			severity = follower.reader.getSeverityName(severity);
+		} else if (follower.trace >= 0) {
+			severity = record.get(follower.trace);
+		}
+		String component = follower.component < 0 ? "" : record.get(follower.component);
+		String thread = follower.thread < 0 ? "" : record.get(follower.thread);
+
+		components.increment(Arrays.asList(severity, component), time);
+		threads.increment(Arrays.asList(severity, thread), time);
+		if (listener != null) listener.record(record);
+	}
+
+	/**
+	 * The read state of one file.  The buffer holds bytes that have been read but do not yet make
+	 * up a complete record, starting at file offset base.
+	 */
+	private final class Follower {
+		private final File file;
+		private boolean fromStart;
+		private GLFReader reader;
+		private GLFReader.Record record;
+		private ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+		private long base;
+
+		// Set when following from the end of a file part way through a record
+		private boolean skipping;
+
+		private int severity;
+		private int trace;
+		private int component;
+		private int thread;
+
+		Follower(File file, boolean fromStart) {
+			this.file = file;
+			this.fromStart = fromStart;
+		}
+
+		int read() throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				long size = channel.size();
+				if (reader == null && !open(channel, size)) return 0;
+
+				if (size < base + buffer.position()) {
+					logger.info(file + " was truncated, reading it again from the start");
+					reader = null;
+					fromStart = true;
+					if (!open(channel, size)) return 0;
+				}
+
+				int records = 0;
+				while (base + buffer.position() < size) {
+					if (!buffer.hasRemaining()) {
+						// A single record fills the buffer
+						ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+						buffer.flip();
+						larger.put(buffer);
+						buffer = larger;
+					}
+					int n = channel.read(buffer, base + buffer.position());
+					if (n <= 0) break;
+					records += split();
+				}
+				return records;
+			} finally {
+				raf.close();
+			}
+		}
+
+		/**
+		 * Reads the header once the file has one, and decides where to start reading records.
+		 * @return false if the header is not complete yet
+		 */
+		private boolean open(FileChannel channel, long size) throws IOException {
+			try {
+				reader = new GLFReader(file);
+				reader.close();
+			} catch (IOException e) {
+				logger.debug("Waiting for header of " + file + ": " + e.getMessage());
+				reader = null;
+				return false;
+			}
+			record = reader.createRecord();
+			severity = reader.getColumnIndex("Severity");
+			trace = reader.getColumnIndex("Trace");
+			component = reader.getColumnIndex(componentColumn);
+			thread = reader.getColumnIndex("ThreadName");
+
+			buffer.clear();
+			if (fromStart || size <= reader.getDataStart()) {
+				base = reader.getDataStart();
+				skipping = false;
+			} else {
+				// Start at the end, and if that is inside a record skip the rest of it
+				base = size;
+				ByteBuffer last = ByteBuffer.allocate(64);
+				long from = Math.max(reader.getDataStart(), size - last.capacity());
+				channel.read(last, from);
+				int i = last.position() - 1;
+				while (i >= 0 && (last.get(i) == '\r' || last.get(i) == '\n')) i--;
+				skipping = i >= 0 && !reader.isRecordEnd(last, i);
+				logger.debug("Following " + file + " from offset " + size);
+			}
+			return true;
+		}
+
+		/**
+		 * Counts the complete records in the buffer and keeps what is left for the next read.
+		 * @return the number of records
+		 */
+		private int split() {
+			int limit = buffer.position();
+			int start = 0;
+			int records = 0;
+			if (skipping) {
+				int end = reader.findRecordEnd(buffer, 0, limit);
+				if (end < 0) start = limit;
+				else {
+					start = end + 1;
+					skipping = false;
+				}
+			}
+			while (!skipping) {
+				while (start < limit && (buffer.get(start) == '\r' || buffer.get(start) == '\n')) start++;
+				if (start >= limit) break;
+				int end = record.scan(buffer, base, start, limit, false);
+				if (end < 0) break;
+				count(this, record);
+				records++;
+				start = end + 1;
+			}
+
+			// Move the partial record to the front of the buffer
+			buffer.flip();
+			buffer.position(start);
+			buffer.compact();
+			base += start;
+			if (buffer.capacity() > READ_SIZE && buffer.position() < READ_SIZE) {
+				// Give back the room taken by an unusually large record
+				ByteBuffer smaller = ByteBuffer.allocate(READ_SIZE);
+				buffer.flip();
+				smaller.put(buffer);
+				buffer = smaller;
+			}
+			return records;
+		}
+	}
+}
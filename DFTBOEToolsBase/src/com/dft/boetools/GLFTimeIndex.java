@@ -0,0 +1,208 @@
+package com.dft.boetools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A sparse index of the record times in a GLF trace log.  The file is divided into blocks of
+ * BLOCK_SIZE bytes and for each block the index keeps the offset of the first record that starts
+ * in it, along with the earliest and latest record time in the block.  Trace files are written
+ * more or less in time order, so a time window maps onto a few runs of blocks that can be read
+ * directly with GLFReader.iterator(from, to) instead of scanning the whole file.
+ *
+ * An index is saved to a small binary file.  It records the size and modification time of the
+ * trace file it was built from and is ignored when they no longer match.
+ * @author rwells
+ *
+ */
+public class GLFTimeIndex {
+	private static Logger logger = Logger.getLogger(GLFTimeIndex.class);
+
+	public static final int BLOCK_SIZE = 1024 * 1024;
+
+	// "GLFI", followed by the format version
+	private static final int MAGIC = 0x474C4649;
+	private static final int VERSION = 1;
+
+	private final long fileSize;
+	private final long lastModified;
+	private final int count;
+	private final long[] offsets;
+	private final long[] minTimes;
+	private final long[] maxTimes;
+
+	private GLFTimeIndex(long fileSize, long lastModified, int count, long[] offsets, long[] minTimes, long[] maxTimes) {
+		this.fileSize = fileSize;
+		this.lastModified = lastModified;
+		this.count = count;
+		this.offsets = offsets;
+		this.minTimes = minTimes;
+		this.maxTimes = maxTimes;
+	}
+
+	/**
+	 * Builds the index by reading every record of the file.
+	 */
+	public static GLFTimeIndex build(GLFReader reader) {
+		Builder builder = new Builder();
+		int lastColumn = Math.max(reader.getColumnIndex("Time"), reader.getColumnIndex("Tzone"));
+		Iterator<GLFReader.Record> records = reader.iterator(reader.getDataStart(), reader.getSize(), Math.max(lastColumn, 0));
+		while (records.hasNext()) {
+			GLFReader.Record record = records.next();
+			builder.add(record.getOffset(), record.getTime());
+		}
+		return builder.build(reader);
+	}
+
+	/**
+	 * Loads an index saved by write.
+	 * @return the index, or null if there is none or it was built from a different version of the trace file.
+	 */
+	public static GLFTimeIndex read(File indexFile, GLFReader reader) {
+		if (!indexFile.isFile()) return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+				long fileSize = in.readLong();
+				long lastModified = in.readLong();
+				if (fileSize != reader.getSize() || lastModified != reader.getFile().lastModified()) return null;
+				int count = in.readInt();
+				long[] offsets = new long[count];
+				long[] minTimes = new long[count];
+				long[] maxTimes = new long[count];
+				for (int i = 0; i < count; i++) {
+					offsets[i] = in.readLong();
+					minTimes[i] = in.readLong();
+					maxTimes[i] = in.readLong();
+				}
+				return new GLFTimeIndex(fileSize, lastModified, count, offsets, minTimes, maxTimes);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			logger.warn("Ignoring unreadable index " + indexFile + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Saves the index.  It is written to a temporary file first so that a reader never sees
+	 * half an index.
+	 */
+	public void write(File indexFile) throws IOException {
+		File temp = new File(indexFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(fileSize);
+			out.writeLong(lastModified);
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				out.writeLong(offsets[i]);
+				out.writeLong(minTimes[i]);
+				out.writeLong(maxTimes[i]);
+			}
+		} finally {
+			out.close();
+		}
+		if (indexFile.exists() && !indexFile.delete() || !temp.renameTo(indexFile)) {
+			throw new IOException("Unable to replace " + indexFile);
+		}
+	}
+
+	/**
+	 * @return the number of blocks in the index.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Finds the parts of the file that can hold records with a time at or after from and before to.
+	 * @return a list of {start, end} byte ranges in file order, suitable for GLFReader.iterator(start, end)
+	 */
+	public List<long[]> ranges(long from, long to) {
+		List<long[]> ranges = new ArrayList<long[]>();
+		long[] last = null;
+		for (int i = 0; i < count; i++) {
+			if (maxTimes[i] < from || minTimes[i] >= to) continue;
+			long end = i + 1 < count ? offsets[i + 1] : fileSize;
+			if (last != null && last[1] == offsets[i]) {
+				last[1] = end;
+			} else {
+				last = new long[] {offsets[i], end};
+				ranges.add(last);
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * Collects index entries from records read in file order.  Blocks are fixed by offset, so
+	 * builders fed from consecutive ranges that start on a BLOCK_SIZE boundary can be joined
+	 * with addAll to give the same index as a single pass.
+	 */
+	static final class Builder {
+		private long[] offsets = new long[16];
+		private long[] minTimes = new long[16];
+		private long[] maxTimes = new long[16];
+		private int count;
+		private long blockEnd = -1;
+
+		void add(long offset, long time) {
+			if (offset >= blockEnd) {
+				ensureCapacity(count + 1);
+				offsets[count] = offset;
+				minTimes[count] = Long.MAX_VALUE;
+				maxTimes[count] = Long.MIN_VALUE;
+				count++;
+				blockEnd = offset - offset % BLOCK_SIZE + BLOCK_SIZE;
+			}
+			// Records without a time never match a window, they only occupy their block
+			if (time != Long.MIN_VALUE) {
+				minTimes[count - 1] = Math.min(minTimes[count - 1], time);
+				maxTimes[count - 1] = Math.max(maxTimes[count - 1], time);
+			}
+		}
+
+		void addAll(Builder other) {
+			ensureCapacity(count + other.count);
+			System.arraycopy(other.offsets, 0, offsets, count, other.count);
+			System.arraycopy(other.minTimes, 0, minTimes, count, other.count);
+			System.arraycopy(other.maxTimes, 0, maxTimes, count, other.count);
+			count += other.count;
+			blockEnd = other.blockEnd;
+		}
+
+		GLFTimeIndex build(GLFReader reader) {
+			return new GLFTimeIndex(reader.getSize(), reader.getFile().lastModified(), count, offsets, minTimes, maxTimes);
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity <= offsets.length) return;
+			int length = Math.max(capacity, offsets.length * 2);
+			offsets = grow(offsets, length);
+			minTimes = grow(minTimes, length);
+			maxTimes = grow(maxTimes, length);
+		}
+
+		private static long[] grow(long[] array, int length) {
+			long[] grown = new long[length];
+			System.arraycopy(array, 0, grown, 0, array.length);
+			return grown;
+		}
+	}
+}
@@ -0,0 +1,441 @@
+package com.dft.boetools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import com.crystaldecisions.sdk.occa.infostore.CePropertyID;
+import com.crystaldecisions.sdk.occa.infostore.IInfoObjects;
+import com.crystaldecisions.sdk.plugin.desktop.user.IUser;
+import com.crystaldecisions.sdk.plugin.desktop.usergroup.IUserGroup;
+import com.dft.boetools.QueryHelper.InfoObjectsWorker;
+
+/**
+ * An in-memory copy of which users and subgroups belong to which user groups, for resolving
+ * nested group membership without a query per group.  It is loaded with two paged sweeps, one
+ * over the user groups for their SI_SUBGROUPS and one over the users for their SI_USERGROUPS.
+ * Groups and users are kept in SI_ID order and referred to by position, and both relations are
+ * held as int adjacency arrays, so even a large repository only takes a few megabytes.
+ *
+ * getUserIDs expands a group to the users in it and in every group nested under it.  Each
+ * expansion is worked out once, as a bitset over user positions, and kept for later calls.
+ * Groups that are nested inside each other in a cycle have the same members and are expanded
+ * together; the cycles are logged when the graph is built and can be read with getCycles.
+ * @author rwells
+ *
+ */
+public class MembershipGraph {
+	private static Logger logger = Logger.getLogger(MembershipGraph.class);
+
+	// Groups and users in SI_ID order
+	private final int[] groupIDs;
+	private final String[] groupNames;
+	private final int[] userIDs;
+	private final long[] userCreationTimes;
+
+	// The subgroups of group g are subgroups[subgroupStart[g]] up to subgroups[subgroupStart[g + 1]],
+	// and its direct members are laid out the same way in members.
+	private final int[] subgroupStart;
+	private final int[] subgroups;
+	private final int[] memberStart;
+	private final int[] members;
+
+	private final Map<String, Integer> groupsByName = new HashMap<String, Integer>();
+
+	// Strongly connected groups.  Components are numbered so that groups nested under a component
+	// always belong to a lower numbered one.
+	private final int[] components;
+	private final int[] componentStart;
+	private final int[] componentGroups;
+	private final BitSet[] expansions;
+	private final List<List<String>> cycles = new ArrayList<List<String>>();
+
+	MembershipGraph(int[] groupIDs, String[] groupNames, int[] subgroupStart, int[] subgroups, int[] userIDs, long[] userCreationTimes, int[] memberStart, int[] members) {
+		this.groupIDs = groupIDs;
+		this.groupNames = groupNames;
+		this.subgroupStart = subgroupStart;
+		this.subgroups = subgroups;
+		this.userIDs = userIDs;
+		this.userCreationTimes = userCreationTimes;
+		this.memberStart = memberStart;
+		this.members = members;
+		for (int g = 0; g < groupNames.length; g++) {
+			groupsByName.put(groupNames[g].toLowerCase(), Integer.valueOf(g));
+		}
+
+		components = new int[groupIDs.length];
+		int count = findComponents();
+		componentStart = new int[count + 1];
+		componentGroups = new int[groupIDs.length];
+		for (int g = 0; g < groupIDs.length; g++) {
+			componentStart[components[g] + 1]++;
+		}
+		for (int c = 0; c < count; c++) {
+			componentStart[c + 1] += componentStart[c];
+		}
+		int[] fill = componentStart.clone();
+		for (int g = 0; g < groupIDs.length; g++) {
+			componentGroups[fill[components[g]]++] = g;
+		}
+		expansions = new BitSet[count];
+	}
+
+	/**
+	 * Reads the groups and users from the CMS.
+	 */
+	public static MembershipGraph load(QueryHelper q) throws Exception {
+		long start = System.currentTimeMillis();
+		final Loader loader = new Loader();
+		q.forEachPageByID("SI_ID, SI_NAME, SI_SUBGROUPS", "CI_SYSTEMOBJECTS", "SI_KIND = 'UserGroup'", new InfoObjectsWorker() {
+			public void doWork(IInfoObjects page) throws Exception {
+				for (Object next : page) {
+					IUserGroup group = (IUserGroup) next;
+					loader.addGroup(group.getID(), group.getTitle(), group.getSubGroups());
+				}
+			}
+		});
+		q.forEachPageByID("SI_ID, SI_CREATION_TIME, SI_USERGROUPS", "CI_SYSTEMOBJECTS", "SI_KIND = 'User'", new InfoObjectsWorker() {
+			public void doWork(IInfoObjects page) throws Exception {
+				for (Object next : page) {
+					IUser user = (IUser) next;
+					Date created = user.properties().getDate(CePropertyID.SI_CREATION_TIME);
+					loader.addUser(user.getID(), created == null ? 0 : created.getTime(), user.getGroups());
+				}
+			}
+		});
+		MembershipGraph graph = loader.build();
+		logger.debug("Loaded " + graph.getGroupCount() + " groups and " + graph.getUserCount() + " users in " + (System.currentTimeMillis() - start) + " ms");
+		return graph;
+	}
+
+	public int getGroupCount() {
+		return groupIDs.length;
+	}
+
+	public int getUserCount() {
+		return userIDs.length;
+	}
+
+	/**
+	 * @return the SI_ID of the group with the given name, ignoring case, or -1 if there is none.
+	 */
+	public int getGroupID(String name) {
+		Integer g = groupsByName.get(name.toLowerCase());
+		return g == null ? -1 : groupIDs[g.intValue()];
+	}
+
+	/**
+	 * @return the SI_IDs of the users that are members of the group directly.
+	 */
+	public Set<Integer> getDirectUserIDs(int groupID) {
+		Set<Integer> ids = new TreeSet<Integer>();
+		int g = Arrays.binarySearch(groupIDs, groupID);
+		if (g < 0) return ids;
+		for (int i = memberStart[g]; i < memberStart[g + 1]; i++) {
+			ids.add(Integer.valueOf(userIDs[members[i]]));
+		}
+		return ids;
+	}
+
+	/**
+	 * @return the SI_IDs of the users that are members of the group or of any group nested under it.
+	 */
+	public Set<Integer> getUserIDs(int groupID) {
+		Set<Integer> ids = new TreeSet<Integer>();
+		int g = Arrays.binarySearch(groupIDs, groupID);
+		if (g < 0) return ids;
+		BitSet users = expand(components[g]);
+		for (int u = users.nextSetBit(0); u >= 0; u = users.nextSetBit(u + 1)) {
+			ids.add(Integer.valueOf(userIDs[u]));
+		}
+		return ids;
+	}
+
+	/**
+	 * @return true if the user is a member of the group or of any group nested under it.
+	 */
+	public boolean isMember(int userID, int groupID) {
+		int g = Arrays.binarySearch(groupIDs, groupID);
+		int u = Arrays.binarySearch(userIDs, userID);
+		return g >= 0 && u >= 0 && expand(components[g]).get(u);
+	}
+
+	/**
+	 * @return the creation time of the user in milliseconds, or 0 if the user is not known.
+	 */
+	public long getCreationTime(int userID) {
+		int u = Arrays.binarySearch(userIDs, userID);
+		return u < 0 ? 0 : userCreationTimes[u];
+	}
+
+	/**
+	 * @return the names of the groups in each cycle of nested groups.
+	 */
+	public List<List<String>> getCycles() {
+		return Collections.unmodifiableList(cycles);
+	}
+
+	/**
+	 * Works out the users of a component and of every component under it, lowest numbered first
+	 * so that the components a component contains are always done before it.
+	 */
+	private synchronized BitSet expand(int component) {
+		if (expansions[component] != null) return expansions[component];
+
+		TreeSet<Integer> pending = new TreeSet<Integer>();
+		List<Integer> queue = new ArrayList<Integer>();
+		queue.add(Integer.valueOf(component));
+		pending.add(Integer.valueOf(component));
+		for (int i = 0; i < queue.size(); i++) {
+			int c = queue.get(i).intValue();
+			for (int j = componentStart[c]; j < componentStart[c + 1]; j++) {
+				int g = componentGroups[j];
+				for (int k = subgroupStart[g]; k < subgroupStart[g + 1]; k++) {
+					Integer sub = Integer.valueOf(components[subgroups[k]]);
+					if (expansions[sub.intValue()] == null && pending.add(sub)) queue.add(sub);
+				}
+			}
+		}
+
+		for (Integer next : pending) {
+			int c = next.intValue();
+			BitSet users = new BitSet(userIDs.length);
+			for (int j = componentStart[c]; j < componentStart[c + 1]; j++) {
+				int g = componentGroups[j];
+				for (int k = memberStart[g]; k < memberStart[g + 1]; k++) {
+					users.set(members[k]);
+				}
+				for (int k = subgroupStart[g]; k < subgroupStart[g + 1]; k++) {
+					int sub = components[subgroups[k]];
+					if (sub != c) users.or(expansions[sub]);
+				}
+			}
+			expansions[c] = users;
+		}
+		return expansions[component];
+	}
+
+	/**
+	 * Tarjan's algorithm, without recursion so that deep nesting can not overflow the stack.
+	 * Fills in components and records the cycles.
+	 * @return the number of components
+	 */
+	private int findComponents() {
+		int n = groupIDs.length;
+		int[] index = new int[n];
+		int[] low = new int[n];
+		boolean[] onStack = new boolean[n];
+		int[] stack = new int[n];
+		int[] calls = new int[n];
+		int[] edges = new int[n];
+		Arrays.fill(index, -1);
+		int next = 0;
+		int top = 0;
+		int count = 0;
+
+		for (int root = 0; root < n; root++) {
+			if (index[root] >= 0) continue;
+			int depth = 0;
+			index[root] = low[root] = next++;
+			stack[top++] = root;
+			onStack[root] = true;
+			calls[depth] = root;
+			edges[depth++] = subgroupStart[root];
+
+			while (depth > 0) {
+				int v = calls[depth - 1];
+				if (edges[depth - 1] < subgroupStart[v + 1]) {
+					int w = subgroups[edges[depth - 1]++];
+					if (index[w] < 0) {
+						index[w] = low[w] = next++;
+						stack[top++] = w;
+						onStack[w] = true;
+						calls[depth] = w;
+						edges[depth++] = subgroupStart[w];
+					} else if (onStack[w]) {
+						low[v] = Math.min(low[v], index[w]);
+					}
+					continue;
+				}
+
+				depth--;
+				if (depth > 0) {
+					int parent = calls[depth - 1];
+					low[parent] = Math.min(low[parent], low[v]);
+				}
+				if (low[v] == index[v]) {
+					List<String> cycle = new ArrayList<String>();
+					int w;
+					do {
+						w = stack[--top];
+						onStack[w] = false;
+						components[w] = count;
+						cycle.add(groupNames[w]);
+					} while (w != v);
+					if (cycle.size() > 1 || containsItself(v)) {
+						logger.warn("User groups are nested in a cycle: " + cycle);
+						cycles.add(cycle);
+					}
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	private boolean containsItself(int g) {
+		for (int k = subgroupStart[g]; k < subgroupStart[g + 1]; k++) {
+			if (subgroups[k] == g) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Collects groups and users as they are read, in SI_ID order, and lays them out as adjacency arrays.
+	 */
+	static final class Loader {
+		private final Ints groupIDs = new Ints();
+		private final List<String> groupNames = new ArrayList<String>();
+		private final Ints subgroupOwners = new Ints();
+		private final Ints subgroupIDs = new Ints();
+		private final Ints userIDs = new Ints();
+		private long[] userCreationTimes = new long[16];
+		private final Ints memberUsers = new Ints();
+		private final Ints memberGroupIDs = new Ints();
+
+		void addGroup(int id, String name, Set<?> subgroups) {
+			addGroup(id, name, toArray(subgroups));
+		}
+
+		void addGroup(int id, String name, int[] subgroups) {
+			int g = groupIDs.size();
+			groupIDs.add(id);
+			groupNames.add(name);
+			for (int sub : subgroups) {
+				subgroupOwners.add(g);
+				subgroupIDs.add(sub);
+			}
+		}
+
+		void addUser(int id, long created, Set<?> groups) {
+			addUser(id, created, toArray(groups));
+		}
+
+		void addUser(int id, long created, int[] groups) {
+			int u = userIDs.size();
+			userIDs.add(id);
+			if (u == userCreationTimes.length) {
+				long[] grown = new long[u * 2];
+				System.arraycopy(userCreationTimes, 0, grown, 0, u);
+				userCreationTimes = grown;
+			}
+			userCreationTimes[u] = created;
+			for (int group : groups) {
+				memberUsers.add(u);
+				memberGroupIDs.add(group);
+			}
+		}
+
+		/**
+		 * @return the SI_IDs in a set of Integers read from a relation property, sorted
+		 */
+		static int[] toArray(Set<?> ids) {
+			if (ids == null) return new int[0];
+			int[] array = new int[ids.size()];
+			int i = 0;
+			for (Object id : ids) {
+				array[i++] = ((Number) id).intValue();
+			}
+			Arrays.sort(array);
+			return array;
+		}
+
+		MembershipGraph build() {
+			int[] groups = groupIDs.toArray();
+			int[] users = userIDs.toArray();
+			long[] created = new long[users.length];
+			System.arraycopy(userCreationTimes, 0, created, 0, users.length);
+
+			// Both relations are stored by group.  References to groups that were deleted between
+			// the two sweeps are dropped.
+			int[] subgroupStart = new int[groups.length + 1];
+			int[] subgroups = layout(groups, subgroupOwners, subgroupIDs, true, subgroupStart);
+			int[] memberStart = new int[groups.length + 1];
+			int[] members = layout(groups, memberUsers, memberGroupIDs, false, memberStart);
+
+			return new MembershipGraph(groups, groupNames.toArray(new String[groupNames.size()]), subgroupStart, subgroups, users, created, memberStart, members);
+		}
+
+		/**
+		 * Turns pairs into adjacency arrays with a counting sort on the group.
+		 * @param byOwner true if a is the group position and b a group ID, false if a is the value and b the group ID
+		 */
+		private static int[] layout(int[] groups, Ints a, Ints b, boolean byOwner, int[] start) {
+			int pairs = a.size();
+			int[] group = new int[pairs];
+			int[] value = new int[pairs];
+			for (int i = 0; i < pairs; i++) {
+				int target = Arrays.binarySearch(groups, b.get(i));
+				if (byOwner) {
+					group[i] = a.get(i);
+					value[i] = target;
+				} else {
+					group[i] = target;
+					value[i] = a.get(i);
+				}
+				if (target >= 0) start[group[i] + 1]++;
+			}
+			for (int g = 0; g < groups.length; g++) {
+				start[g + 1] += start[g];
+			}
+			int[] fill = new int[groups.length];
+			System.arraycopy(start, 0, fill, 0, groups.length);
+			int[] values = new int[start[groups.length]];
+			for (int i = 0; i < pairs; i++) {
+				if (group[i] < 0 || value[i] < 0) continue;
+				values[fill[group[i]]++] = value[i];
+			}
+			return values;
+		}
+	}
+
+	/**
+	 * A growable array of ints.
+	 */
+	static final class Ints {
+		private int[] values = new int[16];
+		private int size;
+
+		void add(int value) {
+			if (size == values.length) {
+				int[] grown = new int[size * 2];
+				System.arraycopy(values, 0, grown, 0, size);
+				values = grown;
+			}
+			values[size++] = value;
+		}
+
+		int get(int i) {
+			return values[i];
+		}
+
+		int size() {
+			return size;
+		}
+
+		int[] toArray() {
+			int[] array = new int[size];
+			System.arraycopy(values, 0, array, 0, size);
+			return array;
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package com.dft.boetools;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import com.crystaldecisions.sdk.occa.infostore.CePropertyID;
+import com.crystaldecisions.sdk.occa.infostore.IInfoObject;
+import com.crystaldecisions.sdk.occa.infostore.IInfoObjects;
+import com.crystaldecisions.sdk.plugin.desktop.user.IUser;
+import com.crystaldecisions.sdk.plugin.desktop.usergroup.IUserGroup;
+import com.dft.boetools.QueryHelper.InfoObjectsWorker;
+
+/**
+ * Group membership kept in a local file, so that programs do not have to read every user and
+ * group from the CMS each time they run.  The file holds the groups with their subgroups and the
+ * users with their creation time and groups, all as SI_IDs, along with a watermark for each: the
+ * time the last successful refresh started, less a few minutes for clocks that differ between this
+ * server and the CMS.  It is memory mapped and read in a single pass when the snapshot is opened.
+ *
+ * refresh brings the snapshot up to date by reading only the groups and users updated since the
+ * last refresh.  A group that was updated also brings its SI_GROUP_MEMBERS, so a membership change
+ * is picked up whichever side of it was saved.  Deletions do not show up as updates, so the number
+ * of groups and users in the CMS is compared with the snapshot and their SI_IDs are swept only when
+ * the numbers differ.  The file is replaced through a temporary file, so jobs sharing a snapshot
+ * never see half of one.
+ * @author rwells
+ *
+ */
+public class MembershipSnapshot {
+	private static Logger logger = Logger.getLogger(MembershipSnapshot.class);
+
+	// "MSNP", followed by the format version
+	private static final int MAGIC = 0x4D534E50;
+	private static final int VERSION = 1;
+
+	private static final String GROUPS = "SI_KIND = 'UserGroup'";
+	private static final String USERS = "SI_KIND = 'User'";
+
+	// How far before the start of a refresh the next one looks, as for AbstractProgram INCREMENTAL
+	private static final long OVERLAP = 5 * 60000L;
+
+	private static final Map<File, MembershipSnapshot> shared = new HashMap<File, MembershipSnapshot>();
+
+	private final File file;
+	private final TreeMap<Integer, Principal> groups = new TreeMap<Integer, Principal>();
+	private final TreeMap<Integer, Principal> users = new TreeMap<Integer, Principal>();
+	private long groupWatermark;
+	private long userWatermark;
+	private MembershipGraph graph;
+
+	/**
+	 * Opens a snapshot, reading the file if it exists.  A file that can not be read is ignored
+	 * and the first refresh loads everything again.
+	 */
+	public MembershipSnapshot(File file) {
+		this.file = file;
+		if (file.isFile()) {
+			try {
+				read();
+			} catch (IOException e) {
+				logger.warn("Ignoring unreadable membership snapshot " + file + ": " + e.getMessage());
+				groups.clear();
+				users.clear();
+				groupWatermark = 0;
+				userWatermark = 0;
+			}
+		}
+	}
+
+	/**
+	 * Refreshes the snapshot kept in this JVM for the file, opening it the first time, and returns
+	 * its graph.  Programs that run one after another in the same JVM only pay for what changed in between.
+	 */
+	public static MembershipGraph getGraph(File file, QueryHelper q) throws Exception {
+		MembershipSnapshot snapshot;
+		synchronized (shared) {
+			snapshot = shared.get(file.getAbsoluteFile());
+			if (snapshot == null) {
+				snapshot = new MembershipSnapshot(file);
+				shared.put(file.getAbsoluteFile(), snapshot);
+			}
+		}
+		synchronized (snapshot) {
+			snapshot.refresh(q);
+			return snapshot.getGraph();
+		}
+	}
+
+	public synchronized int getGroupCount() {
+		return groups.size();
+	}
+
+	public synchronized int getUserCount() {
+		return users.size();
+	}
+
+	/**
+	 * @return the membership graph for the snapshot as it is now.
+	 */
+	public synchronized MembershipGraph getGraph() {
+		if (graph == null) {
+			MembershipGraph.Loader loader = new MembershipGraph.Loader();
+			for (Map.Entry<Integer, Principal> group : groups.entrySet()) {
+				loader.addGroup(group.getKey().intValue(), group.getValue().name, group.getValue().links);
+			}
+			for (Map.Entry<Integer, Principal> user : users.entrySet()) {
+				loader.addUser(user.getKey().intValue(), user.getValue().created, user.getValue().links);
+			}
+			graph = loader.build();
+		}
+		return graph;
+	}
+
+	/**
+	 * Reads what changed in the CMS since the last refresh, and saves the snapshot if anything did.
+	 * @return true if anything changed
+	 */
+	public synchronized boolean refresh(QueryHelper q) throws Exception {
+		long start = System.currentTimeMillis();
+		boolean full = groupWatermark == 0 || userWatermark == 0;
+		int changed = readGroups(q, !full);
+		changed += readUsers(q);
+		if (!full) {
+			changed += prune(q, GROUPS, groups);
+			changed += prune(q, USERS, users);
+		}
+		// Not the latest SI_UPDATE_TS read, since an object updated behind the sweep can be older than that
+		groupWatermark = start - OVERLAP;
+		userWatermark = start - OVERLAP;
+		logger.debug((full ? "Loaded " : "Refreshed ") + file + ", " + changed + " changes, " + groups.size() + " groups and " + users.size() + " users in " + (System.currentTimeMillis() - start) + " ms");
+
+		if (changed == 0) return false;
+		graph = null;
+		write();
+		return true;
+	}
+
+	/**
+	 * Reads the groups updated since the watermark.
+	 * @param members true to apply each group's SI_GROUP_MEMBERS to the users already known
+	 * @return the number of groups that changed
+	 */
+	private int readGroups(QueryHelper q, final boolean members) throws Exception {
+		final int[] changed = new int[1];
+		String columns = "SI_ID, SI_NAME, SI_SUBGROUPS" + (members ? ", SI_GROUP_MEMBERS" : "");
+		q.forEachPageByID(columns, "CI_SYSTEMOBJECTS", GROUPS + since(groupWatermark), new InfoObjectsWorker() {
+			public void doWork(IInfoObjects page) throws Exception {
+				for (Object next : page) {
+					IUserGroup group = (IUserGroup) next;
+					Integer id = Integer.valueOf(group.getID());
+					Principal principal = new Principal(group.getTitle(), 0, MembershipGraph.Loader.toArray(group.getSubGroups()));
+					if (!principal.equals(groups.put(id, principal))) changed[0]++;
+					if (members) changed[0] += setMembers(id.intValue(), MembershipGraph.Loader.toArray(group.getUsers()));
+				}
+			}
+		});
+		return changed[0];
+	}
+
+	/**
+	 * Reads the users updated since the watermark.
+	 * @return the number of users that changed
+	 */
+	private int readUsers(QueryHelper q) throws Exception {
+		final int[] changed = new int[1];
+		q.forEachPageByID("SI_ID, SI_CREATION_TIME, SI_USERGROUPS", "CI_SYSTEMOBJECTS", USERS + since(userWatermark), new InfoObjectsWorker() {
+			public void doWork(IInfoObjects page) throws Exception {
+				for (Object next : page) {
+					IUser user = (IUser) next;
+					Date created = user.properties().getDate(CePropertyID.SI_CREATION_TIME);
+					Principal principal = new Principal(null, created == null ? 0 : created.getTime(), MembershipGraph.Loader.toArray(user.getGroups()));
+					if (!principal.equals(users.put(Integer.valueOf(user.getID()), principal))) changed[0]++;
+				}
+			}
+		});
+		return changed[0];
+	}
+
+	/**
+	 * Makes the known users that are members of the group exactly the ones given.
+	 * @param members the SI_IDs of the members, sorted
+	 * @return the number of users that changed
+	 */
+	private int setMembers(int groupID, int[] members) {
+		int changed = 0;
+		for (Map.Entry<Integer, Principal> user : users.entrySet()) {
+			Principal principal = user.getValue();
+			boolean member = Arrays.binarySearch(members, user.getKey().intValue()) >= 0;
+			int at = Arrays.binarySearch(principal.links, groupID);
+			if (member == at >= 0) continue;
+
+			int[] links;
+			if (member) {
+				at = -at - 1;
+				links = new int[principal.links.length + 1];
+				System.arraycopy(principal.links, 0, links, 0, at);
+				links[at] = groupID;
+				System.arraycopy(principal.links, at, links, at + 1, principal.links.length - at);
+			} else {
+				links = new int[principal.links.length - 1];
+				System.arraycopy(principal.links, 0, links, 0, at);
+				System.arraycopy(principal.links, at + 1, links, at, links.length - at);
+			}
+			user.setValue(new Principal(principal.name, principal.created, links));
+			changed++;
+		}
+		return changed;
+	}
+
+	/**
+	 * Removes the principals that no longer exist, if the count in the CMS says there are any.
+	 * @return the number removed
+	 */
+	private int prune(QueryHelper q, String condition, Map<Integer, Principal> principals) throws Exception {
+		if (q.getCount("CI_SYSTEMOBJECTS", condition) == principals.size()) return 0;
+
+		final Set<Integer> existing = new HashSet<Integer>();
+		q.forEachPageByID("SI_ID", "CI_SYSTEMOBJECTS", condition, new InfoObjectsWorker() {
+			public void doWork(IInfoObjects page) throws Exception {
+				for (Object next : page) {
+					existing.add(Integer.valueOf(((IInfoObject) next).getID()));
+				}
+			}
+		});
+		int removed = 0;
+		for (Iterator<Integer> i = principals.keySet().iterator(); i.hasNext(); ) {
+			if (!existing.contains(i.next())) {
+				i.remove();
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Objects updated in the same second as the watermark are read again, since the query only
+	 * compares whole seconds.  Reading them again changes nothing.
+	 */
+	private static String since(long watermark) {
+		if (watermark == 0) return "";
+		return " AND SI_UPDATE_TS >= '" + QueryHelper.formatDateForBOEQuery(new Date(watermark), TimeZone.getDefault()) + "'";
+	}
+
+	private void read() throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException("Not a membership snapshot");
+			}
+			groupWatermark = buffer.getLong();
+			userWatermark = buffer.getLong();
+			for (int i = buffer.getInt(); i > 0; i--) {
+				int id = buffer.getInt();
+				byte[] name = new byte[buffer.getInt()];
+				buffer.get(name);
+				groups.put(Integer.valueOf(id), new Principal(new String(name, "UTF-8"), 0, readLinks(buffer)));
+			}
+			for (int i = buffer.getInt(); i > 0; i--) {
+				int id = buffer.getInt();
+				long created = buffer.getLong();
+				users.put(Integer.valueOf(id), new Principal(null, created, readLinks(buffer)));
+			}
+		} catch (RuntimeException e) {
+			// A truncated file runs off the end of the buffer
+			throw new IOException("Corrupt membership snapshot: " + e);
+		} finally {
+			in.close();
+		}
+		logger.debug("Read " + groups.size() + " groups and " + users.size() + " users from " + file);
+	}
+
+	private static int[] readLinks(ByteBuffer buffer) {
+		int[] links = new int[buffer.getInt()];
+		buffer.asIntBuffer().get(links);
+		buffer.position(buffer.position() + links.length * 4);
+		return links;
+	}
+
+	/**
+	 * Saves the snapshot to a temporary file and then replaces the old one with it.
+	 */
+	public synchronized void write() throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null) dir.mkdirs();
+		File temp = File.createTempFile(file.getName(), ".tmp", dir);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(groupWatermark);
+			out.writeLong(userWatermark);
+			out.writeInt(groups.size());
+			for (Map.Entry<Integer, Principal> group : groups.entrySet()) {
+				out.writeInt(group.getKey().intValue());
+				byte[] name = group.getValue().name.getBytes("UTF-8");
+				out.writeInt(name.length);
+				out.write(name);
+				writeLinks(out, group.getValue().links);
+			}
+			out.writeInt(users.size());
+			for (Map.Entry<Integer, Principal> user : users.entrySet()) {
+				out.writeInt(user.getKey().intValue());
+				out.writeLong(user.getValue().created);
+				writeLinks(out, user.getValue().links);
+			}
+		} finally {
+			out.close();
+		}
+
+		if (!replace(temp)) {
+			// On Windows a file can not be deleted while a mapping of it is still waiting to be collected
+			System.gc();
+			System.runFinalization();
+			if (!replace(temp)) {
+				temp.delete();
+				throw new IOException("Unable to replace " + file);
+			}
+		}
+	}
+
+	private boolean replace(File temp) {
+		return !(file.exists() && !file.delete()) && temp.renameTo(file);
+	}
+
+	private static void writeLinks(DataOutputStream out, int[] links) throws IOException {
+		out.writeInt(links.length);
+		for (int link : links) {
+			out.writeInt(link);
+		}
+	}
+
+	/**
+	 * A group with its subgroups, or a user with its groups.  Links are sorted SI_IDs.
+	 */
+	private static final class Principal {
+		private final String name;
+		private final long created;
+		private final int[] links;
+
+		Principal(String name, long created, int[] links) {
+			this.name = name;
+			this.created = created;
+			this.links = links;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Principal)) return false;
+			Principal other = (Principal) o;
+			return created == other.created && (name == null ? other.name == null : name.equals(other.name)) && Arrays.equals(links, other.links);
+		}
+
+		public int hashCode() {
+			return Arrays.hashCode(links);
+		}
+	}
+}
@@ -5,9 +5,16 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
@@ -15,12 +22,14 @@ import com.businessobjects.sdk.plugin.desktop.common.ISystemPrincipal;
 import com.businessobjects.sdk.plugin.desktop.profile.IProfileValue;
 import com.businessobjects.sdk.plugin.desktop.profile.IProfileValues;
 import com.crystaldecisions.sdk.exception.SDKException;
+import com.crystaldecisions.sdk.occa.infostore.CePropertyID;
 import com.crystaldecisions.sdk.occa.infostore.IDestinationPlugin;
 import com.crystaldecisions.sdk.occa.infostore.IInfoObject;
 import com.crystaldecisions.sdk.occa.infostore.IInfoObjects;
 import com.crystaldecisions.sdk.occa.infostore.IInfoStore;
 import com.crystaldecisions.sdk.plugin.desktop.user.IUser;
 import com.crystaldecisions.sdk.plugin.desktop.usergroup.IUserGroup;
+import com.crystaldecisions.sdk.properties.IProperties;
 import com.crystaldecisions.sdk.uri.IPageResult;
 import com.crystaldecisions.sdk.uri.IStatelessPageInfo;
 import com.crystaldecisions.sdk.uri.PagingQueryOptions;
@@ -67,18 +76,27 @@ public class QueryHelper {
 		
 		this.store = store;
 		this.logger = newLogAdapter;
-		
-		try {
-			Properties config = new Properties();
-			config.load(getClass().getResourceAsStream("/QueryHelper.properties"));
-			maxBatchSize = Integer.parseInt(config.getProperty(MAX_BATCH));
-		} catch (Exception e) {
-			logger.error("Could not retrieve MAX_BATCH from Properties file, assign default value of 1000");
-			maxBatchSize = 1000;
-		}
+		this.maxBatchSize = getConfiguredMaxBatch(newLogAdapter);
 
 	}
 	
+	// MAX_BATCH from QueryHelper.properties, read by the first QueryHelper created in the JVM
+	private static Integer configuredMaxBatch;
+	
+	private static synchronized int getConfiguredMaxBatch(LogAdapter logger) {
+		if (configuredMaxBatch == null) {
+			try {
+				Properties config = new Properties();
+				config.load(QueryHelper.class.getResourceAsStream("/QueryHelper.properties"));
+				configuredMaxBatch = Integer.valueOf(config.getProperty(MAX_BATCH));
+			} catch (Exception e) {
+				logger.error("Could not retrieve MAX_BATCH from Properties file, assign default value of 1000");
+				configuredMaxBatch = Integer.valueOf(1000);
+			}
+		}
+		return configuredMaxBatch.intValue();
+	}
+	
 
 	/** 
 	 * Create and return a new Empty IInfoObjects Collection.  Can be used to create new objects in bulk.
@@ -359,7 +377,237 @@ public class QueryHelper {
 	}
 	
 	public interface InfoObjectWorker { void doWork(IInfoObject o) throws Exception;	}
-	
+
+	/**
+	 * Pages through a raw query using SI_ID as the page key instead of the CMS paging URIs used by
+	 * forEachResult.  Each page is fetched with
+	 *
+	 * SELECT TOP [MAX_BATCH] [columns] FROM [tables] WHERE [condition] AND SI_ID > [last id] ORDER BY SI_ID
+	 *
+	 * and handed to the worker as a whole.  Because the next page only depends on the last SI_ID seen,
+	 * the worker is free to delete or modify the objects it is given without causing later pages to
+	 * skip objects.  The columns must include SI_ID.
+	 * @param columns the properties to select, must include SI_ID
+	 * @param tables the table or tables to select from, i.e. CI_SYSTEMOBJECTS
+	 * @param condition the where clause without the WHERE keyword, may be null
+	 * @param w worker invoked once per page
+	 * @return the total number of objects handed to the worker
+	 * @throws Exception
+	 */
+	public int forEachPageByID(String columns, String tables, String condition, InfoObjectsWorker w) throws Exception {
+		String select = "SELECT TOP " + maxBatchSize + " " + columns + " FROM " + tables + " WHERE ";
+		if (condition != null && condition.trim().length() > 0) {
+			select += "(" + condition + ") AND ";
+		}
+
+		int total = 0;
+		int lastID = 0;
+		while (true) {
+			IInfoObjects page = executeRawQuery(select + "SI_ID > " + lastID + " ORDER BY SI_ID");
+			if (page.size() == 0) break;
+
+			// Capture the key before the worker gets a chance to delete anything.
+			lastID = ((IInfoObject) page.get(page.size() - 1)).getID();
+			total += page.size();
+			w.doWork(page);
+
+			if (page.size() < maxBatchSize) break;
+		}
+		return total;
+	}
+
+	public interface InfoObjectsWorker { void doWork(IInfoObjects page) throws Exception;	}
+
+	/**
+	 * A partitioned version of forEachPageByID for sweeps over large tables.  The SI_ID space between
+	 * the lowest and highest matching SI_ID is cut into ranges, threads * 4 of them to start with, and
+	 * the ranges are paged through on a pool of threads, each range with its own SI_ID cursor:
+	 *
+	 * SELECT TOP [MAX_BATCH] [columns] FROM [tables] WHERE [condition] AND SI_ID > [last id] AND SI_ID <= [range end] ORDER BY SI_ID
+	 *
+	 * IDs are rarely spread evenly, so whenever a thread is left without a range while another is
+	 * still paging through a dense one, the rest of the dense range is split in half and the idle
+	 * thread takes the upper half.  Throughput therefore scales with the number of threads the CMS
+	 * allows us until the CMS itself is the bottleneck.
+	 *
+	 * The worker is called from all threads at once.  Wrap it with serialized(w) if it must see one
+	 * page at a time.  As with forEachPageByID the worker may delete or modify the objects it is given.
+	 * If any page fails the remaining ranges are abandoned and the failure is thrown.
+	 * @param columns the properties to select, must include SI_ID
+	 * @param tables the table or tables to select from, i.e. CI_INFOOBJECTS
+	 * @param condition the where clause without the WHERE keyword, may be null
+	 * @param threads the number of queries to run at once
+	 * @param w worker invoked once per page
+	 * @return the total number of objects handed to the worker
+	 * @throws Exception
+	 */
+	public int forEachPageByIDParallel(String columns, String tables, String condition, int threads, final InfoObjectsWorker w) throws Exception {
+		int[] bounds = getIDBounds(tables, condition);
+		if (bounds == null) return 0;
+		int min = bounds[0];
+		int max = bounds[1];
+		boolean filtered = condition != null && condition.trim().length() > 0;
+		logger.debug("Scanning SI_ID " + min + " to " + max + " on " + threads + " threads");
+
+		final String select = "SELECT TOP " + maxBatchSize + " " + columns + " FROM " + tables + " WHERE " + (filtered ? "(" + condition + ") AND " : "");
+		final IDRanges ranges = new IDRanges(min, max, threads * 4);
+		final AtomicInteger total = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Object>> scans = new ArrayList<Future<Object>>();
+			for (int i = 0; i < threads; i++) {
+				scans.add(pool.submit(new Callable<Object>() {
+					public Object call() throws Exception {
+						try {
+							int[] range = null;
+							while ((range = ranges.take(range)) != null) {
+								total.addAndGet(forEachPageInRange(select, range, ranges, w));
+							}
+						} catch (Exception e) {
+							ranges.abort();
+							throw e;
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> scan : scans) {
+				try {
+					scan.get();
+				} catch (ExecutionException e) {
+					throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return total.get();
+	}
+
+	/**
+	 * Counts the objects matching a condition with a single SELECT COUNT(SI_ID) query.
+	 * @param tables the table or tables to select from, i.e. CI_SYSTEMOBJECTS
+	 * @param condition the where clause without the WHERE keyword, may be null
+	 * @throws SDKException
+	 */
+	public int getCount(String tables, String condition) throws SDKException {
+		boolean filtered = condition != null && condition.trim().length() > 0;
+		IInfoObjects result = executeRawQuery("SELECT COUNT(SI_ID) FROM " + tables + (filtered ? " WHERE " + condition : ""));
+		IProperties aggCountProperties = (IProperties) ((IInfoObject) result.get(0)).properties().getProperty(CePropertyID.SI_AGGREGATE_COUNT).getValue();
+		return ((Integer) aggCountProperties.getProperty(CePropertyID.SI_ID).getValue()).intValue();
+	}
+
+	/**
+	 * Finds the lowest and highest SI_ID matching a condition with two TOP 1 queries.
+	 * @param tables the table or tables to select from, i.e. CI_INFOOBJECTS
+	 * @param condition the where clause without the WHERE keyword, may be null
+	 * @return {lowest, highest}, or null if nothing matches
+	 * @throws SDKException
+	 */
+	public int[] getIDBounds(String tables, String condition) throws SDKException {
+		boolean filtered = condition != null && condition.trim().length() > 0;
+		String from = " FROM " + tables + (filtered ? " WHERE " + condition : "");
+		IInfoObjects lowest = executeRawQuery("SELECT TOP 1 SI_ID" + from + " ORDER BY SI_ID");
+		IInfoObjects highest = executeRawQuery("SELECT TOP 1 SI_ID" + from + " ORDER BY SI_ID DESC");
+		if (lowest.size() == 0 || highest.size() == 0) return null;
+		return new int[] {((IInfoObject) lowest.get(0)).getID(), ((IInfoObject) highest.get(0)).getID()};
+	}
+
+	/**
+	 * Pages through one range, SI_ID > range[0] and SI_ID <= range[1], moving range[0] along as it goes.
+	 */
+	private int forEachPageInRange(String select, int[] range, IDRanges ranges, InfoObjectsWorker w) throws Exception {
+		int total = 0;
+		while (true) {
+			IInfoObjects page = executeRawQuery(select + "SI_ID > " + range[0] + " AND SI_ID <= " + range[1] + " ORDER BY SI_ID");
+			if (page.size() == 0) break;
+
+			// Capture the key before the worker gets a chance to delete anything.
+			range[0] = ((IInfoObject) page.get(page.size() - 1)).getID();
+			total += page.size();
+			boolean more = page.size() >= maxBatchSize;
+
+			// Give part of what is left to an idle thread before working on this page
+			if (more) ranges.splitIfIdle(range);
+			w.doWork(page);
+
+			if (!more) break;
+		}
+		return total;
+	}
+
+	/**
+	 * Wraps a worker so that pages from forEachPageByIDParallel reach it one at a time.  The queries
+	 * still run concurrently.
+	 */
+	public static InfoObjectsWorker serialized(final InfoObjectsWorker w) {
+		return new InfoObjectsWorker() {
+			public synchronized void doWork(IInfoObjects page) throws Exception {
+				w.doWork(page);
+			}
+		};
+	}
+
+	/**
+	 * The SI_ID ranges waiting to be scanned.  A range is {last id, range end}.
+	 */
+	private static final class IDRanges {
+		private final LinkedList<int[]> waitingRanges = new LinkedList<int[]>();
+		private int active;
+		private int idle;
+		private boolean aborted;
+
+		IDRanges(int min, int max, int count) {
+			long step = Math.max(1, ((long) max - min + count) / count);
+			for (long start = min - 1L; start < max; start += step) {
+				waitingRanges.add(new int[] {(int) start, (int) Math.min(start + step, max)});
+			}
+		}
+
+		/**
+		 * Hands out the next range, waiting while other threads might still split theirs.
+		 * @param finished the range the caller has just finished, or null
+		 * @return the next range, or null when there is nothing left to do
+		 */
+		synchronized int[] take(int[] finished) throws InterruptedException {
+			if (finished != null) {
+				active--;
+				notifyAll();
+			}
+			while (waitingRanges.isEmpty() && active > 0 && !aborted) {
+				idle++;
+				try {
+					wait();
+				} finally {
+					idle--;
+				}
+			}
+			if (aborted || waitingRanges.isEmpty()) return null;
+			active++;
+			return waitingRanges.removeFirst();
+		}
+
+		synchronized void splitIfIdle(int[] range) {
+			if (idle == 0 || range[1] - (long) range[0] < 2) return;
+			int middle = (int) (range[0] + (range[1] - (long) range[0]) / 2);
+			waitingRanges.add(new int[] {middle, range[1]});
+			range[1] = middle;
+			notifyAll();
+		}
+
+		synchronized void abort() {
+			aborted = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return the MAX_BATCH size read from QueryHelper.properties, used as the page size for paged queries.
+	 */
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
 
 	/**
 	 * Retrieve the destination plugin object for the given destination type.
@@ -0,0 +1,167 @@
+package com.dft.boetools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts events per key over a sliding time window in a fixed amount of memory.  The window is
+ * divided into slots and each key keeps a ring of slot counts that is reused as time moves on,
+ * so events drop out of the window without ever being stored.  The number of keys is capped.
+ * When the cap is reached keys with nothing left in the window are evicted, and if every key is
+ * still busy the event is counted as dropped.
+ *
+ * All methods are synchronized so counts can be read while another thread is counting.
+ * @author rwells
+ *
+ */
+public class RollingCounter<K> {
+	private final long slotMillis;
+	private final int slots;
+	private final int maxKeys;
+	private final Map<K, Ring> rings = new HashMap<K, Ring>();
+	private long dropped;
+
+	/**
+	 * @param windowMillis the length of the window
+	 * @param slots the number of slots the window is divided into, which sets how smoothly it slides
+	 * @param maxKeys the most keys that are counted at once
+	 */
+	public RollingCounter(long windowMillis, int slots, int maxKeys) {
+		if (slots < 1 || windowMillis < slots) throw new IllegalArgumentException("Window of " + windowMillis + " ms can not be divided into " + slots + " slots");
+		this.slotMillis = windowMillis / slots;
+		this.slots = slots;
+		this.maxKeys = maxKeys;
+	}
+
+	/**
+	 * Counts one event for the key at the given time.  Events that are already older than the
+	 * window for the key are ignored.
+	 */
+	public synchronized void increment(K key, long time) {
+		long slot = time / slotMillis;
+		Ring ring = rings.get(key);
+		if (ring == null) {
+			if (rings.size() >= maxKeys && !evict(slot)) {
+				dropped++;
+				return;
+			}
+			ring = new Ring(slots);
+			rings.put(key, ring);
+		}
+		ring.increment(slot);
+	}
+
+	/**
+	 * @return the number of events for the key in the window that ends at now.
+	 */
+	public synchronized long getCount(K key, long now) {
+		Ring ring = rings.get(key);
+		return ring == null ? 0 : ring.count(now / slotMillis);
+	}
+
+	/**
+	 * @return the keys with events in the window that ends at now, and their counts, largest first.
+	 */
+	public synchronized Map<K, Long> getCounts(long now) {
+		long slot = now / slotMillis;
+		List<Map.Entry<K, Long>> counts = new ArrayList<Map.Entry<K, Long>>();
+		for (Map.Entry<K, Ring> entry : rings.entrySet()) {
+			long count = entry.getValue().count(slot);
+			if (count > 0) counts.add(new Count<K>(entry.getKey(), count));
+		}
+		Collections.sort(counts, new Comparator<Map.Entry<K, Long>>() {
+			public int compare(Map.Entry<K, Long> a, Map.Entry<K, Long> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+		Map<K, Long> sorted = new LinkedHashMap<K, Long>();
+		for (Map.Entry<K, Long> count : counts) {
+			sorted.put(count.getKey(), count.getValue());
+		}
+		return sorted;
+	}
+
+	/**
+	 * @return the number of events that were not counted because every key was busy.
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Removes the keys that have no events in the window ending at slot.
+	 * @return true if any were removed
+	 */
+	private boolean evict(long slot) {
+		boolean evicted = false;
+		for (Iterator<Ring> i = rings.values().iterator(); i.hasNext(); ) {
+			if (i.next().count(slot) == 0) {
+				i.remove();
+				evicted = true;
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * The slot counts for one key.  Each position in the ring remembers which slot it is
+	 * currently counting, and is cleared when it is reused for a later one.
+	 */
+	private static final class Ring {
+		private final long[] slots;
+		private final long[] counts;
+
+		Ring(int size) {
+			slots = new long[size];
+			counts = new long[size];
+			Arrays.fill(slots, Long.MIN_VALUE);
+		}
+
+		void increment(long slot) {
+			int i = (int) (slot % slots.length);
+			if (slots[i] > slot) return;
+			if (slots[i] < slot) {
+				slots[i] = slot;
+				counts[i] = 0;
+			}
+			counts[i]++;
+		}
+
+		long count(long slot) {
+			long total = 0;
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] <= slot && slots[i] > slot - slots.length) total += counts[i];
+			}
+			return total;
+		}
+	}
+
+	private static final class Count<K> implements Map.Entry<K, Long> {
+		private final K key;
+		private final Long value;
+
+		Count(K key, long value) {
+			this.key = key;
+			this.value = Long.valueOf(value);
+		}
+
+		public K getKey() {
+			return key;
+		}
+
+		public Long getValue() {
+			return value;
+		}
+
+		public Long setValue(Long value) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
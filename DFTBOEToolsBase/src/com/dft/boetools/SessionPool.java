@@ -0,0 +1,188 @@
+package com.dft.boetools;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.crystaldecisions.sdk.exception.SDKException;
+
+/**
+ * A pool of logged on sessions that can be shared by programs running in the same JVM.  Sessions
+ * are logged on as they are first needed, up to a maximum, and are checked with isSessionValid
+ * each time they are handed out so that one that expired while idle is replaced.  Sessions the
+ * pool logged on can also be given a maximum age, after which they are logged off and replaced
+ * instead of being handed out again.  Callers must give every session they borrow back with release.
+ * @author rwells
+ *
+ */
+public class SessionPool {
+	private static Logger logger = Logger.getLogger(SessionPool.class);
+
+	/**
+	 * Logs on a new session for the pool.
+	 */
+	public interface Logon {
+		BOEHelper logon() throws SDKException;
+	}
+
+	private final Logon logon;
+	private final int maxSize;
+	private final LinkedList<BOEHelper> idle = new LinkedList<BOEHelper>();
+	private final List<BOEHelper> kept = new ArrayList<BOEHelper>();
+	private final Map<BOEHelper, Long> loggedOn = new IdentityHashMap<BOEHelper, Long>();
+	private long maxAge;
+	private int size;
+	private boolean closed;
+
+	/**
+	 * @param logon how to log on new sessions
+	 * @param maxSize the most sessions logged on at once
+	 */
+	public SessionPool(Logon logon, int maxSize) {
+		if (maxSize < 1) throw new IllegalArgumentException("A session pool needs at least one session");
+		this.logon = logon;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Replaces sessions the pool logged on once they are older than this, so that none of them
+	 * lives long enough to be terminated by SessionKiller.  0, the default, keeps them for as long
+	 * as they stay valid.  Sessions added with add are never replaced.
+	 */
+	public synchronized void setMaxAgeMinutes(int minutes) {
+		maxAge = minutes * 60000L;
+	}
+
+	/**
+	 * Logs on with a user name and password, trying each CMS in turn.
+	 */
+	public static Logon password(final String user, final String password, final String authType, final String[] cms) {
+		return new Logon() {
+			private int next;
+
+			public BOEHelper logon() throws SDKException {
+				BOEHelper boe = new BOEHelper();
+				// Start where the last logon succeeded to spread sessions over the cluster
+				next = (boe.logonNormal(user, password, authType, cms, next) + 1) % cms.length;
+				return boe;
+			}
+		};
+	}
+
+	/**
+	 * Logs on with a single use token created from an existing session, such as the session a program job is given.
+	 */
+	public static Logon token(final BOEHelper boe, final int validMinutes) {
+		return new Logon() {
+			public BOEHelper logon() throws SDKException {
+				BOEHelper session = new BOEHelper();
+				session.logonWithToken(boe.getLogonToken(validMinutes, 1));
+				return session;
+			}
+		};
+	}
+
+	/**
+	 * Adds a session that someone else logged on, such as the session of a program job, to be
+	 * handed out like the others.  It counts towards the maximum and is never logged off by the pool.
+	 */
+	public synchronized void add(BOEHelper boe) {
+		kept.add(boe);
+		idle.addFirst(boe);
+		size++;
+		notifyAll();
+	}
+
+	/**
+	 * Hands out an idle session, logging on a new one if there is none and the pool is not full,
+	 * or else waiting for one to be released.
+	 */
+	public BOEHelper borrow() throws SDKException, InterruptedException {
+		while (true) {
+			BOEHelper boe = null;
+			synchronized (this) {
+				if (closed) throw new IllegalStateException("Session pool is closed");
+				if (!idle.isEmpty()) {
+					boe = idle.removeFirst();
+				} else if (size < maxSize) {
+					size++;
+				} else {
+					wait();
+					continue;
+				}
+			}
+
+			if (boe == null) {
+				try {
+					boe = logon.logon();
+					synchronized (this) {
+						loggedOn.put(boe, Long.valueOf(System.currentTimeMillis()));
+					}
+					logger.debug("Logged on pooled session " + size + " of " + maxSize);
+					return boe;
+				} catch (SDKException e) {
+					discard(null);
+					throw e;
+				}
+			}
+			if (isTooOld(boe)) {
+				logger.info("Replacing a pooled session that has reached its maximum age");
+				discard(boe);
+				continue;
+			}
+			if (boe.isSessionValid()) return boe;
+			logger.info("Replacing a pooled session that is no longer valid");
+			discard(boe);
+		}
+	}
+
+	private synchronized boolean isTooOld(BOEHelper boe) {
+		Long since = loggedOn.get(boe);
+		return maxAge > 0 && since != null && System.currentTimeMillis() - since.longValue() > maxAge;
+	}
+
+	/**
+	 * Gives a borrowed session back to the pool.
+	 */
+	public synchronized void release(BOEHelper boe) {
+		if (closed) {
+			size--;
+			if (!kept.contains(boe)) boe.logoff();
+			return;
+		}
+		idle.addFirst(boe);
+		notifyAll();
+	}
+
+	/**
+	 * Drops a borrowed session that can not be used any more, making room for a new one.
+	 */
+	public synchronized void discard(BOEHelper boe) {
+		size--;
+		if (boe != null) loggedOn.remove(boe);
+		if (boe != null && kept.remove(boe)) {
+			// A session we were lent has gone, there is nothing to log off
+		} else if (boe != null) {
+			boe.logoff();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Logs off the idle sessions.  Sessions still borrowed are logged off when they are released.
+	 */
+	public synchronized void close() {
+		closed = true;
+		for (BOEHelper boe : idle) {
+			size--;
+			if (!kept.contains(boe)) boe.logoff();
+		}
+		idle.clear();
+		loggedOn.clear();
+		notifyAll();
+	}
+}
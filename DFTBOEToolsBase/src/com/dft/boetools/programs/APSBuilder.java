@@ -2,8 +2,23 @@ package com.dft.boetools.programs;
 
 import java.io.File;
 import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
@@ -14,6 +29,7 @@ import com.businessobjects.sdk.plugin.desktop.enterprisenode.IEnterpriseNode;
 import com.businessobjects.sdk.plugin.desktop.service.IService;
 import com.businessobjects.sdk.plugin.desktop.servicecontainer.IServiceContainer;
 import com.crystaldecisions.sdk.exception.SDKException;
+import com.crystaldecisions.sdk.occa.infostore.IInfoObject;
 import com.crystaldecisions.sdk.occa.infostore.IInfoObjects;
 import com.crystaldecisions.sdk.plugin.desktop.server.ExpectedRunState;
 import com.crystaldecisions.sdk.plugin.desktop.server.IServer;
@@ -81,17 +97,115 @@ import com.dft.boetools.StringHelper;
  * 				The parameter is optional and has a default value of aps.properties, which will cause
  * 				the program to look for a file in the current working directory called aps.properties
  * 
+ * THREADS: The number of APS servers that are stopped, dropped and built at the same time.  Each APS
+ * 				is provisioned independently, so a server that is slow to shut down only delays itself.
+ * 				The parameter is optional and has a default value of 4.
+ * 
+ * RECONCILE: When true, an APS that already exists is brought in line with the configuration instead of
+ * 				being skipped or dropped.  All existing servers are read in one query, the hosted services,
+ * 				description, -Xmx, other arguments and work directory are compared against the configuration
+ * 				and only the differences are saved, in a single save per server.  Other arguments replace the
+ * 				options with the same name already on the command line, and options that were taken out of
+ * 				OTHER_COMMANDS since the server was built or reconciled are removed.  Servers that already match
+ * 				are not touched at all.  The DROP property is ignored in this mode.  Note that command line
+ * 				changes only take effect the next time the server is restarted.  The parameter is optional
+ * 				and has a default value of false.
+ * 
  * @author roy.wells
  *
  */
 public class APSBuilder extends AbstractProgram {
 
 	private static final String CONFIG_FILE = "CONFIG_FILE";
+	private static final String THREADS = "THREADS";
+	private static final String RECONCILE = "RECONCILE";
+	
+	// Server state is polled with an exponential backoff, starting at FIRST_POLL_MILLIS and doubling
+	// up to MAX_POLL_MILLIS, for at most STOP_TIMEOUT_MILLIS per attempt to stop a server.
+	private static final long FIRST_POLL_MILLIS = 500;
+	private static final long MAX_POLL_MILLIS = 8000;
+	private static final long STOP_TIMEOUT_MILLIS = 50000;
+	
+	// Marks the keys of the options we added from OTHER_COMMANDS, see withOtherArgs.
+	static final String MANAGED_OPTIONS = "-Dapsbuilder.otherCommands=";
 	
 	// Instance Variables to cut down on parameter passing.
 	QueryHelper q;
 	Configuration c;
 	
+	// Existing servers by SI_NAME, only loaded in RECONCILE mode. Read only once the builds start.
+	Map<String, IServer> existingServers;
+	
+	// Services, nodes and the APS container, loaded once and shared by every APS definition.
+	Catalog catalog;
+	
+	/**
+	 * Name to SI_ID lookups for the system objects an APS definition refers to.  Names are matched
+	 * without regard to case, as they are by the CMS.
+	 */
+	private static class Catalog {
+		private static final String APS_CONTAINER = "AdaptiveProcessingServiceContainer";
+		
+		final Map<String, Integer> services = new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER);
+		final Map<String, Integer> nodes = new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER);
+		final Map<String, Integer> containers = new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER);
+		String firstNode;
+		
+		Catalog(QueryHelper q) throws SDKException {
+			IInfoObjects objects = q.executeRawQuery("SELECT SI_ID, SI_NAME, SI_KIND FROM CI_SYSTEMOBJECTS WHERE SI_KIND IN " 
+					+ StringHelper.inClause(new String[] {IService.KIND, IEnterpriseNode.KIND, IServiceContainer.KIND}) + " ORDER BY SI_ID");
+			for (Iterator i = objects.iterator(); i.hasNext();) {
+				IInfoObject o = (IInfoObject) i.next();
+				Integer id = Integer.valueOf(o.getID());
+				if (IService.KIND.equals(o.getKind())) {
+					services.put(o.getTitle(), id);
+				} else if (IEnterpriseNode.KIND.equals(o.getKind())) {
+					nodes.put(o.getTitle(), id);
+					if (firstNode == null) firstNode = o.getTitle();
+				} else {
+					containers.put(o.getTitle(), id);
+				}
+			}
+		}
+		
+		/** @return the SI_NAME of the named node, or of the first node if nodeName is null */
+		String getNodeName(String nodeName) throws Exception {
+			if (nodeName == null) nodeName = firstNode;
+			for (String name : nodes.keySet()) {
+				if (name.equalsIgnoreCase(nodeName)) return name;
+			}
+			throw new Exception("Enterprise Node " + nodeName + " does not exist");
+		}
+		
+		int getNodeID(String nodeName) {
+			return nodes.get(nodeName).intValue();
+		}
+		
+		int getAPSContainerID() throws Exception {
+			Integer id = containers.get(APS_CONTAINER);
+			if (id == null) throw new Exception(APS_CONTAINER + " does not exist");
+			return id.intValue();
+		}
+		
+		/** @return the names of the requested services that do not exist */
+		Set<String> getMissingServices(String[] requested) {
+			Set<String> missing = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+			for (String name : requested) missing.add(name);
+			missing.removeAll(services.keySet());
+			return missing;
+		}
+		
+		/** @return the requested services that exist, by name, in the requested order */
+		Map<String, Integer> getServices(String[] requested) {
+			Map<String, Integer> found = new LinkedHashMap<String, Integer>();
+			for (String name : requested) {
+				Integer id = services.get(name);
+				if (id != null) found.put(name, id);
+			}
+			return found;
+		}
+	}
+	
 	private static class Configuration {
 		
 		private static final String APS_NAMES = "APS_NAMES";
@@ -173,6 +287,8 @@ public class APSBuilder extends AbstractProgram {
 	protected Properties getDefaultArguments() {
 		Properties defaults = new Properties();
 		defaults.put(CONFIG_FILE, "aps.properties");
+		defaults.put(THREADS, "4");
+		defaults.put(RECONCILE, Boolean.FALSE.toString());
 		return defaults;
 	}
 
@@ -183,170 +299,200 @@ public class APSBuilder extends AbstractProgram {
 		
 		// Locate the APS Configuration Properties file that will control the rest of the program.
 		c = new Configuration(getArgument(CONFIG_FILE));
-				
-		// Shutdown APS Servers flagged for shutdown.
-		stopExistingAPS(q, c);
 		
-		// iterate through the list of APS to create
+		// Resolve everything the APS definitions refer to up front and report any service name typos
+		// before anything is changed.
+		catalog = new Catalog(q);
+		logger.info("Loaded " + catalog.services.size() + " services and " + catalog.nodes.size() + " nodes");
 		for (String apsName : c.getAPSNames()) {
-			
-			logger.info("Starting Configuration of APS " + apsName);
-			
-			// Before we do anything that modifies an APS, make sure there is a valid set of services to deploy to an APS
-			String [] servicesForAPS = c.getServicesForAPS(apsName);
-			if (servicesForAPS.length < 1) {
-				logger.error("No list of services found for APS " + apsName + ".  Moving on to next APS");
-				continue;
+			Set<String> missing = catalog.getMissingServices(c.getServicesForAPS(apsName));
+			if (missing.size() > 0) {
+				logger.error("Some Service names specified in the configuration for APS " + apsName + " did not exist in this environment. Please check your configuration");
+				logger.error("	Service names that were not found " + missing);
 			}
-			
-			// Get the Service List and make sure there is at least one service to deploy before proceeding.
-			IInfoObjects serviceIds = getAPSServiceObjects(q, apsName,	servicesForAPS);
-			if (serviceIds.size() < 1) {
-				logger.error("No valid service objects foundfound for APS " + apsName + ". Moving on to next APS");
-				continue;
-			}
-			
-			
-			// Get the combined Server Name that is a combination of Node Name and Server Name.
-			IEnterpriseNode node = getEnterpriseNode(c.getNodeName(apsName));
-			String serverName = node.getTitle() + "." + apsName;
-			
-			// Deal with Dropping Servers
-			if (existingServerStillExists(serverName, c.isDrop(apsName))) continue; 
+		}
+		
+		if (getBooleanArgument(RECONCILE)) {
+			existingServers = loadExistingServers();
+		}
 				
-			// It's now safe to create the new Server
-			IInfoObjects servers = q.newInfoObjectsCollection();
-			IServer server = (IServer) servers.add(IServer.KIND);
-			server.setTitle(serverName);
-			server.setFriendlyName(serverName);
-			server.setDescription(c.getDescriptionForAPS(apsName));			
-			
-			// Temporary set startup properties to prevent startup
-			server.setExpectedRunState(ExpectedRunState.STOPPED);
-			server.setDisabled(true);
-			server.setAutoBoot(false);
-			
-			// Set the Servers Node
-			server.setEnterpriseNode(node.getID());
-			
-			// Save the initial properties of the Server
-			server.save();
-			
-			// Reload the server to pick up values set automatically by the system.
-			server = (IServer) q.getObjectByID(server.getID());
-			
-			// Let the server know that it is an APS
-			IServiceContainer serviceContainer = (IServiceContainer) q.getObjectByName("AdaptiveProcessingServiceContainer", IServiceContainer.KIND);
-			server.setContainer(serviceContainer.getID());			
+		ExecutorService pool = Executors.newFixedThreadPool(getIntArgument(THREADS));
+		try {
+			// Shutdown APS Servers flagged for shutdown.
+			stopExistingAPS(pool, q, c);
 			
-			IConfiguredServices configuredServices = server.getHostedServices();
-			Iterator serviceIter = serviceIds.iterator();
-			while(serviceIter.hasNext()) {
-				IService service = (IService) serviceIter.next();
-				logger.info("	Adding Service " + service.getTitle());
-				configuredServices.add(service.getID());
+			// Provision each APS on its own thread, then wait for all of them to finish.
+			Map<String, Future<Object>> builds = new LinkedHashMap<String, Future<Object>>();
+			for (final String apsName : c.getAPSNames()) {
+				builds.put(apsName, pool.submit(new Callable<Object>() {
+					public Object call() throws Exception {
+						provisionAPS(apsName);
+						return null;
+					}
+				}));
 			}
 			
-			// Re-save the Server
-			server.save();
-			server = (IServer) q.getObjectByID(server.getID());
-			
-			// Set Command Line Properties
-			setXMX(server, c.getXMXForAPS(apsName));
-			
-			// Add Additional args if Any
-			setOtherArgs(server, c.getOtherArgsForAPS(apsName));
-			
-			// Set Work Directory
-			setWorkDirectory(server, serverName);	
-			
-			// Set startup parameters and do final save
-			server.setExpectedRunState(ExpectedRunState.RUNNING);
-			server.setDisabled(false);
-			server.setAutoBoot(true);
-			server.save();
+			List<String> failed = new ArrayList<String>();
+			for (Map.Entry<String, Future<Object>> build : builds.entrySet()) {
+				try {
+					build.getValue().get();
+				} catch (ExecutionException e) {
+					logger.error("Configuration of APS " + build.getKey() + " failed: " + e.getCause().getMessage(), e.getCause());
+					failed.add(build.getKey());
+				}
+			}
 			
+			if (failed.size() > 0) {
+				throw new Exception("Configuration failed for APS " + failed);
+			}
+		} finally {
+			pool.shutdown();
 		}
 		
 	}
-
-	private IInfoObjects getAPSServiceObjects(QueryHelper q, String apsName, String[] services) throws SDKException {
-		String serviceSQL = "SELECT SI_ID FROM CI_SYSTEMOBJECTS WHERE SI_NAME IN " + StringHelper.inClause(services);
-		IInfoObjects serviceIds = q.executeRawQuery(serviceSQL);
-		if (serviceIds.size() < services.length) {
-			logger.error("	Some Service names specified in the configuration did not exist in this environment. Please check your configuration");
-			logger.error("	Service names that were requested (" + services + ")");
-			logger.error("	Service names that were found " + q.inClauseByName(serviceIds));			
-		}
-		return serviceIds;
+	
+	private void provisionAPS(String apsName) throws Exception {
+		logger.info("Starting Configuration of APS " + apsName);
+		
+		// Before we do anything that modifies an APS, make sure there is a valid set of services to deploy to an APS
+		String [] servicesForAPS = c.getServicesForAPS(apsName);
+		if (servicesForAPS.length < 1) {
+			logger.error("No list of services found for APS " + apsName + ".  Moving on to next APS");
+			return;
+		}
+		
+		// Get the Service List and make sure there is at least one service to deploy before proceeding.
+		Map<String, Integer> serviceIds = catalog.getServices(servicesForAPS);
+		if (serviceIds.size() < 1) {
+			logger.error("No valid service objects foundfound for APS " + apsName + ". Moving on to next APS");
+			return;
+		}
+		
+		
+		// Get the combined Server Name that is a combination of Node Name and Server Name.
+		String nodeName = catalog.getNodeName(c.getNodeName(apsName));
+		String serverName = nodeName + "." + apsName;
+		
+		// Update existing servers in place when reconciling, otherwise deal with Dropping Servers
+		if (existingServers != null) {
+			IServer existingServer = existingServers.get(serverName);
+			if (existingServer != null) {
+				reconcileAPS(existingServer, apsName, serviceIds);
+				return;
+			}
+		} else if (existingServerStillExists(serverName, c.isDrop(apsName))) return; 
+			
+		// It's now safe to create the new Server
+		IInfoObjects servers = q.newInfoObjectsCollection();
+		IServer server = (IServer) servers.add(IServer.KIND);
+		server.setTitle(serverName);
+		server.setFriendlyName(serverName);
+		server.setDescription(c.getDescriptionForAPS(apsName));			
+		
+		// Temporary set startup properties to prevent startup
+		server.setExpectedRunState(ExpectedRunState.STOPPED);
+		server.setDisabled(true);
+		server.setAutoBoot(false);
+		
+		// Set the Servers Node
+		server.setEnterpriseNode(catalog.getNodeID(nodeName));
+		
+		// Save the initial properties of the Server
+		server.save();
+		
+		// Reload the server to pick up values set automatically by the system.
+		server = (IServer) q.getObjectByID(server.getID());
+		
+		// Let the server know that it is an APS
+		server.setContainer(catalog.getAPSContainerID());			
+		
+		IConfiguredServices configuredServices = server.getHostedServices();
+		for (Map.Entry<String, Integer> service : serviceIds.entrySet()) {
+			logger.info("	" + serverName + ": Adding Service " + service.getKey());
+			configuredServices.add(service.getValue().intValue());
+		}
+		
+		// Re-save the Server
+		server.save();
+		server = (IServer) q.getObjectByID(server.getID());
+		
+		// Set Command Line Properties
+		setXMX(server, c.getXMXForAPS(apsName));
+		
+		// Add Additional args if Any
+		setOtherArgs(server, c.getOtherArgsForAPS(apsName));
+		
+		// Set Work Directory
+		setWorkDirectory(server, serverName);	
+		
+		// Set startup parameters and do final save
+		server.setExpectedRunState(ExpectedRunState.RUNNING);
+		server.setDisabled(false);
+		server.setAutoBoot(true);
+		server.save();
+		
+		logger.info("Completed Configuration of APS " + serverName);
 	}
 
-	private void stopExistingAPS(QueryHelper q, Configuration c) throws SDKException {
-		 
-		for (String stoppedName : c.getStoppedAPSNames()) {
-			logger.info("Stopping Server " + stoppedName);
-			IServer existingServer = (IServer) q.getObjectByName(stoppedName, IServer.KIND);
-			existingServer.setExpectedRunState(ExpectedRunState.STOPPED);
-			existingServer.setDisabled(true);
-			existingServer.setAutoBoot(false);
-			existingServer.save();
+	private void stopExistingAPS(ExecutorService pool, final QueryHelper q, Configuration c) throws Exception {
+		List<Future<Object>> stops = new ArrayList<Future<Object>>();
+		for (final String stoppedName : c.getStoppedAPSNames()) {
+			stops.add(pool.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					logger.info("Stopping Server " + stoppedName);
+					IServer existingServer = (IServer) q.getObjectByName(stoppedName, IServer.KIND);
+					existingServer.setExpectedRunState(ExpectedRunState.STOPPED);
+					existingServer.setDisabled(true);
+					existingServer.setAutoBoot(false);
+					existingServer.save();
+					return null;
+				}
+			}));
+		}
+		
+		// A failure to stop a server is still fatal, as it was when servers were stopped one at a time.
+		for (Future<Object> stop : stops) {
+			try {
+				stop.get();
+			} catch (ExecutionException e) {
+				throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+			}
 		}
 	}
 	
 	/* Try to drop existing server if allowed and return the outcome */
-	private boolean existingServerStillExists(String serverName, boolean dropAllowed) throws SDKException{
+	private boolean existingServerStillExists(String serverName, boolean dropAllowed) throws SDKException, InterruptedException{
 		// Deal with DROP Property
 		IServer existingServer = (IServer) q.getObjectByName(serverName, IServer.KIND);
 		if (existingServer != null) {
 			// Check to see if we are dropping an exisiting APS>  If so and it exists drop it.
 			// if it doesn't exist do nothing.
 			if(dropAllowed){
-				logger.info("	Removing existing Server");
+				logger.info("	" + serverName + ": Removing existing Server");
 				if (existingServer.isAlive()) {
-					logger.info("	Server is currently running, attempting to shutdown before removal");
+					logger.info("	" + serverName + ": Server is currently running, attempting to shutdown before removal");
 					existingServer.setExpectedRunState(ExpectedRunState.STOPPED);
 					existingServer.save();
 					
-					// Try this 10 Times
-					boolean deleted=false;
-					for(int i=0; i<10; i++) {
-						try { Thread.sleep(5000); } catch (InterruptedException e) {}
-						existingServer = (IServer) q.getObjectByName(serverName, IServer.KIND);
-						if (! existingServer.isAlive()) {
-							existingServer.deleteNow();
-							deleted=true;
-							break;
-						}
-					}
-					
-					// Try to force it.
-					if (! deleted) {
+					// Try to force it if it won't stop nicely.
+					existingServer = waitForShutdown(existingServer);
+					if (existingServer.isAlive()) {
+						logger.info("	" + serverName + ": Server did not stop, forcing shutdown");
 						existingServer.setExpectedRunState(ExpectedRunState.STOPNOW);
 						existingServer.save();
-						
-						for(int i=0; i<10; i++) {
-							try { Thread.sleep(5000); } catch (InterruptedException e) {}
-							existingServer = (IServer) q.getObjectByName(serverName, IServer.KIND);
-							if (! existingServer.isAlive()) {
-								existingServer.deleteNow();
-								deleted=true;
-								break;
-							}
-						}
+						existingServer = waitForShutdown(existingServer);
 					}
 					
-					if(! deleted) {
-						logger.error("	Could not stop server and therefore can not delete.  Stop this server manually before re-running processes");
+					if(existingServer.isAlive()) {
+						logger.error("	" + serverName + ": Could not stop server and therefore can not delete.  Stop this server manually before re-running processes");
 						return true;
 					}
-					
-				} else {
-					existingServer.deleteNow();	
 				}
+				existingServer.deleteNow();
 				
 			} else { 
 				// If not dropping and the APS already exists don't make any further changes.
-				logger.info("	Server already exists and DROP flag is false, no changes being made");
+				logger.info("	" + serverName + ": Server already exists and DROP flag is false, no changes being made");
 				return true;		
 			}
 		}
@@ -354,46 +500,210 @@ public class APSBuilder extends AbstractProgram {
 		return false;
 	}
 	
+	/**
+	 * Polls a server that has been asked to stop until it is no longer alive or STOP_TIMEOUT_MILLIS
+	 * has passed.  The wait between polls starts short and doubles, so quick shutdowns are noticed
+	 * quickly while slow ones do not hammer the CMS.
+	 * @return the most recently loaded copy of the server
+	 */
+	private IServer waitForShutdown(IServer server) throws SDKException, InterruptedException {
+		long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MILLIS;
+		long delay = FIRST_POLL_MILLIS;
+		while (server.isAlive() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(Math.min(delay, Math.max(1, deadline - System.currentTimeMillis())));
+			delay = Math.min(delay * 2, MAX_POLL_MILLIS);
+			server = (IServer) q.getObjectByID(server.getID());
+		}
+		return server;
+	}
+	
+	/**
+	 * Loads every configured APS that already exists with a single query, keyed by server name.
+	 */
+	private Map<String, IServer> loadExistingServers() throws Exception {
+		List<String> serverNames = new ArrayList<String>();
+		for (String apsName : c.getAPSNames()) {
+			serverNames.add(catalog.getNodeName(c.getNodeName(apsName)) + "." + apsName);
+		}
+		
+		Map<String, IServer> servers = new HashMap<String, IServer>();
+		if (serverNames.size() > 0) {
+			IInfoObjects existing = q.executeRawQuery("SELECT * FROM CI_SYSTEMOBJECTS WHERE SI_KIND = '" + IServer.KIND + "' AND SI_NAME IN " + StringHelper.inClause(serverNames, true));
+			for (Iterator i = existing.iterator(); i.hasNext();) {
+				IServer server = (IServer) i.next();
+				servers.put(server.getTitle(), server);
+			}
+		}
+		logger.info("Found " + servers.size() + " of " + serverNames.size() + " configured APS servers already deployed");
+		return servers;
+	}
+	
+	/**
+	 * Compares an existing server against the configuration for its APS and saves the differences,
+	 * if there are any, in one save.  The run state of the server is left alone.
+	 */
+	private void reconcileAPS(IServer server, String apsName, Map<String, Integer> serviceIds) throws SDKException {
+		String serverName = server.getTitle();
+		List<String> changes = new ArrayList<String>();
+		
+		String description = c.getDescriptionForAPS(apsName);
+		if (!description.equals(server.getDescription())) {
+			server.setDescription(description);
+			changes.add("description");
+		}
+		
+		IConfiguredServices configuredServices = server.getHostedServices();
+		Set<Integer> hosted = new HashSet<Integer>();
+		for (Object id : configuredServices.getServiceIDs()) {
+			hosted.add((Integer) id);
+		}
+		Set<Integer> wanted = new HashSet<Integer>();
+		for (Map.Entry<String, Integer> service : serviceIds.entrySet()) {
+			wanted.add(service.getValue());
+			if (!hosted.contains(service.getValue())) {
+				configuredServices.add(service.getValue().intValue());
+				changes.add("add service " + service.getKey());
+			}
+		}
+		for (Integer id : hosted) {
+			if (!wanted.contains(id)) {
+				configuredServices.remove(id.intValue());
+				changes.add("remove service " + id);
+			}
+		}
+		
+		IExecProps execProps = server.getContainer().getExecProps();
+		String args = execProps.getArgs();
+		String newArgs = withWorkDirectory(withOtherArgs(withXMX(args, c.getXMXForAPS(apsName)), c.getOtherArgsForAPS(apsName), serverName), serverName);
+		if (!newArgs.equals(args)) {
+			execProps.setArgs(newArgs);
+			changes.add("command line from [" + args + "] to [" + newArgs + "]");
+		}
+		
+		if (changes.isEmpty()) {
+			logger.info("	" + serverName + ": Server already matches configuration, no changes being made");
+		} else {
+			logger.info("	" + serverName + ": Applying changes " + changes);
+			server.save();
+		}
+	}
+	
 	private void setXMX(IServer server, String xmx) throws SDKException {		
 		if (xmx != null) {
-			logger.info("	Setting -Xmx property to " + xmx);
+			logger.info("	" + server.getTitle() + ": Setting -Xmx property to " + xmx);
 			IConfiguredContainer cfgContainer = server.getContainer();
 			IExecProps execProps = cfgContainer.getExecProps();
-			String args = execProps.getArgs().replace("-Xmx1g","-Xmx" + xmx);
-			execProps.setArgs(args);
+			execProps.setArgs(withXMX(execProps.getArgs(), xmx));
 		}
 	}
 	
 	private void setOtherArgs(IServer server, String otherArgs) throws SDKException {
 		if (otherArgs != null) {
-			// We want to add our args to the string just prior to the -jar args.
-			logger.info("	Adding other arguments " + otherArgs);
+			logger.info("	" + server.getTitle() + ": Adding other arguments " + otherArgs);
 			IConfiguredContainer cfgContainer = server.getContainer();
 			IExecProps execProps = cfgContainer.getExecProps();
-			String args = execProps.getArgs();
-			StringBuilder newArgs = new StringBuilder(args);
-			newArgs.insert(args.indexOf("-jar"), " " + otherArgs + " ");
-			execProps.setArgs(newArgs.toString());				
+			execProps.setArgs(withOtherArgs(execProps.getArgs(), otherArgs, server.getTitle()));				
 		}
 	}
 	
 	private void setWorkDirectory(IServer server, String serverName) throws SDKException {
-		logger.info("	Appending Server Name to Work Directory");
+		logger.info("	" + serverName + ": Appending Server Name to Work Directory");
 		IConfiguredContainer cfgContainer = server.getContainer();
 		IExecProps execProps = cfgContainer.getExecProps();
-		String argsWithWorkDir = execProps.getArgs().replace("%PJSContainerDir%work", "%PJSContainerDir%work/" + serverName);
-		execProps.setArgs(argsWithWorkDir);	
+		execProps.setArgs(withWorkDirectory(execProps.getArgs(), serverName));	
 	}
 	
-	private IEnterpriseNode getEnterpriseNode(String nodeName) throws SDKException {
-		if (nodeName == null) {
-			return (IEnterpriseNode) q.getFirstOfKind(IEnterpriseNode.KIND);
-		} else {
-			return (IEnterpriseNode) q.getObjectByName(nodeName, IEnterpriseNode.KIND);
+	// The with* methods return the command line with the setting applied.  They leave a command line
+	// that already has the setting unchanged so that reconciling a matching server is a no-op.
+	
+	static String withXMX(String args, String xmx) {
+		return (xmx != null) ? args.replaceAll("-Xmx\\S+", "-Xmx" + xmx) : args;
+	}
+	
+	/**
+	 * Puts the OTHER_COMMANDS just before -jar, replacing any option already there with the same key
+	 * (see optionKey) rather than adding a second one.  A marker listing the keys we set goes with them,
+	 * so options that have since been taken out of OTHER_COMMANDS can be found and removed.
+	 */
+	String withOtherArgs(String args, String otherArgs, String serverName) {
+		List<String> configured = splitOptions(otherArgs != null ? otherArgs : "");
+		Set<String> configuredKeys = new LinkedHashSet<String>();
+		for (String option : configured) {
+			configuredKeys.add(optionKey(option));
 		}
+		
+		int jar = args.indexOf("-jar");
+		String before = (jar >= 0) ? args.substring(0, jar) : args;
+		String after = (jar >= 0) ? args.substring(jar) : "";
+		
+		List<String> existing = splitOptions(before);
+		Set<String> managedKeys = new HashSet<String>();
+		for (String option : existing) {
+			if (option.startsWith(MANAGED_OPTIONS)) StringHelper.parseTo(managedKeys, option.substring(MANAGED_OPTIONS.length()));
+		}
+		if (configured.isEmpty() && managedKeys.isEmpty()) return args;
+		
+		List<String> options = new ArrayList<String>();
+		for (String option : existing) {
+			String key = optionKey(option);
+			if (option.startsWith(MANAGED_OPTIONS) || configuredKeys.contains(key)) continue;
+			if (managedKeys.contains(key)) {
+				logger.info("	" + serverName + ": Removing " + option + " which is no longer in OTHER_COMMANDS");
+				continue;
+			}
+			options.add(option);
+		}
+		options.addAll(configured);
+		if (!configured.isEmpty()) options.add(MANAGED_OPTIONS + StringHelper.join(configuredKeys.iterator(), ","));
+		
+		String newArgs = StringHelper.join(options.iterator(), " ");
+		return (after.length() > 0) ? newArgs + " " + after : newArgs;
+	}
+	
+	/**
+	 * Splits a command line on white space, keeping anything in double quotes together.
+	 */
+	static List<String> splitOptions(String args) {
+		List<String> options = new ArrayList<String>();
+		StringBuilder option = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < args.length(); i++) {
+			char ch = args.charAt(i);
+			if (ch == '"') quoted = !quoted;
+			if (!quoted && Character.isWhitespace(ch)) {
+				if (option.length() > 0) options.add(option.toString());
+				option.setLength(0);
+			} else {
+				option.append(ch);
+			}
+		}
+		if (option.length() > 0) options.add(option.toString());
+		return options;
+	}
+	
+	/**
+	 * The part of a JVM option that says what it sets, so that -Dname=a and -Dname=b, -XX:+Flag and
+	 * -XX:-Flag, -XX:Name=1 and -XX:Name=2 or -Xss1m and -Xss2m are seen as the same option.
+	 */
+	static String optionKey(String option) {
+		if (option.startsWith("-XX:")) {
+			String name = option.substring(4);
+			if (name.startsWith("+") || name.startsWith("-")) name = name.substring(1);
+			int equals = name.indexOf('=');
+			return "-XX:" + ((equals >= 0) ? name.substring(0, equals) : name);
+		}
+		if (option.matches("-X(ms|mx|ss|mn)\\S*")) return option.substring(0, 4);
+		if (option.startsWith("-X") && option.indexOf(':') > 0) return option.substring(0, option.indexOf(':'));
+		int equals = option.indexOf('=');
+		return (equals > 0) ? option.substring(0, equals) : option;
+	}
+	
+	static String withWorkDirectory(String args, String serverName) {
+		String workDir = "%PJSContainerDir%work/" + serverName;
+		if (args.indexOf(workDir) >= 0) return args;
+		return args.replace("%PJSContainerDir%work", workDir);
 	}
 	
-
 	public static void main(String[] args) {
 		APSBuilder builder = new APSBuilder();
 		try {
@@ -1,10 +1,12 @@
 package com.dft.boetools.programs;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
+import java.util.TimeZone;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -128,6 +130,8 @@ public abstract class AbstractProgram implements IProgramBase{
 	 *   server processing this program job and might need to exist on multiple servers in a cluster. 
 	 */
 	private void processKnownArguments() {
+		if (sharedLogging) return;
+		
 		if(arguments.containsKey(LOG4J_CONFIG_FILE)){
 			PropertyConfigurator.configure(arguments.getProperty(LOG4J_CONFIG_FILE));
 		}
@@ -174,37 +178,7 @@ public abstract class AbstractProgram implements IProgramBase{
 		//Logger.getRootLogger().setLevel(Level.DEBUG);
 		
 		try {
-			// Initialize State
-			arguments = getDefaultArguments();
-			if (arguments == null) arguments = new Properties(); // Just in case some idiot returns null from override
-						
-			// Process our startup arguments, and replace defaults with those from command line.
-			for (int i = 0; i < args.length; i++) {
-				String arg = args[i];
-				if (arg.indexOf("=") > 0) {
-					String key = arg.substring(0, arg.indexOf("="));
-					String value = arg.substring(arg.indexOf("=") + 1);
-					arguments.put(key.trim(), value.trim());
-				} else {
-					arguments.put(arg, arg);
-				}
-			}
-			
-			validateRequiredArguments();
-			processKnownArguments();
-			
-			//System.out.println("Test Print Statement");
-			
-			logger.info("Executing Program Object with following arguments:");
-			logger.info(arguments);
-						
-			// Now do the actual work that we've come to do.			
-			BOEHelper boe = new BOEHelper(session);	
-			q= new QueryHelper(boe);
-			runInternal(boe);
-			
-			logger.info("Completed execution of Program");
-			
+			execute(new BOEHelper(session), args);
 		
 		} catch (Exception e) {
 			logger.error(e.getMessage(), e);		
@@ -222,7 +196,189 @@ public abstract class AbstractProgram implements IProgramBase{
 		} 
 	}
 	
+	/**
+	 * Does the work of run on a session that is already logged on, leaving any failure to the
+	 * caller instead of reporting it to the job server.  ProgramDaemon uses this to run programs
+	 * on its pooled sessions.
+	 */
+	final void execute(BOEHelper boe, String[] args) throws Exception {
+		initialize(args);
+		
+		//System.out.println("Test Print Statement");
+		
+		logger.info("Executing Program Object with following arguments:");
+		logger.info(arguments);
+					
+		// Now do the actual work that we've come to do.			
+		connect(boe);
+		
+		// Incremental jobs pick up where the last successful run started, and only move on if this one succeeds
+		Date started = new Date();
+		WatermarkStore watermarks = null;
+		if (getBooleanArgument(INCREMENTAL)) {
+			if (!supportsIncremental()) throw new Exception(getClass().getName() + " does not support INCREMENTAL, it always processes everything");
+			watermarks = createWatermarkStore();
+			watermark = watermarks.read(getJobKey());
+			logger.info(watermark == null ? "No watermark found, processing everything" : "Processing changes since " + getWatermark());
+		}
+		
+		runInternal(boe);
+		
+		if (watermarks != null) {
+			watermarks.write(getJobKey(), started);
+			logger.info("Watermark advanced to " + started);
+		}
+		
+		logger.info("Completed execution of Program");
+	}
+	
+	/**
+	 * Parses the arguments as described for run, checks the required ones are present and
+	 * sets up logging.  Worker processes started by AbstractShardedProgram use this too.
+	 */
+	final void initialize(String[] args) throws Exception {
+		// Initialize State
+		arguments = getDefaultArguments();
+		if (arguments == null) arguments = new Properties(); // Just in case some idiot returns null from override
+					
+		// Process our startup arguments, and replace defaults with those from command line.
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.indexOf("=") > 0) {
+				String key = arg.substring(0, arg.indexOf("="));
+				String value = arg.substring(arg.indexOf("=") + 1);
+				arguments.put(key.trim(), value.trim());
+			} else {
+				arguments.put(arg, arg);
+			}
+		}
+		
+		validateRequiredArguments();
+		processKnownArguments();
+	}
+	
+	/**
+	 * Points the QueryHelper returned by Q() at the given session.
+	 */
+	final void connect(BOEHelper boe) {
+		q = new QueryHelper(boe);
+	}
+	
+	/**
+	 * @return the parsed arguments, including defaults.
+	 */
+	final Properties getArguments() {
+		return arguments;
+	}
+	
+	/**
+	 * The CompositeProgram running this program as one of its steps, or null.
+	 */
+	private CompositeProgram composite;
+	
+	final void setComposite(CompositeProgram composite) {
+		this.composite = composite;
+	}
+	
+	final CompositeProgram getComposite() {
+		return composite;
+	}
+	
+	/**
+	 * Set for programs run alongside others in a JVM whose log4j set up belongs to someone else,
+	 * i.e. by ProgramDaemon or CompositeProgram.  LOG4J_CONFIG_FILE and LOG4J_LEVEL are then
+	 * ignored, so that one program does not change the logging of the others.
+	 */
+	private boolean sharedLogging;
+	
+	final void setSharedLogging(boolean sharedLogging) {
+		this.sharedLogging = sharedLogging;
+	}
+	
 	private static final String JOB_NAME = "JOB_NAME";
+	static final String INCREMENTAL = "INCREMENTAL";
+	private static final String WATERMARK_FILE = "WATERMARK_FILE";
+	private static final String WATERMARK_OVERLAP_MINUTES = "WATERMARK_OVERLAP_MINUTES";
+	
+	/**
+	 * The start of the last successful run of an incremental job.
+	 */
+	private Date watermark;
+	
+	/**
+	 * Incremental jobs only work on what changed since their last successful run.  They are turned
+	 * on with the common arguments
+	 * 
+	 * INCREMENTAL=true
+	 *   Read the job's watermark before running and advance it to the start of this run once the
+	 *   run succeeds.  The first run has no watermark and processes everything.
+	 * 
+	 * WATERMARK_FILE=FILE_NAME
+	 *   Keep watermarks in this local file, which jobs may share.  Without it the watermark is kept
+	 *   in a custom property of the program object named by JOB_NAME.
+	 * 
+	 * WATERMARK_OVERLAP_MINUTES=5
+	 *   How far before the watermark to look, to allow for clocks that differ between this server
+	 *   and the CMS.  Objects saved by the job itself will look changed to the next run.
+	 *   
+	 * Subclasses filter their work with getChangedSinceCondition or getWatermark, and say so by
+	 * overriding supportsIncremental.  INCREMENTAL is refused for programs that do not.
+	 * @return the time to look for changes from, or null when this run should process everything.
+	 */
+	protected final Date getWatermark() {
+		if (watermark == null) return null;
+		String overlap = getArgument(WATERMARK_OVERLAP_MINUTES);
+		long minutes = overlap == null ? 5 : Integer.parseInt(overlap.trim());
+		return new Date(watermark.getTime() - minutes * 60000L);
+	}
+	
+	/**
+	 * @param property a date property such as SI_UPDATE_TS or SI_CREATION_TIME
+	 * @return a condition selecting objects with the property at or after the watermark, i.e.
+	 * SI_UPDATE_TS >= '2012.01.31.22.00.00', or null when this run should process everything.
+	 */
+	protected final String getChangedSinceCondition(String property) {
+		Date since = getWatermark();
+		if (since == null) return null;
+		return property + " >= '" + QueryHelper.formatDateForBOEQuery(since, TimeZone.getDefault()) + "'";
+	}
+	
+	/**
+	 * Subclasses that limit their work to what changed since getWatermark override this to return
+	 * true.  A program that returns false fails if INCREMENTAL is set, rather than processing
+	 * everything and still advancing the watermark.
+	 */
+	protected boolean supportsIncremental() {
+		return false;
+	}
+	
+	/**
+	 * Creates the store for the watermark of an incremental job.  Subclasses can override this to keep it somewhere else.
+	 */
+	protected WatermarkStore createWatermarkStore() throws Exception {
+		if (getArgument(WATERMARK_FILE) != null) return new FileWatermarkStore(new File(getArgument(WATERMARK_FILE)));
+		if (getArgument(JOB_NAME) != null) return new ProgramWatermarkStore(Q());
+		throw new Exception("INCREMENTAL needs either WATERMARK_FILE or JOB_NAME to keep the watermark");
+	}
+	
+	/**
+	 * @return the name the watermark is kept under, JOB_NAME if given or else the program class.
+	 */
+	private String getJobKey() {
+		String jobName = getArgument(JOB_NAME);
+		return jobName != null ? jobName : getClass().getName();
+	}
+	
+	/**
+	 * Lets shard workers use the coordinator's watermark.
+	 */
+	final Date getRawWatermark() {
+		return watermark;
+	}
+	
+	final void setRawWatermark(Date watermark) {
+		this.watermark = watermark;
+	}
 	
 	protected final Date getLastRuntime() throws SDKException{
 		String jobName = getArgument(JOB_NAME);
@@ -0,0 +1,400 @@
+package com.dft.boetools.programs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.crystaldecisions.sdk.exception.SDKException;
+import com.dft.boetools.BOEHelper;
+import com.dft.boetools.StringHelper;
+
+/**
+ * Base class for programs whose work can be split into independent shards, such as ranges of
+ * SI_IDs or batches of user IDs.  Subclasses say how the work is split in getShards and do the
+ * work for one shard in runShard.
+ *
+ * By default the shards are run one after another in the job's own JVM.  When WORKERS is set the
+ * program acts as a coordinator instead.  It creates a logon token, starts that many worker JVMs
+ * on the same machine (see ShardWorker) and hands each worker one shard at a time.  Workers log on
+ * with the token, so each one has its own CMS session without needing a password.  Their output is
+ * copied into this job's log and the result or failure of every shard is collected.  If a worker
+ * dies its shard is given to another worker once before it is counted as failed.  The job fails if
+ * any shard failed.
+ *
+ * Parameters...
+ *
+ * SHARDS: How many shards to split the work into.  Default value is 16.
+ *
+ * WORKERS: How many worker JVMs to start, 0 runs the shards in this JVM.  Default value is 0.
+ *
+ * WORKER_JVM_ARGS: Extra options for the worker JVMs separated by spaces, i.e. -Xmx512m.  Default is none.
+ *
+ * WORKER_CLASSPATH: The class path of the worker JVMs.  Default is the class path of this JVM.
+ *
+ * TOKEN_MINUTES: How long the workers' logon token is valid.  Default value is 60.
+ *
+ * WORKER_EXIT_SECONDS: How long a worker is given to exit once it has no more shards, or after its
+ * shard failed to come back, before it is destroyed.  Default value is 60.
+ * @author rwells
+ *
+ */
+public abstract class AbstractShardedProgram extends AbstractProgram {
+
+	static final String SHARDS = "SHARDS";
+	static final String WORKERS = "WORKERS";
+	static final String WORKER_JVM_ARGS = "WORKER_JVM_ARGS";
+	static final String WORKER_CLASSPATH = "WORKER_CLASSPATH";
+	static final String TOKEN_MINUTES = "TOKEN_MINUTES";
+	static final String WORKER_EXIT_SECONDS = "WORKER_EXIT_SECONDS";
+
+	@Override
+	protected void addDefaultArguments(Properties defaults) {
+		super.addDefaultArguments(defaults);
+		defaults.setProperty(SHARDS, "16");
+		defaults.setProperty(WORKERS, "0");
+		defaults.setProperty(WORKER_JVM_ARGS, "");
+		defaults.setProperty(WORKER_CLASSPATH, System.getProperty("java.class.path"));
+		defaults.setProperty(TOKEN_MINUTES, "60");
+		defaults.setProperty(WORKER_EXIT_SECONDS, "60");
+	}
+
+	/**
+	 * Splits the work into shards.  Each shard is a single line of text that runShard understands,
+	 * for example an SI_ID range from getIDRangeShards.
+	 * @param count the number of shards asked for with SHARDS, subclasses may return fewer or more
+	 */
+	protected abstract List<String> getShards(BOEHelper boe, int count) throws Exception;
+
+	/**
+	 * Does the work for one shard.  In a worker JVM the session and Q() belong to that worker.
+	 * @return a short description of the result for the coordinator's log
+	 */
+	protected abstract String runShard(BOEHelper boe, String shard) throws Exception;
+
+	@Override
+	protected final void runInternal(BOEHelper boe) throws Exception {
+		List<String> shards = getShards(boe, Math.max(1, getIntArgument(SHARDS)));
+		int workers = Math.min(getIntArgument(WORKERS), shards.size());
+		logger.info("Work split into " + shards.size() + " shards" + (workers > 0 ? " for " + workers + " worker processes" : ""));
+
+		Map<String, String> failures;
+		if (workers > 0) {
+			failures = runWorkers(boe, shards, workers);
+		} else {
+			failures = new LinkedHashMap<String, String>();
+			for (String shard : shards) {
+				try {
+					logger.info("Shard " + shard + ": " + runShard(boe, shard));
+				} catch (Exception e) {
+					logger.error("Shard " + shard + " failed: " + e.getMessage(), e);
+					failures.put(shard, e.getMessage());
+				}
+			}
+		}
+
+		logger.info((shards.size() - failures.size()) + " of " + shards.size() + " shards completed");
+		if (!failures.isEmpty()) throw new Exception(failures.size() + " shards failed: " + failures.keySet());
+	}
+
+	/**
+	 * Creates the token the workers log on with.  It is good for one logon per worker.
+	 */
+	protected String createWorkerToken(BOEHelper boe, int workers) throws SDKException {
+		return boe.getLogonToken(getIntArgument(TOKEN_MINUTES), workers);
+	}
+
+	/**
+	 * Releases the workers' token once they have all finished.
+	 */
+	protected void releaseWorkerToken(BOEHelper boe, String token) {
+		try {
+			boe.releaseToken(token);
+		} catch (SDKException e) {
+			logger.warn("Unable to release worker logon token: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Called in a worker JVM to log on with the coordinator's token.  Override together with
+	 * createWorkerToken and releaseWorkerToken to run workers against a stand-in for the CMS.
+	 */
+	protected BOEHelper logonWorker(String token) throws SDKException {
+		BOEHelper boe = new BOEHelper();
+		boe.logonWithToken(token);
+		return boe;
+	}
+
+	/**
+	 * Splits the SI_IDs that match a condition into count ranges of equal width.  A range is written
+	 * low-high and covers SI_ID > low AND SI_ID <= high, see getIDRangeCondition.
+	 * @param tables the table or tables to select from, i.e. CI_INFOOBJECTS
+	 * @param condition the where clause without the WHERE keyword, may be null
+	 */
+	protected final List<String> getIDRangeShards(String tables, String condition, int count) throws SDKException {
+		List<String> shards = new ArrayList<String>();
+		int[] bounds = Q().getIDBounds(tables, condition);
+		if (bounds == null) return shards;
+		long step = Math.max(1, ((long) bounds[1] - bounds[0] + count) / count);
+		for (long start = bounds[0] - 1L; start < bounds[1]; start += step) {
+			shards.add(start + "-" + Math.min(start + step, bounds[1]));
+		}
+		return shards;
+	}
+
+	/**
+	 * @return the where clause for a shard from getIDRangeShards, i.e. SI_ID > 100 AND SI_ID <= 200
+	 */
+	protected static String getIDRangeCondition(String shard) {
+		int dash = shard.indexOf('-', 1);
+		if (dash < 0) throw new IllegalArgumentException("Not an SI_ID range: " + shard);
+		int low = Integer.parseInt(shard.substring(0, dash).trim());
+		int high = Integer.parseInt(shard.substring(dash + 1).trim());
+		return "SI_ID > " + low + " AND SI_ID <= " + high;
+	}
+
+	/**
+	 * Splits a list of IDs, such as user IDs, into count shards of comma separated IDs.  Use
+	 * getIDList or StringHelper.inClause(shard) in runShard.
+	 */
+	protected static List<String> getIDListShards(Collection<Integer> ids, int count) {
+		List<String> shards = new ArrayList<String>();
+		int size = Math.max(1, (ids.size() + count - 1) / count);
+		StringBuilder shard = new StringBuilder();
+		int inShard = 0;
+		for (Iterator<Integer> i = ids.iterator(); i.hasNext(); ) {
+			if (inShard > 0) shard.append(',');
+			shard.append(i.next());
+			if (++inShard == size || !i.hasNext()) {
+				shards.add(shard.toString());
+				shard.setLength(0);
+				inShard = 0;
+			}
+		}
+		return shards;
+	}
+
+	/**
+	 * @return the IDs in a shard from getIDListShards
+	 */
+	protected static List<Integer> getIDList(String shard) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (String id : StringHelper.parseTo(shard)) {
+			if (id.length() > 0) ids.add(Integer.valueOf(id));
+		}
+		return ids;
+	}
+
+	/**
+	 * Starts the workers and drives each of them from its own thread until the shards run out.
+	 * @return the failed shards and why they failed
+	 */
+	private Map<String, String> runWorkers(BOEHelper boe, List<String> shards, int workers) throws Exception {
+		final String token = createWorkerToken(boe, workers);
+		final ShardQueue queue = new ShardQueue(shards);
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		List<Process> processes = new ArrayList<Process>();
+		List<Future<Object>> drivers = new ArrayList<Future<Object>>();
+		boolean completed = false;
+		try {
+			for (int i = 0; i < workers; i++) {
+				processes.add(startWorker());
+			}
+
+			for (int i = 0; i < workers; i++) {
+				final int worker = i + 1;
+				final Process process = processes.get(i);
+				drivers.add(pool.submit(new Callable<Object>() {
+					public Object call() throws Exception {
+						drive(worker, process, token, queue);
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> driver : drivers) {
+				try {
+					driver.get();
+				} catch (ExecutionException e) {
+					throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+				}
+			}
+			completed = true;
+		} finally {
+			if (!completed) {
+				// Stop every worker before the token they logged on with is released
+				for (Future<Object> driver : drivers) {
+					driver.cancel(true);
+				}
+				for (Process process : processes) {
+					process.destroy();
+				}
+			}
+			pool.shutdownNow();
+			if (!pool.awaitTermination(getIntArgument(WORKER_EXIT_SECONDS), TimeUnit.SECONDS)) {
+				logger.warn("Worker drivers did not stop in time");
+			}
+			releaseWorkerToken(boe, token);
+		}
+		return queue.finish();
+	}
+
+	private Process startWorker() throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		for (String option : getArgument(WORKER_JVM_ARGS).trim().split("\\s+")) {
+			if (option.length() > 0) command.add(option);
+		}
+		command.add("-cp");
+		command.add(getArgument(WORKER_CLASSPATH));
+		command.add(ShardWorker.class.getName());
+		command.add(getClass().getName());
+
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		return builder.start();
+	}
+
+	/**
+	 * Sends the token and arguments to a worker, then feeds it shards one at a time.  The token
+	 * and arguments go over the worker's standard input so they do not show up in process lists.
+	 */
+	private void drive(int worker, Process process, String token, ShardQueue queue) throws Exception {
+		BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		PrintWriter out = new PrintWriter(process.getOutputStream(), true);
+		String shard = null;
+		try {
+			out.println(token);
+			for (Map.Entry<Object, Object> argument : getArguments().entrySet()) {
+				if (WORKERS.equals(argument.getKey()) || INCREMENTAL.equals(argument.getKey())) continue;
+				out.println(argument.getKey() + "=" + argument.getValue());
+			}
+			if (getRawWatermark() != null) out.println(ShardWorker.WATERMARK + "=" + getRawWatermark().getTime());
+			out.println();
+
+			while ((shard = queue.take()) != null) {
+				out.println(ShardWorker.SHARD + shard);
+				String reply = readReply(worker, in);
+				if (reply == null) break;
+				if (reply.startsWith(ShardWorker.DONE)) {
+					logger.info("Shard " + shard + " on worker " + worker + ": " + reply.substring(ShardWorker.DONE.length()));
+				} else {
+					String message = reply.substring(Math.min(reply.length(), ShardWorker.FAILED.length()));
+					logger.error("Shard " + shard + " failed on worker " + worker + ": " + message);
+					queue.failed(shard, message);
+				}
+				shard = null;
+			}
+			if (shard == null) {
+				out.println(ShardWorker.EXIT);
+				readReply(worker, in);
+			}
+		} finally {
+			out.close();
+			int status = waitFor(worker, process);
+			in.close();
+			if (shard != null) {
+				logger.error("Worker " + worker + " exited with status " + status + " while running shard " + shard);
+				queue.retry(shard, "Worker exited with status " + status);
+			} else if (status != 0) {
+				logger.warn("Worker " + worker + " exited with status " + status);
+			}
+		}
+	}
+
+	/**
+	 * Waits for a worker to exit, destroying it if it has not within WORKER_EXIT_SECONDS.  Java 5
+	 * has no waitFor with a timeout, so this polls.
+	 * @return the worker's exit status
+	 */
+	private int waitFor(int worker, Process process) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + getIntArgument(WORKER_EXIT_SECONDS) * 1000L;
+		while (true) {
+			try {
+				return process.exitValue();
+			} catch (IllegalThreadStateException e) {
+				// Still running
+			}
+			if (System.currentTimeMillis() >= deadline) {
+				logger.warn("Worker " + worker + " did not exit, destroying it");
+				process.destroy();
+				return process.waitFor();
+			}
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				process.destroy();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Copies the worker's output into the log until it replies to a shard.
+	 * @return the reply, or null if the worker has exited
+	 */
+	private String readReply(int worker, BufferedReader in) throws IOException {
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.startsWith(ShardWorker.REPLY)) return line;
+			logger.info("[worker " + worker + "] " + line);
+		}
+		return null;
+	}
+
+	/**
+	 * The shards waiting for a worker, and the ones that failed.
+	 */
+	private static final class ShardQueue {
+		private final LinkedList<String> waiting;
+		private final Set<String> retried = new HashSet<String>();
+		private final Map<String, String> failures = new LinkedHashMap<String, String>();
+
+		ShardQueue(List<String> shards) {
+			waiting = new LinkedList<String>(shards);
+		}
+
+		synchronized String take() {
+			return waiting.poll();
+		}
+
+		synchronized void failed(String shard, String message) {
+			failures.put(shard, message);
+		}
+
+		/**
+		 * Puts back a shard whose worker died, unless it has already been tried twice.
+		 */
+		synchronized void retry(String shard, String message) {
+			if (retried.add(shard)) waiting.addFirst(shard);
+			else failures.put(shard, message);
+		}
+
+		/**
+		 * Fails the shards put back after every other worker had finished.
+		 */
+		synchronized Map<String, String> finish() {
+			for (String shard : waiting) {
+				failures.put(shard, "No worker left to run it");
+			}
+			waiting.clear();
+			return failures;
+		}
+	}
+}
@@ -1,11 +1,13 @@
 package com.dft.boetools.programs;
 
+import java.io.File;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
 
 import com.crystaldecisions.sdk.exception.SDKException;
 import com.crystaldecisions.sdk.occa.infostore.CePropertyID;
@@ -14,6 +16,8 @@ import com.crystaldecisions.sdk.occa.infostore.IInfoObjects;
 import com.crystaldecisions.sdk.plugin.desktop.user.IUser;
 import com.crystaldecisions.sdk.properties.IProperties;
 import com.dft.boetools.BOEHelper;
+import com.dft.boetools.MembershipGraph;
+import com.dft.boetools.MembershipSnapshot;
 import com.dft.boetools.QueryHelper;
 import com.dft.boetools.StringHelper;
 
@@ -27,8 +31,20 @@ import com.dft.boetools.StringHelper;
  This parameter allows the administrator running the program to Specify the users
  who will be manipulated by groups.  The parameter value can be a comma separated list
  of User Group names.  Users who are direct members of one or more of these 
- groups will be affected (Note users must be direct members of the group).  
- This parameter has a default value of "Everyone".
+ groups will be affected (Note users must be direct members of the group unless
+ INCLUDE_SUBGROUPS is set).  This parameter has a default value of "Everyone".
+  
+ INCLUDE_SUBGROUPS:
+ This optional boolean parameter defaults to false.  If set to true users in groups nested
+ anywhere under the USER_GROUPS are affected as well.  Membership is then resolved from a
+ MembershipGraph loaded once per run, or once for all the steps of a CompositeProgram, instead
+ of with a query per group.
+  
+ MEMBERSHIP_SNAPSHOT:
+ This optional parameter is the path of a local file that keeps a copy of group membership
+ between runs (see MembershipSnapshot).  When set, USER_GROUPS are resolved from the snapshot after
+ reading only the users and groups that changed since it was last refreshed.  Jobs on the same
+ server can share one file.
   
  USERS:		
  This parameter allows the administrator running the program to specify a specific
@@ -60,6 +76,11 @@ import com.dft.boetools.StringHelper;
  be determined.  If not specified a default value for the last runtime will be used.  This will
  be JAN 1st 1970.  This parameter is built into the base AbstractProgram getLastRuntime Method
   
+ INCREMENTAL:
+ When set to true, runs after the first only include users created since the last successful
+ run, as if NEW_USERS_ONLY were set, but the time comes from the job's watermark instead of the
+ instance history (see AbstractProgram getWatermark).
+  
  @author roy.wells
  
  */
@@ -69,6 +90,11 @@ public abstract class AbstractUserManipulatingProgram extends AbstractProgram {
 	protected static final String USERS = "USERS";
 	protected static final String EXCLUDED_USERS = "EXCLUDED_USERS";
 	protected static final String NEW_USERS_ONLY = "NEW_USERS_ONLY";
+	protected static final String INCLUDE_SUBGROUPS = "INCLUDE_SUBGROUPS";
+	protected static final String MEMBERSHIP_SNAPSHOT = "MEMBERSHIP_SNAPSHOT";
+	
+	// Loaded by the first getUserIDS of a run that needs it
+	private MembershipGraph membership;
 	
 	//protected static final String DEFAULT_USER_GROUP = "Everyone";
 
@@ -77,8 +103,17 @@ public abstract class AbstractUserManipulatingProgram extends AbstractProgram {
 		super.addDefaultArguments(defaults);
 		defaults.setProperty(USER_GROUPS, "");
 		defaults.setProperty(NEW_USERS_ONLY, Boolean.FALSE.toString());
+		defaults.setProperty(INCLUDE_SUBGROUPS, Boolean.FALSE.toString());
 	}	
 
+	/**
+	 * getUserIDS only picks up users created since the watermark.  Subclasses that do not select
+	 * their users with getUserIDS should return false.
+	 */
+	@Override
+	protected boolean supportsIncremental() {
+		return true;
+	}
 		 
 	@Override
 	protected void runInternal(BOEHelper boe) throws Exception {
@@ -97,10 +132,28 @@ public abstract class AbstractUserManipulatingProgram extends AbstractProgram {
 	 * This method will use the three parameters USER_GROUPS, USERS, EXCLUDED_USERS to
 	 * generate a list of User ID's that can then be processed to do whatever work
 	 * this class is designed to do.
+	 * When the program is a step of a CompositeProgram the users are resolved once for all the
+	 * steps that select them with the same parameters.
 	 * @return
 	 * @throws SDKException
 	 */
 	protected Set<Integer> getUserIDS() throws SDKException {
+		// Incremental runs after the first only pick up users created since the watermark
+		boolean newUsersOnly = getBooleanArgument(NEW_USERS_ONLY) || getWatermark() != null;
+		final Date lrt = newUsersOnly ? (getWatermark() != null ? getWatermark() : getLastRuntime()) : null;
+		
+		CompositeProgram composite = getComposite();
+		if (composite == null) return getUserIDS(lrt);
+		String key = getArgument(USER_GROUPS) + "|" + getArgument(USERS) + "|" + getArgument(EXCLUDED_USERS) + "|" 
+				+ getBooleanArgument(INCLUDE_SUBGROUPS) + "|" + getArgument(MEMBERSHIP_SNAPSHOT) + "|" + (lrt == null ? "" : String.valueOf(lrt.getTime()));
+		return new HashSet<Integer>(composite.getUserSet(key, new Callable<Set<Integer>>() {
+			public Set<Integer> call() throws SDKException {
+				return getUserIDS(lrt);
+			}
+		}));
+	}
+	
+	private Set<Integer> getUserIDS(Date lrt) throws SDKException {
 		String countSelect = "SELECT COUNT(SI_ID) ";
 		String normalSelect = "SELECT TOP 1000 SI_ID ";
 		String fromPfx = "FROM CI_SYSTEMOBJECTS WHERE children(\"si_name = 'usergroup-user'\", \"si_name = '";
@@ -115,10 +168,8 @@ public abstract class AbstractUserManipulatingProgram extends AbstractProgram {
 		}
 		
 		
-		boolean newUsersOnly = getBooleanArgument(NEW_USERS_ONLY);
 		String newUsersCondition = "";
-		if (newUsersOnly) {
-			Date lrt = getLastRuntime();
+		if (lrt != null) {
 			String lrtUTC = QueryHelper.formatDateForBOEQuery(lrt, TimeZone.getDefault());			
 			newUsersCondition += " AND SI_CREATION_TIME >= '" +lrtUTC+ "' ";		
 			userSelect += newUsersCondition;
@@ -141,6 +192,10 @@ public abstract class AbstractUserManipulatingProgram extends AbstractProgram {
 
 		Set<Integer> userIDS = new HashSet<Integer>();
 		
+		if (getBooleanArgument(INCLUDE_SUBGROUPS) || getArgument(MEMBERSHIP_SNAPSHOT) != null) {
+			userIDS.addAll(getGraphUserIDS(userGroupsList, getBooleanArgument(INCLUDE_SUBGROUPS), lrt, excluded));
+			userGroupsList = new String[0];
+		}
 		
 		// Iterate through the list of Groups and query for the users that are members of that group
 		for (int i = 0; i < userGroupsList.length; i++) {
@@ -176,4 +231,55 @@ public abstract class AbstractUserManipulatingProgram extends AbstractProgram {
 		
 		return userIDS;
 	}
+	
+	/**
+	 * Resolves the users of the groups from the MembershipSnapshot if there is one, or else from the shared MembershipGraph.
+	 * @param nested true to include the users of all the groups nested under the groups
+	 * @param createdAfter if not null only users created at or after this time are returned
+	 * @param excluded comma separated names of users to leave out, may be null
+	 */
+	private Set<Integer> getGraphUserIDS(String[] groups, boolean nested, Date createdAfter, String excluded) throws SDKException {
+		String snapshot = getArgument(MEMBERSHIP_SNAPSHOT);
+		MembershipGraph graph;
+		try {
+			if (snapshot != null) {
+				graph = MembershipSnapshot.getGraph(new File(snapshot), Q());
+			} else if (getComposite() != null) {
+				graph = getComposite().getMembershipGraph(Q());
+			} else {
+				if (membership == null) membership = MembershipGraph.load(Q());
+				graph = membership;
+			}
+		} catch (SDKException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException("Unable to load group membership", e);
+		}
+		
+		Set<Integer> userIDS = new HashSet<Integer>();
+		for (String group : groups) {
+			if (group.length() == 0) continue;
+			int groupID = graph.getGroupID(group);
+			if (groupID < 0) {
+				logger.warn("No user group named " + group);
+				continue;
+			}
+			userIDS.addAll(nested ? graph.getUserIDs(groupID) : graph.getDirectUserIDs(groupID));
+		}
+		
+		if (createdAfter != null) {
+			for (Iterator<Integer> i = userIDS.iterator(); i.hasNext();) {
+				if (graph.getCreationTime(i.next().intValue()) < createdAfter.getTime()) i.remove();
+			}
+		}
+		
+		if (excluded != null) {
+			String excludedSelect = "SELECT SI_ID FROM CI_SYSTEMOBJECTS WHERE SI_KIND = 'User' AND SI_NAME IN " + StringHelper.inClause(excluded.split(StringHelper.COMMA_SEPARATED_VALUES));
+			IInfoObjects excludedUsers = Q().executeRawQuery(excludedSelect);
+			for (Iterator itr = excludedUsers.iterator(); itr.hasNext();) {
+				userIDS.remove(Integer.valueOf(((IInfoObject) itr.next()).getID()));
+			}
+		}
+		return userIDS;
+	}
 }
@@ -0,0 +1,304 @@
+package com.dft.boetools.programs;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.crystaldecisions.sdk.exception.SDKException;
+import com.dft.boetools.BOEHelper;
+import com.dft.boetools.MembershipGraph;
+import com.dft.boetools.QueryHelper;
+import com.dft.boetools.SessionPool;
+import com.dft.boetools.StringHelper;
+
+/**
+ * Runs several other programs as the steps of one job, in the same JVM, so that a chain of
+ * maintenance jobs logs on once and resolves the same users once.  Steps that do not depend on
+ * each other run at the same time, each on its own session from a pool that starts with the
+ * job's own session and logs on more with a token as needed.  Steps that are
+ * AbstractUserManipulatingPrograms share the user sets they resolve and the MembershipGraph
+ * they resolve nested groups with, both kept only for the run.
+ *
+ * When a step fails the steps that depend on it are skipped, the others still run, and the job
+ * fails at the end.
+ *
+ * Parameters...
+ *
+ * STEPS: Required.  A comma separated list of steps, each a name and a program class separated
+ * by a colon.  Classes without a package are taken to be in com.dft.boetools.programs.
+ *
+ * name.AFTER: The names of the steps that must complete before the step named name starts.
+ *
+ * name.KEY=VALUE: The argument KEY=VALUE for the step named name.  Steps only get the arguments
+ * given for them this way.  They log with the job's LOG4J_CONFIG_FILE and LOG4J_LEVEL, and
+ * ignore their own.
+ *
+ * PARALLEL_STEPS: The most steps to run at the same time.  Default value is 2.
+ *
+ * TOKEN_MINUTES: How long the tokens used to log on extra sessions are valid.  Default value is 60.
+ *
+ * For example the nightly clean up
+ *
+ * "STEPS=kill:SessionKiller,inbox:InboxCleaner,old:OldInstanceDeleter,keys:KeyWordSetter,prefs:WebiPreferenceSetter"
+ * inbox.AFTER=kill old.AFTER=inbox keys.AFTER=old prefs.AFTER=kill
+ * inbox.INBOX_LIMIT=100 old.SHARDS=32 prefs.USER_GROUPS=Everyone
+ *
+ * runs SessionKiller first, then InboxCleaner, OldInstanceDeleter and KeyWordSetter in turn
+ * alongside WebiPreferenceSetter.
+ * @author rwells
+ *
+ */
+public class CompositeProgram extends AbstractProgram {
+
+	static final String STEPS = "STEPS";
+	static final String AFTER = "AFTER";
+	static final String PARALLEL_STEPS = "PARALLEL_STEPS";
+	static final String TOKEN_MINUTES = "TOKEN_MINUTES";
+
+	/**
+	 * User sets resolved by the steps, see getUserSet.
+	 */
+	private final ConcurrentHashMap<String, FutureTask<Set<Integer>>> userSets = new ConcurrentHashMap<String, FutureTask<Set<Integer>>>();
+
+	/**
+	 * Group membership loaded by the first step that needs it, see getMembershipGraph.
+	 */
+	private MembershipGraph membership;
+
+	@Override
+	protected void addDefaultArguments(Properties defaults) {
+		super.addDefaultArguments(defaults);
+		defaults.setProperty(PARALLEL_STEPS, "2");
+		defaults.setProperty(TOKEN_MINUTES, "60");
+	}
+
+	@Override
+	protected void addRequiredArguments(List<String> required) {
+		super.addRequiredArguments(required);
+		required.add(STEPS);
+	}
+
+	/**
+	 * A program to run and the steps it waits for.
+	 */
+	private static class Step {
+		final String name;
+		final String program;
+		final Set<String> after = new LinkedHashSet<String>();
+		final List<String> dependents = new ArrayList<String>();
+		final List<String> arguments = new ArrayList<String>();
+		int waiting;
+
+		Step(String name, String program) {
+			this.name = name;
+			this.program = program;
+		}
+	}
+
+	@Override
+	protected void runInternal(BOEHelper boe) throws Exception {
+		Map<String, Step> steps = getSteps();
+		int parallel = Math.max(1, Math.min(getIntArgument(PARALLEL_STEPS), steps.size()));
+
+		SessionPool sessions = new SessionPool(SessionPool.token(boe, getIntArgument(TOKEN_MINUTES)), parallel);
+		sessions.add(boe);
+		ExecutorService pool = Executors.newFixedThreadPool(parallel);
+		Map<String, String> failed = new LinkedHashMap<String, String>();
+		Set<String> skipped = new LinkedHashSet<String>();
+		try {
+			CompletionService<String> completed = new ExecutorCompletionService<String>(pool);
+			Map<Future<String>, Step> running = new HashMap<Future<String>, Step>();
+			for (Step step : steps.values()) {
+				if (step.waiting == 0) running.put(completed.submit(createTask(step, sessions)), step);
+			}
+
+			while (!running.isEmpty()) {
+				Future<String> future = completed.take();
+				Step step = running.remove(future);
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					logger.error("Step " + step.name + " failed: " + cause.getMessage(), cause);
+					failed.put(step.name, String.valueOf(cause.getMessage()));
+					skip(step, steps, skipped);
+					continue;
+				}
+				for (String name : step.dependents) {
+					Step dependent = steps.get(name);
+					if (--dependent.waiting == 0 && !skipped.contains(name)) {
+						running.put(completed.submit(createTask(dependent, sessions)), dependent);
+					}
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			sessions.close();
+			userSets.clear();
+			clearMembershipGraph();
+		}
+
+		logger.info((steps.size() - failed.size() - skipped.size()) + " of " + steps.size() + " steps completed");
+		if (!skipped.isEmpty()) logger.warn("Skipped steps " + skipped + " because the steps they wait for failed");
+		if (!failed.isEmpty()) throw new Exception(failed.size() + " steps failed: " + failed);
+	}
+
+	/**
+	 * Marks everything that waits on a failed step, directly or not, as skipped.
+	 */
+	private void skip(Step failed, Map<String, Step> steps, Set<String> skipped) {
+		for (String name : failed.dependents) {
+			if (skipped.add(name)) skip(steps.get(name), steps, skipped);
+		}
+	}
+
+	private Callable<String> createTask(final Step step, final SessionPool sessions) {
+		return new Callable<String>() {
+			public String call() throws Exception {
+				AbstractProgram program = (AbstractProgram) Class.forName(step.program).newInstance();
+				program.setComposite(CompositeProgram.this);
+				program.setSharedLogging(true);
+				long start = System.currentTimeMillis();
+				logger.info("Starting step " + step.name + " (" + step.program + ")");
+				BOEHelper boe = sessions.borrow();
+				try {
+					program.execute(boe, step.arguments.toArray(new String[step.arguments.size()]));
+				} finally {
+					sessions.release(boe);
+				}
+				logger.info("Completed step " + step.name + " in " + (System.currentTimeMillis() - start) + " ms");
+				return step.name;
+			}
+		};
+	}
+
+	/**
+	 * Reads the steps, their arguments and what they wait for from the job's arguments, and checks they form a DAG.
+	 */
+	private Map<String, Step> getSteps() throws Exception {
+		Map<String, Step> steps = new LinkedHashMap<String, Step>();
+		for (String definition : getListArgument(STEPS)) {
+			int colon = definition.indexOf(':');
+			if (colon <= 0) throw new Exception("Step " + definition + " should be name:ProgramClass");
+			String name = definition.substring(0, colon).trim();
+			String program = definition.substring(colon + 1).trim();
+			if (program.indexOf('.') < 0) program = ProgramDaemon.PROGRAM_PACKAGE + program;
+			if (steps.put(name, new Step(name, program)) != null) throw new Exception("More than one step named " + name);
+		}
+
+		Properties arguments = getArguments();
+		for (Enumeration<?> keys = arguments.propertyNames(); keys.hasMoreElements();) {
+			String key = (String) keys.nextElement();
+			int dot = key.indexOf('.');
+			Step step = dot > 0 ? steps.get(key.substring(0, dot)) : null;
+			if (step == null) continue;
+			String stepKey = key.substring(dot + 1);
+			String value = arguments.getProperty(key);
+			if (AFTER.equals(stepKey)) {
+				step.after.addAll(StringHelper.parseTo(new ArrayList<String>(), value));
+			} else {
+				// Flags are parsed with the key as their value, which is the prefixed key here
+				step.arguments.add(key.equals(value) ? stepKey : stepKey + "=" + value);
+			}
+		}
+		for (Step step : steps.values()) {
+			for (String name : step.after) {
+				Step before = steps.get(name);
+				if (before == null) throw new Exception("Step " + step.name + " waits for " + name + " which is not one of the STEPS");
+				before.dependents.add(step.name);
+				step.waiting++;
+			}
+		}
+		checkForCycles(steps);
+		return steps;
+	}
+
+	/**
+	 * Removes steps with nothing left to wait for until none are left, which only fails if some steps wait on each other.
+	 */
+	private static void checkForCycles(Map<String, Step> steps) throws Exception {
+		Map<String, Integer> waiting = new HashMap<String, Integer>();
+		List<Step> ready = new ArrayList<Step>();
+		for (Step step : steps.values()) {
+			waiting.put(step.name, Integer.valueOf(step.waiting));
+			if (step.waiting == 0) ready.add(step);
+		}
+		int done = 0;
+		while (!ready.isEmpty()) {
+			Step step = ready.remove(ready.size() - 1);
+			done++;
+			for (String name : step.dependents) {
+				int left = waiting.get(name).intValue() - 1;
+				waiting.put(name, Integer.valueOf(left));
+				if (left == 0) ready.add(steps.get(name));
+			}
+		}
+		if (done < steps.size()) {
+			Set<String> cycle = new LinkedHashSet<String>();
+			for (Map.Entry<String, Integer> entry : waiting.entrySet()) {
+				if (entry.getValue().intValue() > 0) cycle.add(entry.getKey());
+			}
+			throw new Exception("Steps " + cycle + " wait for each other");
+		}
+	}
+
+	/**
+	 * Returns the user set resolved for a key, resolving it the first time it is asked for.  A
+	 * step asking while another resolves the same set waits for it instead of resolving it again.
+	 * @param key the parameters that decide the users, see AbstractUserManipulatingProgram.getUserIDS
+	 */
+	Set<Integer> getUserSet(String key, Callable<Set<Integer>> resolver) throws SDKException {
+		FutureTask<Set<Integer>> task = new FutureTask<Set<Integer>>(resolver);
+		FutureTask<Set<Integer>> existing = userSets.putIfAbsent(key, task);
+		if (existing == null) {
+			task.run();
+		} else {
+			logger.debug("Reusing the users resolved by an earlier step");
+			task = existing;
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted resolving users", e);
+		} catch (ExecutionException e) {
+			// A failure is not kept, the next step to ask tries again
+			userSets.remove(key, task);
+			if (e.getCause() instanceof SDKException) throw (SDKException) e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("Unable to resolve users", e.getCause());
+		}
+	}
+
+	/**
+	 * Returns the membership graph for this run, loading it with the session of the step that asks first.
+	 */
+	synchronized MembershipGraph getMembershipGraph(QueryHelper q) throws Exception {
+		if (membership == null) membership = MembershipGraph.load(q);
+		return membership;
+	}
+
+	private synchronized void clearMembershipGraph() {
+		membership = null;
+	}
+
+	public static void main(String[] args) {
+		CompositeProgram a = new CompositeProgram();
+		a.test(args);
+	}
+}
@@ -0,0 +1,112 @@
+package com.dft.boetools.programs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Keeps watermarks in a local properties file, one line per job holding milliseconds since the
+ * epoch.  Several jobs can share a file.  Reads and writes hold a lock on a .lock file next to it,
+ * and the file is replaced through a temporary file.  File locks are held by the whole JVM, so
+ * jobs running in the same JVM, such as the steps of a CompositeProgram or the requests of a
+ * ProgramDaemon, also take turns on a lock object kept for each file.
+ * @author rwells
+ *
+ */
+public class FileWatermarkStore implements WatermarkStore {
+	private static final Map<String, Object> locks = new HashMap<String, Object>();
+
+	private final File file;
+
+	public FileWatermarkStore(File file) {
+		this.file = file;
+	}
+
+	public Date read(String job) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.isDirectory()) return null;
+		synchronized (getJvmLock()) {
+			RandomAccessFile lockFile = lock();
+			try {
+				String value = load().getProperty(job);
+				return value == null ? null : new Date(Long.parseLong(value.trim()));
+			} finally {
+				lockFile.close();
+			}
+		}
+	}
+
+	public void write(String job, Date watermark) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null) dir.mkdirs();
+		synchronized (getJvmLock()) {
+			RandomAccessFile lockFile = lock();
+			try {
+				Properties watermarks = load();
+				watermarks.setProperty(job, String.valueOf(watermark.getTime()));
+
+				File temp = File.createTempFile(file.getName(), ".tmp", dir);
+				FileOutputStream out = new FileOutputStream(temp);
+				try {
+					watermarks.store(out, "Job watermarks");
+				} finally {
+					out.close();
+				}
+				if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+					temp.delete();
+					throw new IOException("Unable to replace " + file);
+				}
+			} finally {
+				lockFile.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the object jobs in this JVM synchronize on before locking the file.
+	 */
+	private Object getJvmLock() throws IOException {
+		String path = file.getCanonicalPath();
+		synchronized (locks) {
+			Object lock = locks.get(path);
+			if (lock == null) {
+				lock = new Object();
+				locks.put(path, lock);
+			}
+			return lock;
+		}
+	}
+
+	/**
+	 * Locks the .lock file, which is unlocked by closing it.
+	 */
+	private RandomAccessFile lock() throws IOException {
+		RandomAccessFile lockFile = new RandomAccessFile(new File(file.getPath() + ".lock"), "rw");
+		try {
+			lockFile.getChannel().lock();
+			return lockFile;
+		} catch (IOException e) {
+			lockFile.close();
+			throw e;
+		}
+	}
+
+	private Properties load() throws IOException {
+		Properties watermarks = new Properties();
+		if (file.isFile()) {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				watermarks.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return watermarks;
+	}
+}
@@ -1,24 +1,49 @@
 package com.dft.boetools.programs;
 
+import java.util.Properties;
+
 import com.crystaldecisions.sdk.occa.infostore.IInfoObject;
+import com.crystaldecisions.sdk.occa.infostore.IInfoObjects;
 import com.dft.boetools.BOEHelper;
 import com.dft.boetools.QueryHelper;
-import com.dft.boetools.QueryHelper.InfoObjectWorker;
+import com.dft.boetools.QueryHelper.InfoObjectsWorker;
 
+/**
+ * Sets the keyword of favorites folders that have none to the folder name.  The folders are
+ * swept in SI_ID ranges on THREADS threads at once, default value is 4.  With INCREMENTAL set only
+ * folders updated since the last successful run are checked.
+ */
 public class KeyWordSetter extends AbstractProgram {
 
-	private static final String qryStr = "query://{SELECT SI_NAME, SI_KIND, SI_KEYWORD FROM CI_INFOOBJECTS WHERE SI_KIND='FavoritesFolder' AND SI_KEYWORD IS NULL}";
+	private static final String THREADS = "THREADS";
+	
+	@Override
+	protected void addDefaultArguments(Properties defaults) {
+		super.addDefaultArguments(defaults);
+		defaults.setProperty(THREADS, "4");
+	}
 	
+	@Override
+	protected boolean supportsIncremental() {
+		return true;
+	}
 	
 	@Override
 	protected void runInternal(BOEHelper boe) throws Exception {
 		QueryHelper q = new QueryHelper(boe);
-		q.forEachResult(qryStr, new InfoObjectWorker() {
+		String condition = "SI_KIND='FavoritesFolder' AND SI_KEYWORD IS NULL";
+		String changed = getChangedSinceCondition("SI_UPDATE_TS");
+		if (changed != null) condition += " AND " + changed;
+		q.forEachPageByIDParallel("SI_ID, SI_NAME, SI_KIND, SI_KEYWORD", "CI_INFOOBJECTS",
+				condition, getIntArgument(THREADS), new InfoObjectsWorker() {
 			
-			public void doWork(IInfoObject o) throws Exception {
-				logger.debug("Setting Keyword = " + o.getTitle());
-				o.setKeyword(o.getTitle());
-				o.save();			
+			public void doWork(IInfoObjects page) throws Exception {
+				for (Object next : page) {
+					IInfoObject o = (IInfoObject) next;
+					logger.debug("Setting Keyword = " + o.getTitle());
+					o.setKeyword(o.getTitle());
+					o.save();
+				}
 			}
 		});
 	}
@@ -1,25 +1,48 @@
 package com.dft.boetools.programs;
 
+import java.util.List;
+import java.util.Properties;
+
 import com.crystaldecisions.sdk.occa.infostore.IInfoObject;
+import com.crystaldecisions.sdk.occa.infostore.IInfoObjects;
 import com.dft.boetools.BOEHelper;
-import com.dft.boetools.QueryHelper;
-import com.dft.boetools.QueryHelper.InfoObjectWorker;
+import com.dft.boetools.QueryHelper.InfoObjectsWorker;
+
+/**
+ * Deletes instances created before 2012/01/01.  The repository is split into SI_ID range shards and each
+ * shard is swept on THREADS threads at once, default value is 4.  Set WORKERS to sweep several shards at
+ * once in separate processes, see AbstractShardedProgram.
+ */
+public class OldInstanceDeleter extends AbstractShardedProgram {
+
+	private static final String THREADS = "THREADS";
+	private static final String CONDITION = "SI_CREATION_TIME <= '2012/01/01/01/00/00' AND SI_INSTANCE = 1";
+
+	@Override
+	protected void addDefaultArguments(Properties defaults) {
+		super.addDefaultArguments(defaults);
+		defaults.setProperty(THREADS, "4");
+	}
 
-public class OldInstanceDeleter extends AbstractProgram {
+	@Override
+	protected List<String> getShards(BOEHelper boe, int count) throws Exception {
+		return getIDRangeShards("CI_INFOOBJECTS", CONDITION, count);
+	}
 
 	@Override
-	protected void runInternal(BOEHelper boe) throws Exception {
-		final String oldInstQry="query://{Select SI_ID, SI_NAME, SI_CREATION_TIME, SI_INSTANCE From CI_INFOOBJECTS Where SI_CREATION_TIME <= '2012/01/01/01/00/00' AND SI_INSTANCE = 1}";
-		final QueryHelper q = new QueryHelper(boe);
-		
-		q.forEachResult(oldInstQry, new InfoObjectWorker() {
-
-			public void doWork(IInfoObject o) throws Exception {
-				logger.debug("Deleteing Object: "	+ o.getTitle() + "  " + o.properties().getProperty("SI_CREATION_TIME"));
-				o.deleteNow();
+	protected String runShard(BOEHelper boe, String shard) throws Exception {
+		int deleted = Q().forEachPageByIDParallel("SI_ID, SI_NAME, SI_CREATION_TIME, SI_INSTANCE", "CI_INFOOBJECTS",
+				CONDITION + " AND " + getIDRangeCondition(shard), getIntArgument(THREADS), new InfoObjectsWorker() {
+
+			public void doWork(IInfoObjects page) throws Exception {
+				for (Object next : page) {
+					IInfoObject o = (IInfoObject) next;
+					logger.debug("Deleteing Object: "	+ o.getTitle() + "  " + o.properties().getProperty("SI_CREATION_TIME"));
+					o.deleteNow();
+				}
 			}
 		});
-
+		return "Deleted " + deleted + " instances";
 	}
 
 	/**
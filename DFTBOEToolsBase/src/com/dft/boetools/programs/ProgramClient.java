@@ -0,0 +1,72 @@
+package com.dft.boetools.programs;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Runs a program in a ProgramDaemon on this machine, printing what it logs and exiting with its
+ * status.  Arguments are
+ *
+ * PORT ProgramClass <Any Other Arguments>
+ *
+ * for example "7070 SessionKiller MAX_SESSION_HOURS=12", or "7070 STOP" to stop the daemon.
+ * The key is read from the file the daemon wrote in the user's home directory.
+ * @author rwells
+ *
+ */
+public final class ProgramClient {
+
+	private ProgramClient() {
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Specify arguments as follows:");
+			System.err.println("Port ProgramClass <Any Other Arguments>");
+			System.exit(2);
+		}
+		int status = 1;
+		try {
+			status = run(Integer.parseInt(args[0]), args);
+		} catch (Exception e) {
+			System.err.println("Unable to run " + args[1] + " in the program daemon on port " + args[0] + ": " + e);
+		}
+		System.exit(status);
+	}
+
+	private static int run(int port, String[] args) throws Exception {
+		BufferedReader keyFile = new BufferedReader(new FileReader(ProgramDaemon.getKeyFile(port)));
+		String key;
+		try {
+			key = keyFile.readLine();
+		} finally {
+			keyFile.close();
+		}
+
+		Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+		try {
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+			out.println(key);
+			for (int i = 1; i < args.length; i++) {
+				out.println(args[i]);
+			}
+			out.println();
+			out.flush();
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				if (line.startsWith(ProgramDaemon.EXIT)) return Integer.parseInt(line.substring(ProgramDaemon.EXIT.length()).trim());
+				System.out.println(line);
+			}
+			System.err.println("The program daemon closed the connection before " + args[1] + " finished");
+			return 1;
+		} finally {
+			socket.close();
+		}
+	}
+}
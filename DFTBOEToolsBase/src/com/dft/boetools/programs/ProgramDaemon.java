@@ -0,0 +1,365 @@
+package com.dft.boetools.programs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.dft.boetools.BOEHelper;
+import com.dft.boetools.QueryHelper;
+import com.dft.boetools.SessionPool;
+import com.dft.boetools.StringHelper;
+
+/**
+ * Keeps a JVM running with the SDK classes loaded and a pool of logged on sessions, and runs
+ * programs in it on request, so that running one from a script or the command line does not pay
+ * for starting a JVM, loading the SDK and logging on each time.  Use ProgramClient to send it
+ * requests.
+ *
+ * The daemon only listens on 127.0.0.1.  When it starts it writes a random key to
+ * .boetools-daemon/PORT.key in the home directory of the user running it, and a request must
+ * start with that key.  On Unix the directory is made readable by its owner only (mode 700, the
+ * file 600) and the daemon refuses to start if that fails.  On Windows the key relies on the
+ * user profile being private to its owner, which is the default.
+ *
+ * A request is the key, the program class, one argument per line and an empty line.  Classes
+ * without a package are taken to be in com.dft.boetools.programs.  Everything the program logs
+ * while it runs, on its own thread or threads it starts, is sent back, followed by a line
+ * "@@EXIT 0" if it succeeded or "@@EXIT 1" if it failed.  The class STOP stops the daemon.
+ *
+ * Start it like the test method of a program:
+ *
+ * username password CMSHostName AuthenticationType <Any Other Arguments>
+ *
+ * Parameters...
+ *
+ * PORT=7070
+ *   The port to listen on.
+ *
+ * SESSIONS=4
+ *   The most sessions logged on at once.  This is also the most programs that run at once,
+ *   further requests wait for a session.
+ *
+ * MAX_SESSION_MINUTES=30
+ *   Sessions are logged off and replaced once they are this old, when they are next handed out.
+ *   A session can be older than this by the length of the request running on it, so keep this
+ *   plus the longest request below the MAX_SESSION_HOURS of any SessionKiller run through the
+ *   daemon, or SessionKiller will terminate the daemon's own sessions.  0 keeps sessions for as
+ *   long as they stay valid.
+ *
+ * PRELOAD=com.dft.boetools.programs.SessionKiller,...
+ *   Program classes to load at start up, in addition to the SDK classes loaded by logging on.
+ *
+ * Programs run by the daemon share its log4j set up, so they never change it.  LOG4J_CONFIG_FILE
+ * is ignored in requests, and LOG4J_LEVEL only sets the level of what is sent back for that
+ * request, which can not show more than the daemon's own level lets through.
+ * @author rwells
+ *
+ */
+public final class ProgramDaemon {
+	private static Logger logger = Logger.getLogger(ProgramDaemon.class);
+
+	private static final String PORT = "PORT";
+	private static final String SESSIONS = "SESSIONS";
+	private static final String PRELOAD = "PRELOAD";
+	private static final String MAX_SESSION_MINUTES = "MAX_SESSION_MINUTES";
+
+	static final int DEFAULT_PORT = 7070;
+	static final String STOP = "STOP";
+	static final String EXIT = "@@EXIT ";
+	static final String PROGRAM_PACKAGE = "com.dft.boetools.programs.";
+
+	private static final String REQUEST = "request";
+	private static final String LOG4J_CONFIG_FILE = "LOG4J_CONFIG_FILE";
+	private static final String LOG4J_LEVEL = "LOG4J_LEVEL";
+	private static final String LAYOUT = "%d{HH:mm:ss} %-5p %c{1} - %m%n";
+	private static final int HEADER_TIMEOUT = 30000;
+
+	private final SessionPool sessions;
+	private final String key;
+	private final AtomicInteger requests = new AtomicInteger();
+	private ServerSocket server;
+
+	private ProgramDaemon(SessionPool sessions, String key) {
+		this.sessions = sessions;
+		this.key = key;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 4) {
+			logger.error("Missing required authentication arguments, specify arguments as follows:");
+			logger.error("username password CMSHostName AuthenticationType <Any Other Arguments>");
+			return;
+		}
+		Properties options = new Properties();
+		options.setProperty(PORT, String.valueOf(DEFAULT_PORT));
+		options.setProperty(SESSIONS, "4");
+		options.setProperty(MAX_SESSION_MINUTES, "30");
+		for (int i = 4; i < args.length; i++) {
+			int split = args[i].indexOf('=');
+			if (split > 0) options.setProperty(args[i].substring(0, split).trim(), args[i].substring(split + 1).trim());
+		}
+
+		int port = Integer.parseInt(options.getProperty(PORT));
+		SessionPool sessions = new SessionPool(SessionPool.password(args[0], args[1], args[3], new String[] {args[2]}),
+				Integer.parseInt(options.getProperty(SESSIONS)));
+		sessions.setMaxAgeMinutes(Integer.parseInt(options.getProperty(MAX_SESSION_MINUTES)));
+		try {
+			warmUp(sessions, options.getProperty(PRELOAD));
+			ProgramDaemon daemon = new ProgramDaemon(sessions, createKey());
+			daemon.serve(port);
+		} catch (Exception e) {
+			logger.error("Program daemon failed: " + e.getMessage(), e);
+		} finally {
+			sessions.close();
+		}
+	}
+
+	/**
+	 * Logs on the first session and queries with it, which loads most of the SDK, then loads the programs we were asked to.
+	 */
+	private static void warmUp(SessionPool sessions, String preload) throws Exception {
+		long start = System.currentTimeMillis();
+		BOEHelper boe = sessions.borrow();
+		try {
+			new QueryHelper(boe).executeRawQuery("SELECT TOP 1 SI_ID FROM CI_INFOOBJECTS");
+		} finally {
+			sessions.release(boe);
+		}
+		for (String name : StringHelper.parseTo(new ArrayList<String>(), preload)) {
+			Class.forName(getClassName(name));
+		}
+		logger.info("Warmed up in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private static String createKey() {
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder key = new StringBuilder();
+		for (byte b : bytes) {
+			key.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return the file the daemon on a port keeps its key in.
+	 */
+	static File getKeyFile(int port) {
+		return new File(new File(System.getProperty("user.home"), ".boetools-daemon"), port + ".key");
+	}
+
+	/**
+	 * Writes the key so that only the user running the daemon can read it.  The permissions are
+	 * set before the key is written, so it is never readable by anyone else, even briefly.
+	 */
+	private void writeKey(File keyFile) throws IOException, InterruptedException {
+		File dir = keyFile.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create " + dir);
+		restrictToOwner(dir, "700");
+		keyFile.delete();
+		if (!keyFile.createNewFile()) throw new IOException("Unable to create " + keyFile);
+		restrictToOwner(keyFile, "600");
+		Writer writer = new FileWriter(keyFile);
+		try {
+			writer.write(key);
+		} finally {
+			writer.close();
+		}
+	}
+
+	// Java 5 has no API for file permissions, so on Unix we use chmod and refuse to start if it fails
+	private static void restrictToOwner(File file, String mode) throws IOException, InterruptedException {
+		if (File.separatorChar == '\\') return;
+		Process chmod = new ProcessBuilder("chmod", mode, file.getPath()).redirectErrorStream(true).start();
+		BufferedReader output = new BufferedReader(new InputStreamReader(chmod.getInputStream()));
+		StringBuilder message = new StringBuilder();
+		for (String line = output.readLine(); line != null; line = output.readLine()) {
+			message.append(line).append(' ');
+		}
+		if (chmod.waitFor() != 0) throw new IOException("Unable to restrict " + file + " to its owner: " + message);
+	}
+
+	static String getClassName(String name) {
+		return name.indexOf('.') < 0 ? PROGRAM_PACKAGE + name : name;
+	}
+
+	private void serve(int port) throws IOException, InterruptedException {
+		server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		File keyFile = getKeyFile(port);
+		writeKey(keyFile);
+		keyFile.deleteOnExit();
+		logger.info("Program daemon listening on 127.0.0.1:" + port + ", key in " + keyFile);
+
+		ExecutorService pool = Executors.newCachedThreadPool();
+		try {
+			while (true) {
+				final Socket socket;
+				try {
+					socket = server.accept();
+				} catch (SocketException e) {
+					if (server.isClosed()) break; // Stopped
+					throw e;
+				}
+				pool.execute(new Runnable() {
+					public void run() {
+						handle(socket);
+					}
+				});
+			}
+		} finally {
+			pool.shutdown();
+			logger.info("Program daemon stopping, waiting for running programs to finish");
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			keyFile.delete();
+		}
+	}
+
+	private void handle(Socket socket) {
+		try {
+			try {
+				socket.setSoTimeout(HEADER_TIMEOUT);
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+				PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+
+				String given = in.readLine();
+				if (given == null || !MessageDigest.isEqual(key.getBytes("UTF-8"), given.getBytes("UTF-8"))) {
+					logger.warn("Refused a request with the wrong key");
+					reply(out, "Wrong key");
+					reply(out, EXIT + 1);
+					return;
+				}
+				String program = in.readLine();
+				List<String> arguments = new ArrayList<String>();
+				for (String line = in.readLine(); line != null && line.length() > 0; line = in.readLine()) {
+					arguments.add(line);
+				}
+				socket.setSoTimeout(0);
+
+				if (STOP.equals(program)) {
+					reply(out, "Stopping");
+					reply(out, EXIT + 0);
+					server.close();
+					return;
+				}
+				reply(out, EXIT + run(program, arguments, out));
+			} finally {
+				socket.close();
+			}
+		} catch (IOException e) {
+			logger.warn("Lost a request: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Runs a program on a pooled session, sending what it logs to out.
+	 * @return the exit status, 0 if it succeeded.
+	 */
+	private int run(String program, List<String> arguments, PrintWriter out) {
+		String id = String.valueOf(requests.incrementAndGet());
+		// Threads the program starts inherit the MDC, so their logging is captured too
+		MDC.put(REQUEST, id);
+		RequestAppender appender = new RequestAppender(id, out);
+		Logger.getRootLogger().addAppender(appender);
+		try {
+			for (int i = arguments.size() - 1; i >= 0; i--) {
+				if (arguments.get(i).startsWith(LOG4J_LEVEL + "=")) {
+					appender.setThreshold(Level.toLevel(arguments.remove(i).substring(LOG4J_LEVEL.length() + 1).trim()));
+				}
+			}
+			logger.info("Request " + id + " running " + program);
+			for (int i = arguments.size() - 1; i >= 0; i--) {
+				if (arguments.get(i).startsWith(LOG4J_CONFIG_FILE)) {
+					logger.warn("Ignoring " + arguments.remove(i) + ", programs share the log4j set up of the daemon");
+				}
+			}
+
+			AbstractProgram instance = (AbstractProgram) Class.forName(getClassName(program)).newInstance();
+			instance.setSharedLogging(true);
+			BOEHelper boe = sessions.borrow();
+			try {
+				instance.execute(boe, arguments.toArray(new String[arguments.size()]));
+			} finally {
+				sessions.release(boe);
+			}
+			logger.info("Request " + id + " completed");
+			return 0;
+		} catch (Exception e) {
+			logger.error("Request " + id + " failed: " + e.getMessage(), e);
+			return 1;
+		} finally {
+			Logger.getRootLogger().removeAppender(appender);
+			MDC.remove(REQUEST);
+		}
+	}
+
+	private static void reply(PrintWriter out, String line) {
+		synchronized (out) {
+			out.println(line);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Sends the logging of one request back to its client.
+	 */
+	private static class RequestAppender extends AppenderSkeleton {
+		private final String id;
+		private final PrintWriter out;
+
+		RequestAppender(String id, PrintWriter out) {
+			this.id = id;
+			this.out = out;
+			setLayout(new PatternLayout(LAYOUT));
+		}
+
+		@Override
+		protected void append(LoggingEvent event) {
+			if (!id.equals(event.getMDC(REQUEST))) return;
+			Layout layout = getLayout();
+			synchronized (out) {
+				out.print(layout.format(event));
+				String[] trace = event.getThrowableStrRep();
+				if (layout.ignoresThrowable() && trace != null) {
+					for (String line : trace) {
+						out.println(line);
+					}
+				}
+				out.flush();
+			}
+		}
+
+		public boolean requiresLayout() {
+			return true;
+		}
+
+		public void close() {
+			closed = true;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package com.dft.boetools.programs;
+
+import java.util.Date;
+
+import com.crystaldecisions.sdk.exception.SDKException;
+import com.crystaldecisions.sdk.occa.infostore.IInfoObject;
+import com.crystaldecisions.sdk.occa.infostore.IInfoObjects;
+import com.crystaldecisions.sdk.properties.IProperty;
+import com.dft.boetools.QueryHelper;
+import com.dft.boetools.StringHelper;
+
+/**
+ * Keeps a job's watermark in a custom property of its program object in the CMS, so it follows
+ * the job whichever job server runs it.  The job is the name of the program object in the CMC,
+ * the same name JOB_NAME gives for getLastRuntime, and must belong to exactly one program object.
+ * @author rwells
+ *
+ */
+public class ProgramWatermarkStore implements WatermarkStore {
+	public static final String PROPERTY = "DFT_WATERMARK";
+
+	private final QueryHelper q;
+
+	public ProgramWatermarkStore(QueryHelper q) {
+		this.q = q;
+	}
+
+	public Date read(String job) throws SDKException {
+		IProperty property = getProgram(job).properties().getProperty((Object) PROPERTY);
+		if (property == null || property.getValue() == null) return null;
+		return new Date(Long.parseLong(property.getValue().toString().trim()));
+	}
+
+	public void write(String job, Date watermark) throws SDKException {
+		IInfoObject program = getProgram(job);
+		String value = String.valueOf(watermark.getTime());
+		IProperty property = program.properties().getProperty((Object) PROPERTY);
+		if (property == null) {
+			program.properties().add(PROPERTY, value, 0);
+		} else {
+			property.setValue(value);
+		}
+		program.save();
+	}
+
+	private IInfoObject getProgram(String job) throws SDKException {
+		String query = "SELECT SI_ID, SI_NAME, " + PROPERTY + " FROM CI_INFOOBJECTS WHERE SI_NAME = '" + StringHelper.escQteBOE(job) + "' AND SI_KIND = 'Program' AND SI_INSTANCE = 0";
+		IInfoObjects programs = q.executeRawQuery(query);
+		if (programs.size() == 0) throw new IllegalStateException("No program object named " + job + " to keep the watermark in");
+		if (programs.size() > 1) throw new IllegalStateException(programs.size() + " program objects are named " + job + ", rename them or use WATERMARK_FILE");
+		return (IInfoObject) programs.get(0);
+	}
+}
@@ -1,79 +1,408 @@
 package com.dft.boetools.programs;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
 
 import com.crystaldecisions.sdk.occa.infostore.IInfoObjects;
 import com.crystaldecisions.sdk.plugin.desktop.connection.IConnection;
 import com.dft.boetools.BOEHelper;
 import com.dft.boetools.QueryHelper;
+import com.dft.boetools.QueryHelper.InfoObjectsWorker;
 
 /**
  * This class will automatically kill running enterprise sessions that are older
  * than a specified MAX_SESSION_HOURS variable.  This is intended as a stop gap measure
- * to deal with the fact that the BOE Platform has issues with session management and 
+ * to deal with the fact that the BOE Platform has issues with session management and
  * occasionally leaves sessions open even though the user has logged out a long time ago.
- * 
+ *
+ * Busy clusters can have tens of thousands of connection objects, so the sweep only selects
+ * the few properties it needs, lets the CMS filter on SI_LASTLOGONTIME, pages through the
+ * results by SI_ID and terminates each page of sessions in parallel.  A summary of the number
+ * of sessions terminated and the time taken to terminate them is logged at the end of the run.
+ *
  * Parameters...
- * 
- * MAX_SESSION_HOURS: The length of time in hours used to determine that a session is no longer valid. 
+ *
+ * MAX_SESSION_HOURS: The length of time in hours used to determine that a session is no longer valid.
  * Default value is 24.
  *
- * This class can also be used as a library assuming the client code configures it correctly.  
+ * KILL_THREADS: The number of sessions that will be terminated concurrently.  Default value is 4.
+ *
+ * DAEMON: When true, the program does not exit after the sweep.  It keeps its session open and polls
+ * for connections that are new or have logged on again since the last poll, keeping every known
+ * session in a queue ordered by the time it will exceed MAX_SESSION_HOURS.  Each session is terminated
+ * as soon as it crosses the limit rather than on the next scheduled run.  Intended for use from the
+ * command line (see main) as it never completes as a scheduled program job.  Default value is false.
+ *
+ * POLL_SECONDS: How often the daemon polls for new connections.  Default value is 60.
+ *
+ * RESYNC_MINUTES: How often the daemon rebuilds its queue from a full scan so that sessions closed
+ * by their users are dropped.  Each resync also logs the daemon on again with a renewed token and
+ * logs off its previous session, so its own connection never reaches MAX_SESSION_HOURS.  Must be
+ * less than MAX_SESSION_HOURS * 60.  Default value is 60.
+ *
+ * This class can also be used as a library assuming the client code configures it correctly.
  * @author roy.wells
  *
  */
 public class SessionKiller extends AbstractProgram {
 
-	
+
 	private static final String MAX_SESSION_HOURS = "MAX_SESSION_HOURS";
+	private static final String KILL_THREADS = "KILL_THREADS";
+	private static final String DAEMON = "DAEMON";
+	private static final String POLL_SECONDS = "POLL_SECONDS";
+	private static final String RESYNC_MINUTES = "RESYNC_MINUTES";
 	private static final double MILS_PER_HOUR = 1000 * 60 * 60;
-	
+
+	/** Properties needed to identify, log and age a session.  Nothing else is loaded. */
+	public static final String SESSION_COLUMNS = "SI_ID, SI_NAME, SI_KIND, SI_LASTLOGONTIME, SI_AUTHEN_METHOD";
+	private static final String SESSION_TABLE = "CI_SYSTEMOBJECTS";
+	private static final String SESSION_CONDITION =
+			"SI_KIND='Connection' And SI_PARENT_FOLDER=41 " +
+			"And SI_AUTHEN_METHOD!='server-token'";
+
 	@Override
 	protected void addDefaultArguments(Properties defaults) {
 		super.addDefaultArguments(defaults);
 		defaults.setProperty(MAX_SESSION_HOURS, "24");
+		defaults.setProperty(KILL_THREADS, "4");
+		defaults.setProperty(DAEMON, Boolean.FALSE.toString());
+		defaults.setProperty(POLL_SECONDS, "60");
+		defaults.setProperty(RESYNC_MINUTES, "60");
 	}
 
 
 	public IInfoObjects getListOfSessions(QueryHelper q) throws Exception {
 		return q.executeRawQuery(
-				"Select * From CI_SYSTEMOBJECTS " +
-				"Where SI_KIND='Connection' And SI_PARENT_FOLDER=41 " +
-				"And SI_AUTHEN_METHOD!='server-token' " +
+				"Select " + SESSION_COLUMNS + " From " + SESSION_TABLE + " " +
+				"Where " + SESSION_CONDITION + " " +
 				"order by SI_NAME");
 	}
-	
+
+	/**
+	 * Pages through all sessions whose last logon happened before the cutoff.  Pages are keyed by
+	 * SI_ID so the worker may terminate the sessions it is handed without disturbing later pages.
+	 * @return the number of sessions handed to the worker
+	 */
+	public int forEachSessionOlderThan(QueryHelper q, Date cutoff, InfoObjectsWorker w) throws Exception {
+		String cutoffUTC = QueryHelper.formatDateForBOEQuery(cutoff, TimeZone.getDefault());
+		return q.forEachPageByID(SESSION_COLUMNS, SESSION_TABLE,
+				SESSION_CONDITION + " And SI_LASTLOGONTIME < '" + cutoffUTC + "'", w);
+	}
+
 	public double getSessionDurration(IConnection session) throws Exception {
 		Date lastLogon = session.getLastLogon();
 		return (System.currentTimeMillis() - lastLogon.getTime()) / MILS_PER_HOUR;
 	}
-	
+
 	@Override
 	protected void runInternal(BOEHelper boe) throws Exception {
 		QueryHelper q = new QueryHelper(boe);
-		
+
 		int maxHours = getIntArgument(MAX_SESSION_HOURS);
-		
-		IInfoObjects listOfSessions = getListOfSessions(q);
-
-		for (Object o : listOfSessions) {
-			IConnection session = (IConnection) o;			
-		
-			logger.info("Found Session for " + session.getCMSName() + " " + session.getAuthenticationMethod() + " " + session.getUserAlias() + " " + session.getLastLogon());
-			
-			double durration = getSessionDurration(session);
-			
-			logger.info("Session Duration in Hours = " + durration);
-			
-			if (durration > maxHours) {
-				logger.info("Current Session exceeds the maximum allowed duration.  Therefore session is being terminated");
+		sweep(q, maxHours);
+
+		if (getBooleanArgument(DAEMON)) {
+			runDaemon(boe, maxHours);
+		}
+	}
+
+	/**
+	 * Terminates every session older than maxHours in a single pass and logs a summary.
+	 */
+	public void sweep(QueryHelper q, final int maxHours) throws Exception {
+		Date cutoff = new Date(System.currentTimeMillis() - (long) (maxHours * MILS_PER_HOUR));
+		logger.info("Terminating sessions with a last logon before " + cutoff);
+
+		final SweepSummary summary = new SweepSummary();
+		final ExecutorService pool = Executors.newFixedThreadPool(getIntArgument(KILL_THREADS));
+		try {
+			int found = forEachSessionOlderThan(q, cutoff, new InfoObjectsWorker() {
+
+				public void doWork(IInfoObjects page) throws Exception {
+					terminateSessions(page, maxHours, pool, summary);
+				}
+			});
+			summary.found = found;
+		} finally {
+			pool.shutdown();
+		}
+
+		summary.log(logger);
+	}
+
+	/**
+	 * Runs until the thread is interrupted or the JVM is stopped.  The initial sweep has already removed
+	 * expired sessions, so from here on we only need to watch sessions until they expire.
+	 */
+	private void runDaemon(BOEHelper boe, int maxHours) throws Exception {
+		long pollMillis = getIntArgument(POLL_SECONDS) * 1000L;
+		long resyncMillis = getIntArgument(RESYNC_MINUTES) * 60000L;
+		// Our own connection matches SESSION_CONDITION too, so it must never live long enough to expire
+		if (resyncMillis >= maxHours * MILS_PER_HOUR) {
+			throw new Exception(RESYNC_MINUTES + " must be less than " + MAX_SESSION_HOURS + " * 60 so the daemon replaces its own session before it expires");
+		}
+		logger.info("Entering daemon mode, polling every " + pollMillis + " ms");
+
+		// Keep a token so we can get back in if the CMS drops our session, and log on afresh with it at each resync.
+		String token = boe.getLogonToken(1440, 10);
+		BOEHelper session = boe;
+		QueryHelper q = null;
+		final ExpiryQueue queue = new ExpiryQueue((long) (maxHours * MILS_PER_HOUR));
+		long nextPoll = 0;
+		long nextResync = 0;
+
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				long now = System.currentTimeMillis();
+				if (now >= nextPoll) {
+					if (now < nextResync && !session.isSessionValid()) {
+						logger.warn("Daemon session is no longer valid, logging on again with token");
+						nextResync = now;
+					}
+
+					String condition = SESSION_CONDITION;
+					if (now >= nextResync) {
+						queue.clear();
+						BOEHelper fresh = new BOEHelper();
+						fresh.logonWithToken(token);
+						String renewed = fresh.getLogonToken(1440, 10);
+						fresh.releaseToken(token);
+						token = renewed;
+						// The job's own session belongs to whoever started us
+						if (session != boe) session.logoff();
+						session = fresh;
+						q = new QueryHelper(session);
+						nextResync = now + resyncMillis;
+					} else {
+						condition += " And " + queue.changedSinceCondition();
+					}
+
+					int polled = q.forEachPageByID(SESSION_COLUMNS, SESSION_TABLE, condition, new InfoObjectsWorker() {
+
+						public void doWork(IInfoObjects page) throws Exception {
+							for (Object o : page) {
+								queue.track((IConnection) o);
+							}
+						}
+					});
+					logger.debug("Polled " + polled + " connections, tracking " + queue.size() + " sessions");
+					nextPoll = now + pollMillis;
+				}
+
+				TrackedSession due;
+				while ((due = queue.nextDue(System.currentTimeMillis())) != null) {
+					terminateIfExpired(q, due, queue);
+				}
+
+				long sleep = Math.min(nextPoll, queue.nextExpiry()) - System.currentTimeMillis();
+				if (sleep > 0) Thread.sleep(sleep);
+			}
+		} finally {
+			if (session != boe) session.logoff();
+		}
+	}
+
+	/**
+	 * Re-reads a session that the queue says has just expired.  It may have been closed or may
+	 * have logged on again since we last polled, in which case it is dropped or rescheduled.
+	 */
+	private void terminateIfExpired(QueryHelper q, TrackedSession due, ExpiryQueue queue) {
+		try {
+			IConnection session = (IConnection) q.getObjectByID(due.id, SESSION_COLUMNS);
+			if (session == null) {
+				logger.debug("Session " + due.name + " closed before it expired");
+				queue.forget(due.id);
+			} else if (session.getLastLogon().getTime() != due.lastLogon) {
+				queue.track(session);
+			} else {
+				logger.info("Session for " + due.name + " " + session.getAuthenticationMethod() + " " + session.getLastLogon() + " has exceeded the maximum allowed duration.  Therefore session is being terminated");
+				long start = System.nanoTime();
 				session.deleteNow();
+				queue.forget(due.id);
+				logger.info("Session terminated in " + ((System.nanoTime() - start) / 1000000.0) + " ms");
+			}
+		} catch (Exception e) {
+			// Leave it to the next resync to pick the session up again.
+			logger.error("Could not terminate session for " + due.name + ": " + e.getMessage(), e);
+			queue.forget(due.id);
+		}
+	}
+
+	/**
+	 * Terminates one page of sessions on the pool and waits for the whole page to finish before
+	 * returning, which keeps the number of outstanding requests to the CMS bounded by the page size.
+	 */
+	private void terminateSessions(IInfoObjects page, final int maxHours, ExecutorService pool, final SweepSummary summary) throws InterruptedException {
+		List<Future<Object>> results = new ArrayList<Future<Object>>(page.size());
+		for (Object o : page) {
+			final IConnection session = (IConnection) o;
+			results.add(pool.submit(new Callable<Object>() {
+
+				public Object call() throws Exception {
+					logger.info("Found Session for " + session.getTitle() + " " + session.getAuthenticationMethod() + " " + session.getLastLogon());
+
+					// The query already filtered on SI_LASTLOGONTIME, but double check before killing anything.
+					double durration = getSessionDurration(session);
+					logger.info("Session Duration in Hours = " + durration);
+					if (durration <= maxHours) {
+						summary.skipped.incrementAndGet();
+						return null;
+					}
+
+					logger.info("Current Session exceeds the maximum allowed duration.  Therefore session is being terminated");
+					long start = System.nanoTime();
+					session.deleteNow();
+					summary.recordTermination(System.nanoTime() - start);
+					return null;
+				}
+			}));
+		}
+
+		for (Future<Object> result : results) {
+			try {
+				result.get();
+			} catch (ExecutionException e) {
+				summary.failed.incrementAndGet();
+				logger.error("Could not terminate session: " + e.getCause().getMessage(), e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Counters and termination latencies for a single sweep.  Updated concurrently by the kill threads.
+	 */
+	private static class SweepSummary {
+		private int found;
+		private final AtomicInteger terminated = new AtomicInteger();
+		private final AtomicInteger skipped = new AtomicInteger();
+		private final AtomicInteger failed = new AtomicInteger();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final long started = System.currentTimeMillis();
+
+		void recordTermination(long nanos) {
+			terminated.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+		}
+
+		void log(Logger logger) {
+			int count = terminated.get();
+			double avgMillis = (count > 0) ? totalNanos.get() / 1000000.0 / count : 0;
+			logger.info("Session sweep complete in " + (System.currentTimeMillis() - started) + " ms.  " +
+					"Found " + found + ", terminated " + count + ", skipped " + skipped.get() + ", failed " + failed.get());
+			logger.info("Termination latency: average " + avgMillis + " ms, maximum " + (maxNanos.get() / 1000000.0) + " ms");
+		}
+	}
+
+	/**
+	 * Session waiting to expire, ordered by expiry time.
+	 */
+	private static class TrackedSession implements Comparable<TrackedSession> {
+		private final int id;
+		private final String name;
+		private final long lastLogon;
+		private final long expiresAt;
+
+		TrackedSession(int id, String name, long lastLogon, long maxAge) {
+			this.id = id;
+			this.name = name;
+			this.lastLogon = lastLogon;
+			this.expiresAt = lastLogon + maxAge;
+		}
+
+		public int compareTo(TrackedSession o) {
+			return (expiresAt < o.expiresAt) ? -1 : ((expiresAt == o.expiresAt) ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Min-heap of sessions by expiry time plus the watermarks used to poll only for connections
+	 * that changed since the last poll.  Rescheduled sessions are left in the heap and skipped
+	 * when they surface, so the map of live entries is the source of truth.
+	 */
+	private static class ExpiryQueue {
+		private final long maxAge;
+		private final PriorityQueue<TrackedSession> heap = new PriorityQueue<TrackedSession>();
+		private final Map<Integer, TrackedSession> live = new HashMap<Integer, TrackedSession>();
+		private int maxID;
+		private long maxLastLogon;
+
+		ExpiryQueue(long maxAge) {
+			this.maxAge = maxAge;
+		}
+
+		void track(IConnection session) throws Exception {
+			int id = session.getID();
+			long lastLogon = session.getLastLogon().getTime();
+			maxID = Math.max(maxID, id);
+			maxLastLogon = Math.max(maxLastLogon, lastLogon);
+
+			TrackedSession existing = live.get(Integer.valueOf(id));
+			if (existing != null && existing.lastLogon == lastLogon) return;
+
+			TrackedSession tracked = new TrackedSession(id, session.getTitle(), lastLogon, maxAge);
+			live.put(Integer.valueOf(id), tracked);
+			heap.add(tracked);
+		}
+
+		void forget(int id) {
+			live.remove(Integer.valueOf(id));
+		}
+
+		TrackedSession nextDue(long now) {
+			discardStale();
+			return (!heap.isEmpty() && heap.peek().expiresAt <= now) ? heap.poll() : null;
+		}
+
+		long nextExpiry() {
+			discardStale();
+			return heap.isEmpty() ? Long.MAX_VALUE : heap.peek().expiresAt;
+		}
+
+		private void discardStale() {
+			while (!heap.isEmpty() && live.get(Integer.valueOf(heap.peek().id)) != heap.peek()) {
+				heap.poll();
 			}
 		}
-		
+
+		/** Connections created or logged on again since the last poll. */
+		String changedSinceCondition() {
+			String since = QueryHelper.formatDateForBOEQuery(new Date(maxLastLogon), TimeZone.getDefault());
+			return "(SI_ID > " + maxID + " Or SI_LASTLOGONTIME >= '" + since + "')";
+		}
+
+		int size() {
+			return live.size();
+		}
+
+		void clear() {
+			heap.clear();
+			live.clear();
+			maxID = 0;
+			maxLastLogon = 0;
+		}
 	}
-	
+
 	public static void main(String[] args) {
 		SessionKiller a = new SessionKiller();
 		a.test(args);
@@ -0,0 +1,93 @@
+package com.dft.boetools.programs;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.dft.boetools.BOEHelper;
+
+/**
+ * The main class of the worker JVMs started by AbstractShardedProgram.  The only command line
+ * argument is the program class.  The coordinator then writes to standard input:
+ * <pre>
+ * logon token
+ * KEY=VALUE, one line per program argument, and SHARD_WATERMARK for an incremental job
+ * an empty line
+ * SHARD shard, one at a time, each after the reply to the one before
+ * EXIT
+ * </pre>
+ * and the worker answers each shard with a single line starting @@SHARD DONE or @@SHARD FAILED.
+ * Anything else the worker writes, such as its log, is copied into the coordinator's log.
+ * @author rwells
+ *
+ */
+public final class ShardWorker {
+	private static Logger logger = Logger.getLogger(ShardWorker.class);
+
+	static final String SHARD = "SHARD ";
+	static final String EXIT = "EXIT";
+	static final String REPLY = "@@SHARD ";
+	static final String DONE = REPLY + "DONE ";
+	static final String FAILED = REPLY + "FAILED ";
+
+	// The coordinator's watermark, passed as an argument.  Workers never move it themselves.
+	static final String WATERMARK = "SHARD_WATERMARK";
+
+	private ShardWorker() {
+	}
+
+	/**
+	 * @param args the name of an AbstractShardedProgram subclass
+	 */
+	public static void main(String[] args) {
+		int status = 0;
+		try {
+			run(args[0]);
+		} catch (Throwable e) {
+			logger.error("Worker failed: " + e.getMessage(), e);
+			status = 1;
+		}
+		System.out.flush();
+		System.exit(status);
+	}
+
+	private static void run(String programClass) throws Exception {
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		String token = in.readLine();
+		List<String> arguments = new ArrayList<String>();
+		for (String line = in.readLine(); line != null && line.length() > 0; line = in.readLine()) {
+			arguments.add(line);
+		}
+
+		AbstractShardedProgram program = (AbstractShardedProgram) Class.forName(programClass).newInstance();
+		program.initialize(arguments.toArray(new String[arguments.size()]));
+		String watermark = program.getArguments().getProperty(WATERMARK);
+		if (watermark != null) program.setRawWatermark(new Date(Long.parseLong(watermark)));
+		BOEHelper boe = program.logonWorker(token);
+		try {
+			program.connect(boe);
+			for (String line = in.readLine(); line != null && !line.equals(EXIT); line = in.readLine()) {
+				if (!line.startsWith(SHARD)) continue;
+				String shard = line.substring(SHARD.length());
+				try {
+					reply(DONE, program.runShard(boe, shard));
+				} catch (Exception e) {
+					logger.error("Shard " + shard + " failed: " + e.getMessage(), e);
+					reply(FAILED, e.getMessage() == null ? e.toString() : e.getMessage());
+				}
+			}
+		} finally {
+			boe.logoff();
+		}
+	}
+
+	private static void reply(String kind, String message) {
+		// Replies are one line, whatever the message holds
+		System.out.println(kind + String.valueOf(message).replace('\r', ' ').replace('\n', ' '));
+		System.out.flush();
+	}
+}
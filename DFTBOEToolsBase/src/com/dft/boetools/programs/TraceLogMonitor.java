@@ -0,0 +1,128 @@
+package com.dft.boetools.programs;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import com.dft.boetools.BOEHelper;
+import com.dft.boetools.GLFTail;
+
+/**
+ * Watches the GLF trace logs of a server while it runs and periodically logs how many records of
+ * each severity were written per component and per thread over a rolling window.  Only the
+ * records appended since the last poll are read, so it can be left running against busy servers.
+ * Run it on the machine that writes the logs, either as a program job or from the command line (see main).
+ *
+ * Parameters...
+ *
+ * LOG_PATH: A trace file or a directory of trace files to follow.  Required.
+ *
+ * COMPONENT_COLUMN: The GLF column that names the component.  Default value is Unit.
+ *
+ * SEVERITIES: Comma separated severities to report.  Default value is Error.
+ *
+ * WINDOW_MINUTES: The length of the rolling window.  Default value is 5.
+ *
+ * POLL_SECONDS: How often the logs are checked for new records.  Default value is 5.
+ *
+ * REPORT_SECONDS: How often the counts are logged.  Default value is 60.
+ *
+ * TOP: The most components and threads logged in each report.  Default value is 10.
+ *
+ * RUN_MINUTES: How long to watch before completing, 0 watches until the program is stopped.
+ * Default value is 60.
+ *
+ * FROM_START: When true existing records are counted as well as new ones.  Default value is false.
+ * @author rwells
+ *
+ */
+public class TraceLogMonitor extends AbstractProgram {
+
+	private static final String LOG_PATH = "LOG_PATH";
+	private static final String COMPONENT_COLUMN = "COMPONENT_COLUMN";
+	private static final String SEVERITIES = "SEVERITIES";
+	private static final String WINDOW_MINUTES = "WINDOW_MINUTES";
+	private static final String POLL_SECONDS = "POLL_SECONDS";
+	private static final String REPORT_SECONDS = "REPORT_SECONDS";
+	private static final String TOP = "TOP";
+	private static final String RUN_MINUTES = "RUN_MINUTES";
+	private static final String FROM_START = "FROM_START";
+
+	@Override
+	protected void addDefaultArguments(Properties defaults) {
+		super.addDefaultArguments(defaults);
+		defaults.setProperty(COMPONENT_COLUMN, "Unit");
+		defaults.setProperty(SEVERITIES, "Error");
+		defaults.setProperty(WINDOW_MINUTES, "5");
+		defaults.setProperty(POLL_SECONDS, "5");
+		defaults.setProperty(REPORT_SECONDS, "60");
+		defaults.setProperty(TOP, "10");
+		defaults.setProperty(RUN_MINUTES, "60");
+		defaults.setProperty(FROM_START, Boolean.FALSE.toString());
+	}
+
+	@Override
+	protected void addRequiredArguments(List<String> required) {
+		super.addRequiredArguments(required);
+		required.add(LOG_PATH);
+	}
+
+	@Override
+	protected void runInternal(BOEHelper boe) throws Exception {
+		File path = new File(getArgument(LOG_PATH));
+		if (!path.exists()) throw new Exception("Trace log path does not exist: " + path);
+
+		long windowMillis = getIntArgument(WINDOW_MINUTES) * 60000L;
+		long pollMillis = getIntArgument(POLL_SECONDS) * 1000L;
+		long reportMillis = getIntArgument(REPORT_SECONDS) * 1000L;
+		long runMillis = getIntArgument(RUN_MINUTES) * 60000L;
+		Set<String> severities = getCollectionArgument(new HashSet<String>(), SEVERITIES);
+
+		GLFTail tail = new GLFTail(path, getArgument(COMPONENT_COLUMN), windowMillis);
+		tail.setFromStart(getBooleanArgument(FROM_START));
+		logger.info("Following trace logs in " + path + ", reporting every " + reportMillis + " ms");
+
+		long end = runMillis > 0 ? System.currentTimeMillis() + runMillis : Long.MAX_VALUE;
+		long nextReport = System.currentTimeMillis() + reportMillis;
+		while (!Thread.currentThread().isInterrupted()) {
+			int read = tail.poll();
+			if (read > 0) logger.debug("Read " + read + " new trace records");
+
+			long now = System.currentTimeMillis();
+			if (now >= nextReport || now >= end) {
+				report("component", tail.getComponentCounts(now), severities);
+				report("thread", tail.getThreadCounts(now), severities);
+				nextReport = now + reportMillis;
+			}
+			if (now >= end) break;
+			Thread.sleep(Math.min(pollMillis, end - now));
+		}
+	}
+
+	/**
+	 * Logs the largest counts for the reported severities.  Keys are [severity, name].
+	 */
+	private void report(String kind, Map<List<String>, Long> counts, Set<String> severities) {
+		int top = getIntArgument(TOP);
+		int reported = 0;
+		for (Map.Entry<List<String>, Long> count : counts.entrySet()) {
+			if (!severities.contains(count.getKey().get(0))) continue;
+			if (reported++ == 0) logger.info("Trace records by " + kind + " in the last " + getArgument(WINDOW_MINUTES) + " minutes:");
+			logger.info("	" + count.getKey().get(0) + "	" + count.getValue() + "	" + count.getKey().get(1));
+			if (reported >= top) break;
+		}
+		if (reported == 0) logger.info("No " + severities + " trace records by " + kind + " in the last " + getArgument(WINDOW_MINUTES) + " minutes");
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		TraceLogMonitor a = new TraceLogMonitor();
+		a.test(args);
+	}
+
+}
@@ -4,11 +4,11 @@ import java.util.HashSet;
 import java.util.Properties;
 import java.util.Set;
 
-import com.crystaldecisions.sdk.occa.infostore.IInfoObject;
+import com.crystaldecisions.sdk.occa.infostore.IInfoObjects;
 import com.crystaldecisions.sdk.plugin.desktop.user.IUser;
 import com.dft.boetools.BOEHelper;
 import com.dft.boetools.QueryHelper;
-import com.dft.boetools.QueryHelper.InfoObjectWorker;
+import com.dft.boetools.QueryHelper.InfoObjectsWorker;
 
 
 /**
@@ -31,6 +31,9 @@ import com.dft.boetools.QueryHelper.InfoObjectWorker;
  * As each user is inspected for conversion they will be compared against this list, 
  * and if found in the list they will be skipped during the conversion process.  This
  * parameter is optional and will be ignored if not specified.
+ * 
+ * THREADS:  Users are swept in SI_ID ranges on this many threads at once.  This
+ * parameter has a default value of 4.
  *  
  * @author roy.wells
  *
@@ -39,13 +42,14 @@ public class UserLicenseConverter extends AbstractProgram {
 	
 	private static final String CONVERSION_TYPE = "CONVERSION_TYPE";
 	private static final String EXCLUDE_USERS = "EXCLUDE_USERS";
+	private static final String THREADS = "THREADS";
 	
 	@Override
-	protected Properties getDefaultArguments() {
-		Properties arguments = new Properties();
-		arguments.setProperty(CONVERSION_TYPE, "C");
-		arguments.setProperty(EXCLUDE_USERS, "");
-		return arguments;
+	protected void addDefaultArguments(Properties defaults) {
+		super.addDefaultArguments(defaults);
+		defaults.setProperty(CONVERSION_TYPE, "C");
+		defaults.setProperty(EXCLUDE_USERS, "");
+		defaults.setProperty(THREADS, "4");
 	}
 	
 	@Override
@@ -56,18 +60,20 @@ public class UserLicenseConverter extends AbstractProgram {
 		
 		final Set<String> excludedUsers = getCollectionArgument(new HashSet<String>(), EXCLUDE_USERS);
 		
-		String query = "path://SystemObjects/Users/@*";
-		q.forEachResult(query, new InfoObjectWorker() {
+		q.forEachPageByIDParallel("SI_ID, SI_NAME, SI_NAMEDUSER", "CI_SYSTEMOBJECTS", "SI_KIND='User'",
+				getIntArgument(THREADS), new InfoObjectsWorker() {
 			
-			public void doWork(IInfoObject o) throws Exception {
-				IUser u = (IUser) o;
-				if (excludedUsers.contains(u.getTitle())) {
-					logger.info("User: " + u.getTitle() + " is being excluded from conversion.  Moving On.");
-					return;
+			public void doWork(IInfoObjects page) throws Exception {
+				for (Object o : page) {
+					IUser u = (IUser) o;
+					if (excludedUsers.contains(u.getTitle())) {
+						logger.info("User: " + u.getTitle() + " is being excluded from conversion.  Moving On.");
+						continue;
+					}
+					logger.info("Setting License Type for User: " + u.getTitle() + " to " + ((convertToConcurrent) ? " Concurrent" : " Named"));
+					u.setConnection((convertToConcurrent) ? IUser.CONCURRENT : IUser.NAMED);
+					u.save();
 				}
-				logger.info("Setting License Type for User: " + u.getTitle() + " to " + ((convertToConcurrent) ? " Concurrent" : " Named"));
-				u.setConnection((convertToConcurrent) ? IUser.CONCURRENT : IUser.NAMED);
-				u.save();
 			}
 		});
 		
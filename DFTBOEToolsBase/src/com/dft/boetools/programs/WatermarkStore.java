@@ -0,0 +1,22 @@
+package com.dft.boetools.programs;
+
+import java.util.Date;
+
+/**
+ * Keeps the watermark of each incremental job: the time its last successful run started.
+ * See AbstractProgram INCREMENTAL.
+ * @author rwells
+ *
+ */
+public interface WatermarkStore {
+
+	/**
+	 * @return the watermark saved for the job, or null if it has never completed
+	 */
+	Date read(String job) throws Exception;
+
+	/**
+	 * Saves the watermark for the job in a single step, so that a failure leaves the old one in place.
+	 */
+	void write(String job, Date watermark) throws Exception;
+}
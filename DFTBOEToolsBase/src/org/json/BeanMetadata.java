@@ -0,0 +1,153 @@
+package org.json;
+
+/*
+Copyright (c) 2002 JSON.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+The Software shall be used for Good, not Evil.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * BeanMetadata holds what JSONObject needs to know about a class in order to
+ * convert its instances: the getters to call and the key each one produces,
+ * and whether the class is a system class that wrap renders with toString.
+ * It is cached per class and shared by all threads.
+ * @author JSON.org
+ * @version 2014-05-03
+ */
+final class BeanMetadata {
+
+    /**
+     * The metadata computed so far, keyed by class. The keys are weak so that
+     * a class and its loader can still be unloaded, and the values are soft
+     * because their getters refer back to the class.
+     */
+    private static final Map cache = new WeakHashMap();
+
+    /**
+     * The JSON keys, parallel to getters.
+     */
+    final String[] keys;
+
+    /**
+     * The public no-argument getters of the class.
+     */
+    final Method[] getters;
+
+    /**
+     * True if the class belongs to java.*, javax.* or the bootstrap class
+     * loader, so that wrap should use its toString rather than its getters.
+     */
+    final boolean system;
+
+
+    private BeanMetadata(Class klass) {
+        ArrayList keyList = new ArrayList();
+        ArrayList getterList = new ArrayList();
+
+// If klass is a System class then set includeSuperClass to false.
+
+        boolean includeSuperClass = klass.getClassLoader() != null;
+
+        Method[] methods = includeSuperClass
+                ? klass.getMethods()
+                : klass.getDeclaredMethods();
+        for (int i = 0; i < methods.length; i += 1) {
+            Method method = methods[i];
+            if (Modifier.isPublic(method.getModifiers())) {
+                String key = keyOf(method.getName());
+                if (key.length() > 0 &&
+                        Character.isUpperCase(key.charAt(0)) &&
+                        method.getParameterTypes().length == 0) {
+                    if (key.length() == 1) {
+                        key = key.toLowerCase();
+                    } else if (!Character.isUpperCase(key.charAt(1))) {
+                        key = key.substring(0, 1).toLowerCase() +
+                            key.substring(1);
+                    }
+                    keyList.add(key);
+                    getterList.add(method);
+                }
+            }
+        }
+        this.keys = (String[])keyList.toArray(new String[keyList.size()]);
+        this.getters =
+            (Method[])getterList.toArray(new Method[getterList.size()]);
+
+        Package objectPackage = klass.getPackage();
+        String objectPackageName = objectPackage != null
+            ? objectPackage.getName()
+            : "";
+        this.system = objectPackageName.startsWith("java.") ||
+            objectPackageName.startsWith("javax.") ||
+            klass.getClassLoader() == null;
+    }
+
+
+    /**
+     * Get the metadata for a class, computing it on first use.
+     * @param klass A class.
+     * @return The class's BeanMetadata.
+     */
+    static BeanMetadata forClass(Class klass) {
+        SoftReference reference;
+        synchronized (cache) {
+            reference = (SoftReference)cache.get(klass);
+        }
+        BeanMetadata metadata = reference == null
+            ? null
+            : (BeanMetadata)reference.get();
+        if (metadata == null) {
+            metadata = new BeanMetadata(klass);
+            synchronized (cache) {
+                cache.put(klass, new SoftReference(metadata));
+            }
+        }
+        return metadata;
+    }
+
+
+    /**
+     * Produce the unadjusted key for a getter name.
+     * @param name A method name.
+     * @return The name without its "get" or "is" prefix, or "" if the method
+     *  is not a getter.
+     */
+    private static String keyOf(String name) {
+        if (name.startsWith("get")) {
+            if ("getClass".equals(name) ||
+                    "getDeclaringClass".equals(name)) {
+                return "";
+            }
+            return name.substring(3);
+        }
+        if (name.startsWith("is")) {
+            return name.substring(2);
+        }
+        return "";
+    }
+}
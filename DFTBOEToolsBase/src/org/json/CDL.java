@@ -24,6 +24,13 @@ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
 SOFTWARE.
 */
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
 /**
  * This provides static methods to convert comma delimited text into a
  * JSONArray, and to covert a JSONArray into comma delimited text. Comma
@@ -143,32 +150,134 @@ public class CDL {
      */
     public static String rowToString(JSONArray ja) {
         StringBuffer sb = new StringBuffer();
+        try {
+            appendRow(ja, sb);
+        } catch (IOException ignored) {
+            // will never happen - we are appending to a StringBuffer
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Append a comma delimited text row from a JSONArray, as rowToString
+     * does.
+     * @param ja A JSONArray of strings.
+     * @param a The destination.
+     * @throws IOException
+     */
+    private static void appendRow(JSONArray ja, Appendable a)
+            throws IOException {
         for (int i = 0; i < ja.length(); i += 1) {
             if (i > 0) {
-                sb.append(',');
+                a.append(',');
             }
-            Object object = ja.opt(i);
-            if (object != null) {
-                String string = object.toString();
-                if (string.length() > 0 && (string.indexOf(',') >= 0 ||
-                        string.indexOf('\n') >= 0 || string.indexOf('\r') >= 0 ||
-                        string.indexOf(0) >= 0 || string.charAt(0) == '"')) {
-                    sb.append('"');
-                    int length = string.length();
-                    for (int j = 0; j < length; j += 1) {
-                        char c = string.charAt(j);
-                        if (c >= ' ' && c != '"') {
-                            sb.append(c);
-                        }
+            appendValue(ja.opt(i), a);
+        }
+        a.append('\n');
+    }
+
+    /**
+     * Append one value of a row. Values containing the comma character will
+     * be quoted. Troublesome characters may be removed.
+     * @param object The value, or null for an empty value.
+     * @param a The destination.
+     * @throws IOException
+     */
+    private static void appendValue(Object object, Appendable a)
+            throws IOException {
+        if (object != null) {
+            String string = object.toString();
+            if (string.length() > 0 && (string.indexOf(',') >= 0 ||
+                    string.indexOf('\n') >= 0 || string.indexOf('\r') >= 0 ||
+                    string.indexOf(0) >= 0 || string.charAt(0) == '"')) {
+                a.append('"');
+                int length = string.length();
+                for (int j = 0; j < length; j += 1) {
+                    char c = string.charAt(j);
+                    if (c >= ' ' && c != '"') {
+                        a.append(c);
                     }
-                    sb.append('"');
-                } else {
-                    sb.append(string);
                 }
+                a.append('"');
+            } else {
+                a.append(string);
             }
         }
-        sb.append('\n');
-        return sb.toString();
+    }
+
+    /**
+     * Get an iterator over the rows of a comma delimited text, using the
+     * first row as a source of names. The text is read as the iterator
+     * advances, so only one row is held in memory at a time.
+     * @param reader The source of the comma delimited text.
+     * @return An Iterator of JSONObjects. Its methods throw JSONException if
+     *  the text is badly formed or cannot be read.
+     * @throws JSONException
+     */
+    public static Iterator rows(Reader reader) throws JSONException {
+        JSONTokener x = new JSONTokener(reader);
+        return new RowIterator(rowToJSONArray(x), x);
+    }
+
+    /**
+     * Get an iterator over the rows of a comma delimited text, using a
+     * supplied JSONArray as the source of element names. The text is read as
+     * the iterator advances, so only one row is held in memory at a time.
+     * @param names A JSONArray of strings.
+     * @param reader The source of the comma delimited text.
+     * @return An Iterator of JSONObjects. Its methods throw JSONException if
+     *  the text is badly formed or cannot be read.
+     */
+    public static Iterator rows(JSONArray names, Reader reader) {
+        return new RowIterator(names, new JSONTokener(reader));
+    }
+
+    /**
+     * An iterator that reads one row ahead.
+     */
+    private static final class RowIterator implements Iterator {
+        private final String[] names;
+        private JSONObject next;
+        private final JSONTokener x;
+
+        RowIterator(JSONArray names, JSONTokener x) throws JSONException {
+            this.x = x;
+            if (names == null || names.length() == 0) {
+                this.names = null;
+            } else {
+                this.names = new String[names.length()];
+                for (int i = 0; i < this.names.length; i += 1) {
+                    this.names[i] = names.getString(i);
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            if (this.next == null && this.names != null) {
+                JSONArray ja = rowToJSONArray(this.x);
+                if (ja != null) {
+                    JSONObject jo = new JSONObject();
+                    for (int i = 0; i < this.names.length; i += 1) {
+                        jo.put(this.names[i], ja.opt(i));
+                    }
+                    this.next = jo;
+                }
+            }
+            return this.next != null;
+        }
+
+        public Object next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            JSONObject jo = this.next;
+            this.next = null;
+            return jo;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 
     /**
@@ -276,4 +385,75 @@ public class CDL {
         }
         return sb.toString();
     }
+
+    /**
+     * Write a comma delimited text row from a JSONArray, as rowToString
+     * does.
+     * @param ja A JSONArray of strings.
+     * @param writer The writer.
+     * @throws JSONException If the writer fails.
+     */
+    public static void writeRow(JSONArray ja, Writer writer)
+            throws JSONException {
+        try {
+            appendRow(ja, writer);
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+    }
+
+    /**
+     * Write a comma delimited text row from a JSONObject, taking the values in
+     * the order of a list of names.
+     * @param names A JSONArray of strings.
+     * @param jo A JSONObject.
+     * @param writer The writer.
+     * @throws JSONException If the writer fails.
+     */
+    public static void writeRow(JSONArray names, JSONObject jo, Writer writer)
+            throws JSONException {
+        try {
+            for (int i = 0; i < names.length(); i += 1) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                appendValue(jo.opt(names.getString(i)), writer);
+            }
+            writer.write('\n');
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+    }
+
+    /**
+     * Write a comma delimited text, with a first row of names, from JSONObjects
+     * produced one at a time by an iterator. Output is buffered, and the
+     * writer is flushed but not closed at the end.
+     * @param names A JSONArray of strings.
+     * @param rows An Iterator of JSONObjects. Other elements are skipped.
+     * @param writer The writer.
+     * @return The number of rows written, not counting the names.
+     * @throws JSONException If the writer fails.
+     */
+    public static int write(JSONArray names, Iterator rows, Writer writer)
+            throws JSONException {
+        Writer w = writer instanceof BufferedWriter
+            ? writer
+            : new BufferedWriter(writer);
+        int count = 0;
+        writeRow(names, w);
+        while (rows.hasNext()) {
+            Object row = rows.next();
+            if (row instanceof JSONObject) {
+                writeRow(names, (JSONObject)row, w);
+                count += 1;
+            }
+        }
+        try {
+            w.flush();
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+        return count;
+    }
 }
@@ -0,0 +1,357 @@
+package org.json;
+
+/*
+Copyright (c) 2002 JSON.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+The Software shall be used for Good, not Evil.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A CompactMap keeps a small number of entries in a pair of parallel arrays,
+ * which are searched in order. Most JSONObjects have only a few keys, and for
+ * them this takes a fraction of the memory of a HashMap, which needs a table
+ * and an entry object for every key. When the map grows beyond
+ * <code>threshold</code> keys, its entries move to a HashMap. Until then, keys
+ * are iterated in the order in which they were first put.
+ * @author JSON.org
+ * @version 2014-05-03
+ */
+final class CompactMap extends AbstractMap {
+
+    /**
+     * The most keys kept in the arrays.
+     */
+    static final int threshold = 8;
+
+    /**
+     * The map that holds the entries once there are more than threshold of
+     * them, or null.
+     */
+    private HashMap hashMap;
+
+    /**
+     * The keys, or null if there are none yet or the map has been promoted.
+     */
+    private Object[] keys;
+
+    /**
+     * The number of times the map has been structurally modified, so that
+     * iterators can detect concurrent modification.
+     */
+    private int modCount;
+
+    /**
+     * The number of keys in the arrays.
+     */
+    private int size;
+
+    /**
+     * The values, parallel to keys.
+     */
+    private Object[] values;
+
+
+    public void clear() {
+        this.hashMap = null;
+        this.keys = null;
+        this.values = null;
+        this.size = 0;
+        this.modCount += 1;
+    }
+
+
+    public boolean containsKey(Object key) {
+        if (this.hashMap != null) {
+            return this.hashMap.containsKey(key);
+        }
+        return this.indexOf(key) >= 0;
+    }
+
+
+    public Set entrySet() {
+        return new EntrySet();
+    }
+
+
+    public Object get(Object key) {
+        if (this.hashMap != null) {
+            return this.hashMap.get(key);
+        }
+        int i = this.indexOf(key);
+        return i >= 0 ? this.values[i] : null;
+    }
+
+
+    public Set keySet() {
+        return new KeySet();
+    }
+
+
+    public Object put(Object key, Object value) {
+        if (this.hashMap != null) {
+            return this.hashMap.put(key, value);
+        }
+        int i = this.indexOf(key);
+        if (i >= 0) {
+            Object old = this.values[i];
+            this.values[i] = value;
+            return old;
+        }
+        if (this.keys == null) {
+            this.keys = new Object[4];
+            this.values = new Object[4];
+        } else if (this.size == this.keys.length) {
+            if (this.size == threshold) {
+                HashMap map = new HashMap();
+                for (i = 0; i < this.size; i += 1) {
+                    map.put(this.keys[i], this.values[i]);
+                }
+                map.put(key, value);
+                this.hashMap = map;
+                this.keys = null;
+                this.values = null;
+                this.size = 0;
+                this.modCount += 1;
+                return null;
+            }
+            Object[] k = new Object[threshold];
+            Object[] v = new Object[threshold];
+            System.arraycopy(this.keys, 0, k, 0, this.size);
+            System.arraycopy(this.values, 0, v, 0, this.size);
+            this.keys = k;
+            this.values = v;
+        }
+        this.keys[this.size] = key;
+        this.values[this.size] = value;
+        this.size += 1;
+        this.modCount += 1;
+        return null;
+    }
+
+
+    public Object remove(Object key) {
+        if (this.hashMap != null) {
+            return this.hashMap.remove(key);
+        }
+        int i = this.indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        Object old = this.values[i];
+        this.removeAt(i);
+        return old;
+    }
+
+
+    public int size() {
+        return this.hashMap != null ? this.hashMap.size() : this.size;
+    }
+
+
+    /**
+     * Find a key in the arrays.
+     * @param key A key.
+     * @return The index of the key, or -1.
+     */
+    private int indexOf(Object key) {
+        if (key == null) {
+            return -1;
+        }
+        for (int i = 0; i < this.size; i += 1) {
+            if (this.keys[i] == key) {
+                return i;
+            }
+        }
+        for (int i = 0; i < this.size; i += 1) {
+            if (key.equals(this.keys[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Remove the key at an index from the arrays, keeping the others in order.
+     * @param i The index.
+     */
+    private void removeAt(int i) {
+        int tail = this.size - i - 1;
+        System.arraycopy(this.keys, i + 1, this.keys, i, tail);
+        System.arraycopy(this.values, i + 1, this.values, i, tail);
+        this.size -= 1;
+        this.keys[this.size] = null;
+        this.values[this.size] = null;
+        this.modCount += 1;
+    }
+
+
+    /**
+     * An iterator over the arrays.
+     */
+    private abstract class ArrayIterator implements Iterator {
+        private int expectedModCount = CompactMap.this.modCount;
+        int last = -1;
+        private int next = 0;
+
+        public boolean hasNext() {
+            if (CompactMap.this.modCount != this.expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            return this.next < CompactMap.this.size;
+        }
+
+        int nextIndex() {
+            if (CompactMap.this.modCount != this.expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (this.next >= CompactMap.this.size) {
+                throw new NoSuchElementException();
+            }
+            this.last = this.next;
+            this.next += 1;
+            return this.last;
+        }
+
+        public void remove() {
+            if (this.last < 0) {
+                throw new IllegalStateException();
+            }
+            if (CompactMap.this.modCount != this.expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            CompactMap.this.removeAt(this.last);
+            this.next = this.last;
+            this.last = -1;
+            this.expectedModCount = CompactMap.this.modCount;
+        }
+    }
+
+
+    /**
+     * A view of the entries.
+     */
+    private final class EntrySet extends AbstractSet {
+
+        public Iterator iterator() {
+            if (CompactMap.this.hashMap != null) {
+                return CompactMap.this.hashMap.entrySet().iterator();
+            }
+            return new ArrayIterator() {
+                public Object next() {
+                    return new Entry(this.nextIndex());
+                }
+            };
+        }
+
+        public int size() {
+            return CompactMap.this.size();
+        }
+    }
+
+
+    /**
+     * An entry in the arrays. It reads through to the arrays, so it is valid
+     * only until the map is next modified.
+     */
+    private final class Entry implements Map.Entry {
+        private final int index;
+
+        Entry(int index) {
+            this.index = index;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry e = (Map.Entry)o;
+            Object value = this.getValue();
+            return this.getKey().equals(e.getKey()) &&
+                (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        public Object getKey() {
+            return CompactMap.this.keys[this.index];
+        }
+
+        public Object getValue() {
+            return CompactMap.this.values[this.index];
+        }
+
+        public int hashCode() {
+            Object value = this.getValue();
+            return this.getKey().hashCode() ^
+                (value == null ? 0 : value.hashCode());
+        }
+
+        public Object setValue(Object value) {
+            Object old = CompactMap.this.values[this.index];
+            CompactMap.this.values[this.index] = value;
+            return old;
+        }
+
+        public String toString() {
+            return this.getKey() + "=" + this.getValue();
+        }
+    }
+
+
+    /**
+     * A view of the keys.
+     */
+    private final class KeySet extends AbstractSet {
+
+        public boolean contains(Object o) {
+            return CompactMap.this.containsKey(o);
+        }
+
+        public Iterator iterator() {
+            if (CompactMap.this.hashMap != null) {
+                return CompactMap.this.hashMap.keySet().iterator();
+            }
+            return new ArrayIterator() {
+                public Object next() {
+                    return CompactMap.this.keys[this.nextIndex()];
+                }
+            };
+        }
+
+        public boolean remove(Object o) {
+            int size = CompactMap.this.size();
+            CompactMap.this.remove(o);
+            return CompactMap.this.size() != size;
+        }
+
+        public int size() {
+            return CompactMap.this.size();
+        }
+    }
+}
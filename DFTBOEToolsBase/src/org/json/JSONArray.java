@@ -25,7 +25,6 @@ package org.json;
  */
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
@@ -114,7 +113,7 @@ public class JSONArray {
                     this.myArrayList.add(JSONObject.NULL);
                 } else {
                     x.back();
-                    this.myArrayList.add(x.nextValue());
+                    this.myArrayList.add(x.nextMember());
                 }
                 switch (x.nextClean()) {
                 case ';':
@@ -360,13 +359,13 @@ public class JSONArray {
      */
     public String join(String separator) throws JSONException {
         int len = this.length();
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = new StringBuilder();
 
         for (int i = 0; i < len; i += 1) {
             if (i > 0) {
                 sb.append(separator);
             }
-            sb.append(JSONObject.valueToString(this.myArrayList.get(i)));
+            sb.append(JSONObject.valueToString(this.listGet(i)));
         }
         return sb.toString();
     }
@@ -388,8 +387,25 @@ public class JSONArray {
      * @return An object value, or null if there is no object at that index.
      */
     public Object opt(int index) {
-        return (index < 0 || index >= this.length()) ? null : this.myArrayList
-                .get(index);
+        return (index < 0 || index >= this.length()) ? null : this
+                .listGet(index);
+    }
+
+    /**
+     * Get the element at an index, parsing it first if its parsing was
+     * deferred by a lazy JSONTokener.
+     *
+     * @param index
+     *            The index, which must be in range.
+     * @return The element.
+     */
+    private Object listGet(int index) {
+        Object value = this.myArrayList.get(index);
+        if (value instanceof LazyValue) {
+            value = ((LazyValue) value).parse();
+            this.myArrayList.set(index, value);
+        }
+        return value;
     }
 
     /**
@@ -876,10 +892,7 @@ public class JSONArray {
      * @throws JSONException
      */
     public String toString(int indentFactor) throws JSONException {
-        StringWriter sw = new StringWriter();
-        synchronized (sw.getBuffer()) {
-            return this.write(sw, indentFactor, 0).toString();
-        }
+        return this.write(new StringBuilder(), indentFactor, 0).toString();
     }
 
     /**
@@ -892,7 +905,21 @@ public class JSONArray {
      * @throws JSONException
      */
     public Writer write(Writer writer) throws JSONException {
-        return this.write(writer, 0, 0);
+        this.write(writer, 0, 0);
+        return writer;
+    }
+
+    /**
+     * Append the contents of the JSONArray as JSON text to an Appendable,
+     * such as a StringBuilder. For compactness, no whitespace is added.
+     * <p>
+     * Warning: This method assumes that the data structure is acyclical.
+     *
+     * @return The Appendable.
+     * @throws JSONException
+     */
+    public Appendable write(Appendable appendable) throws JSONException {
+        return this.write(appendable, 0, 0);
     }
 
     /**
@@ -908,37 +935,37 @@ public class JSONArray {
      * @return The writer.
      * @throws JSONException
      */
-    Writer write(Writer writer, int indentFactor, int indent)
+    Appendable write(Appendable writer, int indentFactor, int indent)
             throws JSONException {
         try {
             boolean commanate = false;
             int length = this.length();
-            writer.write('[');
+            writer.append('[');
 
             if (length == 1) {
-                JSONObject.writeValue(writer, this.myArrayList.get(0),
+                JSONObject.writeValue(writer, this.listGet(0),
                         indentFactor, indent);
             } else if (length != 0) {
                 final int newindent = indent + indentFactor;
 
                 for (int i = 0; i < length; i += 1) {
                     if (commanate) {
-                        writer.write(',');
+                        writer.append(',');
                     }
                     if (indentFactor > 0) {
-                        writer.write('\n');
+                        writer.append('\n');
                     }
                     JSONObject.indent(writer, newindent);
-                    JSONObject.writeValue(writer, this.myArrayList.get(i),
+                    JSONObject.writeValue(writer, this.listGet(i),
                             indentFactor, newindent);
                     commanate = true;
                 }
                 if (indentFactor > 0) {
-                    writer.write('\n');
+                    writer.append('\n');
                 }
                 JSONObject.indent(writer, indent);
             }
-            writer.write(']');
+            writer.append(']');
             return writer;
         } catch (IOException e) {
             throw new JSONException(e);
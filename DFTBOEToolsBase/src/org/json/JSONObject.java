@@ -25,14 +25,10 @@ SOFTWARE.
 */
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
 import java.util.Collection;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
@@ -95,17 +91,52 @@ import java.util.Set;
  */
 public class JSONObject {
     /**
-     * The maximum number of keys in the key pool.
+     * The maximum number of keys in the key pool. This can be set with the
+     * org.json.JSONObject.keyPoolSize system property; 0 turns pooling off.
      */
-     private static final int keyPoolSize = 100;
+     private static final int keyPoolSize =
+         Integer.getInteger("org.json.JSONObject.keyPoolSize", 1024).intValue();
 
    /**
      * Key pooling is like string interning, but without permanently tying up
      * memory. To help conserve memory, storage of duplicated key strings in
      * JSONObjects will be avoided by using a key pool to manage unique key
-     * string objects. This is used by JSONObject.put(string, object).
+     * string objects. This is used by JSONObject.put(string, object). The
+     * pool is safe to share between threads.
      */
-     private static HashMap keyPool = new HashMap(keyPoolSize);
+     private static final KeyPool keyPool = new KeyPool(keyPoolSize);
+
+    /**
+     * The powers of ten that are exactly representable as doubles.
+     */
+     private static final double[] powersOfTen = {
+         1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+         1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+     };
+
+    /**
+     * The lower case hexadecimal digits.
+     */
+     private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
+    /**
+     * The escape sequence for each character below 128 that cannot appear
+     * literally in a quoted string, or null if the character can.
+     */
+     private static final String[] escapes = new String[128];
+
+     static {
+         for (int i = 0; i < ' '; i += 1) {
+             escapes[i] = "\\u00" + hexDigits[i >>> 4] + hexDigits[i & 0xF];
+         }
+         escapes['\b'] = "\\b";
+         escapes['\t'] = "\\t";
+         escapes['\n'] = "\\n";
+         escapes['\f'] = "\\f";
+         escapes['\r'] = "\\r";
+         escapes['"'] = "\\\"";
+         escapes['\\'] = "\\\\";
+     }
 
     /**
      * JSONObject.NULL is equivalent to the value that JavaScript calls null,
@@ -144,7 +175,8 @@ public class JSONObject {
 
 
     /**
-     * The map where the JSONObject's properties are kept.
+     * The map where the JSONObject's properties are kept. It is a CompactMap,
+     * so that objects with only a few keys stay small.
      */
     private final Map map;
 
@@ -162,7 +194,7 @@ public class JSONObject {
      * Construct an empty JSONObject.
      */
     public JSONObject() {
-        this.map = new HashMap();
+        this.map = new CompactMap();
     }
 
 
@@ -222,7 +254,7 @@ public class JSONObject {
             } else if (c != ':') {
                 throw x.syntaxError("Expected a ':' after a key");
             }
-            this.putOnce(key, x.nextValue());
+            this.putOnce(key, x.nextMember());
 
 // Pairs are separated by ','. We will also tolerate ';'.
 
@@ -251,7 +283,7 @@ public class JSONObject {
      * @throws JSONException
      */
     public JSONObject(Map map) {
-        this.map = new HashMap();
+        this.map = new CompactMap();
         if (map != null) {
             Iterator i = map.entrySet().iterator();
             while (i.hasNext()) {
@@ -789,7 +821,23 @@ public class JSONObject {
      * @return      An object which is the value, or null if there is no value.
      */
     public Object opt(String key) {
-        return key == null ? null : this.map.get(key);
+        return key == null ? null : this.mapGet(key);
+    }
+
+
+    /**
+     * Get the value associated with a key, parsing it first if its parsing
+     * was deferred by a lazy JSONTokener.
+     * @param key   A key.
+     * @return      The value, or null.
+     */
+    private Object mapGet(Object key) {
+        Object value = this.map.get(key);
+        if (value instanceof LazyValue) {
+            value = ((LazyValue)value).parse();
+            this.map.put(key, value);
+        }
+        return value;
     }
 
 
@@ -979,46 +1027,13 @@ public class JSONObject {
 
 
     private void populateMap(Object bean) {
-        Class klass = bean.getClass();
-
-// If klass is a System class then set includeSuperClass to false.
-
-        boolean includeSuperClass = klass.getClassLoader() != null;
-
-        Method[] methods = includeSuperClass
-                ? klass.getMethods()
-                : klass.getDeclaredMethods();
-        for (int i = 0; i < methods.length; i += 1) {
+        BeanMetadata metadata = BeanMetadata.forClass(bean.getClass());
+        for (int i = 0; i < metadata.getters.length; i += 1) {
             try {
-                Method method = methods[i];
-                if (Modifier.isPublic(method.getModifiers())) {
-                    String name = method.getName();
-                    String key = "";
-                    if (name.startsWith("get")) {
-                        if ("getClass".equals(name) ||
-                                "getDeclaringClass".equals(name)) {
-                            key = "";
-                        } else {
-                            key = name.substring(3);
-                        }
-                    } else if (name.startsWith("is")) {
-                        key = name.substring(2);
-                    }
-                    if (key.length() > 0 &&
-                            Character.isUpperCase(key.charAt(0)) &&
-                            method.getParameterTypes().length == 0) {
-                        if (key.length() == 1) {
-                            key = key.toLowerCase();
-                        } else if (!Character.isUpperCase(key.charAt(1))) {
-                            key = key.substring(0, 1).toLowerCase() +
-                                key.substring(1);
-                        }
-
-                        Object result = method.invoke(bean, (Object[])null);
-                        if (result != null) {
-                            this.map.put(key, wrap(result));
-                        }
-                    }
+                Object result =
+                    metadata.getters[i].invoke(bean, (Object[])null);
+                if (result != null) {
+                    this.map.put(metadata.keys[i], wrap(result));
                 }
             } catch (Exception ignore) {
             }
@@ -1122,22 +1137,12 @@ public class JSONObject {
      *  or if the key is null.
      */
     public JSONObject put(String key, Object value) throws JSONException {
-        String pooled;
         if (key == null) {
             throw new JSONException("Null key.");
         }
         if (value != null) {
             testValidity(value);
-            pooled = (String)keyPool.get(key);
-            if (pooled == null) {
-                if (keyPool.size() >= keyPoolSize) {
-                    keyPool = new HashMap(keyPoolSize);
-                }
-                keyPool.put(key, key);
-            } else {
-                key = pooled;
-            }
-            this.map.put(key, value);
+            this.map.put(keyPool.intern(key), value);
         } else {
             this.remove(key);
         }
@@ -1192,74 +1197,100 @@ public class JSONObject {
      * @return  A String correctly formatted for insertion in a JSON text.
      */
     public static String quote(String string) {
-        StringWriter sw = new StringWriter();
-        synchronized (sw.getBuffer()) {
-            try {
-                return quote(string, sw).toString();
-            } catch (IOException ignored) {
-                // will never happen - we are writing to a string writer
-                return "";
-            }
+        StringBuilder sb = new StringBuilder(string == null
+            ? 2
+            : string.length() + 16);
+        try {
+            return quote(string, sb).toString();
+        } catch (IOException ignored) {
+            // will never happen - we are appending to a StringBuilder
+            return "";
         }
     }
 
+    /**
+     * Write a string in double quotes with backslash sequences in all the
+     * right places, as quote(String) does.
+     * @param string A String
+     * @param w The writer.
+     * @return The writer.
+     * @throws IOException
+     */
     public static Writer quote(String string, Writer w) throws IOException {
+        quote(string, (Appendable)w);
+        return w;
+    }
+
+    /**
+     * Append a string in double quotes with backslash sequences in all the
+     * right places, as quote(String) does. Runs of characters that need no
+     * escaping are appended in bulk.
+     * @param string A String
+     * @param a The destination.
+     * @return The destination.
+     * @throws IOException
+     */
+    public static Appendable quote(String string, Appendable a)
+            throws IOException {
         if (string == null || string.length() == 0) {
-            w.write("\"\"");
-            return w;
+            a.append("\"\"");
+            return a;
         }
 
-        char b;
-        char c = 0;
-        String hhhh;
+        char c;
+        String escape;
         int i;
         int len = string.length();
+        int run = 0;
 
-        w.write('"');
+        a.append('"');
         for (i = 0; i < len; i += 1) {
-            b = c;
             c = string.charAt(i);
-            switch (c) {
-            case '\\':
-            case '"':
-                w.write('\\');
-                w.write(c);
-                break;
-            case '/':
-                if (b == '<') {
-                    w.write('\\');
-                }
-                w.write(c);
-                break;
-            case '\b':
-                w.write("\\b");
-                break;
-            case '\t':
-                w.write("\\t");
-                break;
-            case '\n':
-                w.write("\\n");
-                break;
-            case '\f':
-                w.write("\\f");
-                break;
-            case '\r':
-                w.write("\\r");
-                break;
-            default:
-                if (c < ' ' || (c >= '\u0080' && c < '\u00a0')
-                        || (c >= '\u2000' && c < '\u2100')) {
-                    w.write("\\u");
-                    hhhh = Integer.toHexString(c);
-                    w.write("0000", 0, 4 - hhhh.length());
-                    w.write(hhhh);
-                } else {
-                    w.write(c);
+            if (c < 128) {
+                escape = escapes[c];
+                if (escape == null) {
+                    if (c != '/' || i == 0 || string.charAt(i - 1) != '<') {
+                        continue;
+                    }
+                    escape = "\\/";
                 }
+            } else if (c < '\u00a0' || (c >= '\u2000' && c < '\u2100')) {
+                escape = null;
+            } else {
+                continue;
             }
+            if (i > run) {
+                append(a, string, run, i);
+            }
+            if (escape != null) {
+                a.append(escape);
+            } else {
+                a.append("\\u");
+                a.append(hexDigits[c >>> 12]);
+                a.append(hexDigits[(c >>> 8) & 0xF]);
+                a.append(hexDigits[(c >>> 4) & 0xF]);
+                a.append(hexDigits[c & 0xF]);
+            }
+            run = i + 1;
+        }
+        if (len > run) {
+            append(a, string, run, len);
+        }
+        a.append('"');
+        return a;
+    }
+
+    /**
+     * Append part of a string. A Writer is given the range directly, because
+     * Writer.append would first copy it into a new string.
+     */
+    private static void append(Appendable a, String string, int start,
+            int end) throws IOException {
+        if (a instanceof Writer) {
+            ((Writer)a).write(string, start, end - start);
+        } else {
+            a.append(string, start, end);
         }
-        w.write('"');
-        return w;
     }
 
     /**
@@ -1269,7 +1300,10 @@ public class JSONObject {
      * or null if there was no value.
      */
     public Object remove(String key) {
-        return this.map.remove(key);
+        Object value = this.map.remove(key);
+        return value instanceof LazyValue
+            ? ((LazyValue)value).parse()
+            : value;
     }
 
     /**
@@ -1279,7 +1313,6 @@ public class JSONObject {
      * @return A simple JSON value.
      */
     public static Object stringToValue(String string) {
-        Double d;
         if (string.equals("")) {
             return string;
         }
@@ -1303,28 +1336,180 @@ public class JSONObject {
 
         char b = string.charAt(0);
         if ((b >= '0' && b <= '9') || b == '.' || b == '-' || b == '+') {
-            try {
-                if (string.indexOf('.') > -1 ||
-                        string.indexOf('e') > -1 || string.indexOf('E') > -1) {
-                    d = Double.valueOf(string);
-                    if (!d.isInfinite() && !d.isNaN()) {
-                        return d;
-                    }
-                } else {
-                    Long myLong = new Long(string);
-                    if (myLong.longValue() == myLong.intValue()) {
-                        return new Integer(myLong.intValue());
-                    } else {
-                        return myLong;
-                    }
-                }
-            }  catch (Exception ignore) {
+            Number number = stringToNumber(string);
+            if (number != null) {
+                return number;
             }
         }
         return string;
     }
 
 
+    /**
+     * Convert a string to an Integer, Long or Double in a single pass. A
+     * string containing '.', 'e' or 'E' is read as a Double, which must be
+     * finite; any other is read as a long, which becomes an Integer if it
+     * fits. Plain decimal forms are scanned directly. The rarer forms that
+     * Long.parseLong and Double.valueOf also accept (such as type suffixes
+     * and hex floats) are left to them.
+     * @param string A string beginning with a digit, '.', '-' or '+'.
+     * @return A Number, or null if the string is not a number.
+     */
+    static Number stringToNumber(String string) {
+        int length = string.length();
+        int i = 0;
+        char c = string.charAt(0);
+        boolean negative = c == '-';
+        if (negative || c == '+') {
+            i = 1;
+        }
+
+// Accumulate the integer part negatively, as Long.parseLong does, so that
+// Long.MIN_VALUE can be represented. Separately keep up to 15 significant
+// digits of the whole mantissa for the floating point fast path.
+
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multmin = limit / 10;
+        long integer = 0;
+        boolean overflow = false;
+        long mantissa = 0;
+        int significant = 0;
+        int start = i;
+        while (i < length && (c = string.charAt(i)) >= '0' && c <= '9') {
+            int digit = c - '0';
+            if (integer < multmin || integer * 10 < limit + digit) {
+                overflow = true;
+            } else {
+                integer = integer * 10 - digit;
+            }
+            if (mantissa >= 0 && (mantissa != 0 || digit != 0)) {
+                significant += 1;
+                mantissa = significant > 15 ? -1 : mantissa * 10 + digit;
+            }
+            i += 1;
+        }
+        int digits = i - start;
+        boolean decimal = false;
+        int fraction = 0;
+        if (i < length && string.charAt(i) == '.') {
+            decimal = true;
+            i += 1;
+            start = i;
+            while (i < length && (c = string.charAt(i)) >= '0' && c <= '9') {
+                int digit = c - '0';
+                if (mantissa >= 0 && (mantissa != 0 || digit != 0)) {
+                    significant += 1;
+                    mantissa = significant > 15 ? -1 : mantissa * 10 + digit;
+                }
+                i += 1;
+            }
+            fraction = i - start;
+            digits += fraction;
+        }
+        int exponent = 0;
+        if (digits > 0 && i < length &&
+                ((c = string.charAt(i)) == 'e' || c == 'E')) {
+            decimal = true;
+            i += 1;
+            boolean negativeExponent = false;
+            if (i < length && ((c = string.charAt(i)) == '-' || c == '+')) {
+                negativeExponent = c == '-';
+                i += 1;
+            }
+            start = i;
+            while (i < length && (c = string.charAt(i)) >= '0' && c <= '9') {
+                if (exponent < 100000) {
+                    exponent = exponent * 10 + (c - '0');
+                }
+                i += 1;
+            }
+            if (i == start) {
+                return stringToNumberSlowly(string);
+            }
+            if (negativeExponent) {
+                exponent = -exponent;
+            }
+        }
+        if (digits == 0 || i < length) {
+            return stringToNumberSlowly(string);
+        }
+        if (!decimal) {
+            if (overflow) {
+                return null;
+            }
+            long value = negative ? integer : -integer;
+            if (value == (int)value) {
+                return Integer.valueOf((int)value);
+            }
+            return Long.valueOf(value);
+        }
+
+// An exact mantissa below 10^15 scaled by an exact power of ten is correctly
+// rounded by a single multiplication or division.
+
+        double d;
+        int scale = exponent - fraction;
+        if (mantissa >= 0 && scale >= -22 && scale <= 22) {
+            d = scale < 0
+                ? mantissa / powersOfTen[-scale]
+                : mantissa * powersOfTen[scale];
+            if (negative) {
+                d = -d;
+            }
+        } else {
+            d = Double.parseDouble(string);
+            if (Double.isInfinite(d)) {
+                return null;
+            }
+        }
+        return new Double(d);
+    }
+
+
+    /**
+     * Convert a string that is not a plain decimal number, using
+     * Double.valueOf or Long.parseLong, which accept some further forms.
+     * @param string A string.
+     * @return A Number, or null if the string is not a number.
+     */
+    private static Number stringToNumberSlowly(String string) {
+        boolean decimal = string.indexOf('.') > -1 ||
+            string.indexOf('e') > -1 || string.indexOf('E') > -1;
+        if (!decimal) {
+
+// Long.parseLong accepts only digits after the sign, but those digits may be
+// non-ASCII.
+
+            boolean ascii = true;
+            for (int i = 0; i < string.length(); i += 1) {
+                if (string.charAt(i) >= 128) {
+                    ascii = false;
+                    break;
+                }
+            }
+            if (ascii) {
+                return null;
+            }
+        }
+        try {
+            if (decimal) {
+                Double d = Double.valueOf(string);
+                if (!d.isInfinite() && !d.isNaN()) {
+                    return d;
+                }
+            } else {
+                long value = Long.parseLong(string);
+                if (value == (int)value) {
+                    return Integer.valueOf((int)value);
+                }
+                return Long.valueOf(value);
+            }
+        } catch (Exception ignore) {
+        }
+        return null;
+    }
+
+
     /**
      * Throw an exception if the object is a NaN or infinite number.
      * @param o The object to test.
@@ -1400,10 +1585,7 @@ public class JSONObject {
      * @throws JSONException If the object contains an invalid number.
      */
     public String toString(int indentFactor) throws JSONException {
-        StringWriter w = new StringWriter();
-        synchronized (w.getBuffer()) {
-            return this.write(w, indentFactor, 0).toString();
-        }
+        return this.write(new StringBuilder(), indentFactor, 0).toString();
     }
 
     /**
@@ -1498,15 +1680,7 @@ public class JSONObject {
              if (object instanceof Map) {
                  return new JSONObject((Map)object);
              }
-             Package objectPackage = object.getClass().getPackage();
-             String objectPackageName = objectPackage != null
-                 ? objectPackage.getName()
-                 : "";
-             if (
-                 objectPackageName.startsWith("java.") ||
-                 objectPackageName.startsWith("javax.") ||
-                 object.getClass().getClassLoader() == null
-             ) {
+             if (BeanMetadata.forClass(object.getClass()).system) {
                  return object.toString();
              }
              return new JSONObject(object);
@@ -1526,14 +1700,29 @@ public class JSONObject {
       * @throws JSONException
       */
      public Writer write(Writer writer) throws JSONException {
-        return this.write(writer, 0, 0);
+        this.write(writer, 0, 0);
+        return writer;
+    }
+
+
+     /**
+      * Append the contents of the JSONObject as JSON text to an Appendable,
+      * such as a StringBuilder. For compactness, no whitespace is added.
+      * <p>
+      * Warning: This method assumes that the data structure is acyclical.
+      *
+      * @return The Appendable.
+      * @throws JSONException
+      */
+     public Appendable write(Appendable appendable) throws JSONException {
+        return this.write(appendable, 0, 0);
     }
 
 
-    static final Writer writeValue(Writer writer, Object value,
+    static final Appendable writeValue(Appendable writer, Object value,
             int indentFactor, int indent) throws JSONException, IOException {
         if (value == null || value.equals(null)) {
-            writer.write("null");
+            writer.append("null");
         } else if (value instanceof JSONObject) {
             ((JSONObject) value).write(writer, indentFactor, indent);
         } else if (value instanceof JSONArray) {
@@ -1546,9 +1735,9 @@ public class JSONObject {
         } else if (value.getClass().isArray()) {
             new JSONArray(value).write(writer, indentFactor, indent);
         } else if (value instanceof Number) {
-            writer.write(numberToString((Number) value));
+            writer.append(numberToString((Number) value));
         } else if (value instanceof Boolean) {
-            writer.write(value.toString());
+            writer.append(value.toString());
         } else if (value instanceof JSONString) {
             Object o;
             try {
@@ -1556,16 +1745,21 @@ public class JSONObject {
             } catch (Exception e) {
                 throw new JSONException(e);
             }
-            writer.write(o != null ? o.toString() : quote(value.toString()));
+            if (o != null) {
+                writer.append(o.toString());
+            } else {
+                quote(value.toString(), writer);
+            }
         } else {
             quote(value.toString(), writer);
         }
         return writer;
     }
 
-    static final void indent(Writer writer, int indent) throws IOException {
+    static final void indent(Appendable writer, int indent)
+            throws IOException {
         for (int i = 0; i < indent; i += 1) {
-            writer.write(' ');
+            writer.append(' ');
         }
     }
 
@@ -1578,48 +1772,48 @@ public class JSONObject {
      * @return The writer.
      * @throws JSONException
      */
-    Writer write(Writer writer, int indentFactor, int indent)
+    Appendable write(Appendable writer, int indentFactor, int indent)
             throws JSONException {
         try {
             boolean commanate = false;
             final int length = this.length();
             Iterator keys = this.keys();
-            writer.write('{');
+            writer.append('{');
 
             if (length == 1) {
                 Object key = keys.next();
-                writer.write(quote(key.toString()));
-                writer.write(':');
+                quote(key.toString(), writer);
+                writer.append(':');
                 if (indentFactor > 0) {
-                    writer.write(' ');
+                    writer.append(' ');
                 }
-                writeValue(writer, this.map.get(key), indentFactor, indent);
+                writeValue(writer, this.mapGet(key), indentFactor, indent);
             } else if (length != 0) {
                 final int newindent = indent + indentFactor;
                 while (keys.hasNext()) {
                     Object key = keys.next();
                     if (commanate) {
-                        writer.write(',');
+                        writer.append(',');
                     }
                     if (indentFactor > 0) {
-                        writer.write('\n');
+                        writer.append('\n');
                     }
                     indent(writer, newindent);
-                    writer.write(quote(key.toString()));
-                    writer.write(':');
+                    quote(key.toString(), writer);
+                    writer.append(':');
                     if (indentFactor > 0) {
-                        writer.write(' ');
+                        writer.append(' ');
                     }
-                    writeValue(writer, this.map.get(key), indentFactor,
+                    writeValue(writer, this.mapGet(key), indentFactor,
                             newindent);
                     commanate = true;
                 }
                 if (indentFactor > 0) {
-                    writer.write('\n');
+                    writer.append('\n');
                 }
                 indent(writer, indent);
             }
-            writer.write('}');
+            writer.append('}');
             return writer;
         } catch (IOException exception) {
             throw new JSONException(exception);
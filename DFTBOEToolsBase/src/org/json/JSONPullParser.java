@@ -0,0 +1,416 @@
+package org.json;
+
+/*
+Copyright (c) 2002 JSON.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+The Software shall be used for Good, not Evil.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.Reader;
+
+/**
+ * A JSONPullParser reads a JSON text one event at a time, so that a large
+ * text can be processed without building the whole JSONObject or JSONArray
+ * in memory. It accepts the same grammar as the JSONObject and JSONArray
+ * constructors that take a JSONTokener, including their leniencies.
+ * <p>
+ * Each call to <code>next</code> returns one of <code>START_OBJECT</code>,
+ * <code>END_OBJECT</code>, <code>START_ARRAY</code>, <code>END_ARRAY</code>,
+ * <code>KEY</code>, <code>VALUE</code> or <code>END_DOCUMENT</code>. A
+ * subtree that is not wanted can be passed over with
+ * <code>skipChildren</code>, and one that is wanted can be built on its own
+ * with <code>getJSONObject</code> or <code>getJSONArray</code>. For example,
+ * <pre>
+ * JSONPullParser p = new JSONPullParser(reader);
+ * while (p.next() != JSONPullParser.END_DOCUMENT) {
+ *     if (p.getEvent() == JSONPullParser.START_OBJECT &amp;&amp;
+ *             "row".equals(p.getKey())) {
+ *         handle(p.getJSONObject());
+ *     }
+ * }</pre>
+ * <p>
+ * Several JSON texts may follow one another in the same source. Each is
+ * reported in turn, and <code>END_DOCUMENT</code> is returned only when the
+ * source is exhausted.
+ * @author JSON.org
+ * @version 2014-05-03
+ */
+public class JSONPullParser {
+
+    /** The start of an object. The '{' has been read. */
+    public static final int START_OBJECT = 1;
+
+    /** The end of an object. The '}' has been read. */
+    public static final int END_OBJECT = 2;
+
+    /** The start of an array. The '[' has been read. */
+    public static final int START_ARRAY = 3;
+
+    /** The end of an array. The ']' has been read. */
+    public static final int END_ARRAY = 4;
+
+    /** A key within an object. */
+    public static final int KEY = 5;
+
+    /**
+     * A String, Number, Boolean or JSONObject.NULL value, or a value that was
+     * materialized by getJSONObject or getJSONArray.
+     */
+    public static final int VALUE = 6;
+
+    /** There is no more input. */
+    public static final int END_DOCUMENT = 7;
+
+    /**
+     * The current event, or 0 before the first call to next.
+     */
+    private int event;
+
+    /**
+     * The key of the current member.
+     */
+    private String key;
+
+    /**
+     * For each open container, the key it was found under.
+     */
+    private String[] keys;
+
+    /**
+     * For each open container, 'a' (array) or 'o' (object).
+     */
+    private char[] stack;
+
+    /**
+     * The number of open containers.
+     */
+    private int top;
+
+    /**
+     * The current scalar value.
+     */
+    private Object value;
+
+    /**
+     * The source of the text.
+     */
+    private final JSONTokener x;
+
+
+    /**
+     * Construct a JSONPullParser from a JSONTokener.
+     * @param x A JSONTokener positioned at the start of a JSON text.
+     */
+    public JSONPullParser(JSONTokener x) {
+        this.x = x;
+        this.keys = new String[16];
+        this.stack = new char[16];
+        this.top = 0;
+    }
+
+
+    /**
+     * Construct a JSONPullParser from a Reader.
+     * @param reader A reader.
+     */
+    public JSONPullParser(Reader reader) {
+        this(new JSONTokener(reader));
+    }
+
+
+    /**
+     * Construct a JSONPullParser from a string.
+     * @param s A source string.
+     */
+    public JSONPullParser(String s) {
+        this(new JSONTokener(s));
+    }
+
+
+    /**
+     * Get the number of objects and arrays that are currently open. This is
+     * 1 at the START_OBJECT of a top level object and 0 at its END_OBJECT.
+     * @return The nesting depth.
+     */
+    public int getDepth() {
+        return this.top;
+    }
+
+
+    /**
+     * Get the current event.
+     * @return The value returned by the last call to next, or 0.
+     */
+    public int getEvent() {
+        return this.event;
+    }
+
+
+    /**
+     * Get the key of the current member. At a KEY event this is the key
+     * itself; at the VALUE, START_OBJECT, START_ARRAY, END_OBJECT or
+     * END_ARRAY that follows it, it is the key the value was found under.
+     * @return The key, or null if the current value is an array element or
+     *  the top level value.
+     */
+    public String getKey() {
+        switch (this.event) {
+        case START_OBJECT:
+        case START_ARRAY:
+            return this.keys[this.top - 1];
+        case END_OBJECT:
+        case END_ARRAY:
+            return this.key;
+        default:
+            return this.top > 0 && this.stack[this.top - 1] == 'o'
+                ? this.key
+                : null;
+        }
+    }
+
+
+    /**
+     * Get the value of the current VALUE event.
+     * @return A String, Number, Boolean, JSONObject.NULL, or the JSONObject or
+     *  JSONArray produced by getJSONObject or getJSONArray.
+     * @throws JSONException If the current event is not a VALUE.
+     */
+    public Object getValue() throws JSONException {
+        if (this.event != VALUE) {
+            throw new JSONException("Not at a value.");
+        }
+        return this.value;
+    }
+
+
+    /**
+     * Build the object whose START_OBJECT is the current event. The parser
+     * moves past the object's closing brace, no END_OBJECT is reported for
+     * it, and the current event becomes a VALUE holding the object.
+     * @return A JSONObject.
+     * @throws JSONException If the current event is not START_OBJECT, or if
+     *  the object is not well formed.
+     */
+    public JSONObject getJSONObject() throws JSONException {
+        if (this.event != START_OBJECT) {
+            throw new JSONException("Not at the start of an object.");
+        }
+        this.x.back();
+        this.pop();
+        JSONObject jo = new JSONObject(this.x);
+        this.value = jo;
+        this.event = VALUE;
+        return jo;
+    }
+
+
+    /**
+     * Build the array whose START_ARRAY is the current event. The parser
+     * moves past the array's closing bracket, no END_ARRAY is reported for
+     * it, and the current event becomes a VALUE holding the array.
+     * @return A JSONArray.
+     * @throws JSONException If the current event is not START_ARRAY, or if
+     *  the array is not well formed.
+     */
+    public JSONArray getJSONArray() throws JSONException {
+        if (this.event != START_ARRAY) {
+            throw new JSONException("Not at the start of an array.");
+        }
+        this.x.back();
+        this.pop();
+        JSONArray ja = new JSONArray(this.x);
+        this.value = ja;
+        this.event = VALUE;
+        return ja;
+    }
+
+
+    /**
+     * Advance to the next event.
+     * @return One of the event constants.
+     * @throws JSONException If the text is not well formed.
+     */
+    public int next() throws JSONException {
+        char c;
+        if (this.event == END_DOCUMENT) {
+            return END_DOCUMENT;
+        }
+        if (this.top == 0) {
+            c = this.x.nextClean();
+            if (c == 0) {
+                this.value = null;
+                return this.event = END_DOCUMENT;
+            }
+            return this.event = this.value(c);
+        }
+        if (this.stack[this.top - 1] == 'o') {
+            if (this.event == KEY) {
+                c = this.x.nextClean();
+                if (c == '=') {
+                    if (this.x.next() != '>') {
+                        this.x.back();
+                    }
+                } else if (c != ':') {
+                    throw this.x.syntaxError("Expected a ':' after a key");
+                }
+                return this.event = this.value(this.x.nextClean());
+            }
+            if (this.event == START_OBJECT) {
+                c = this.x.nextClean();
+            } else {
+                switch (this.x.nextClean()) {
+                case ';':
+                case ',':
+                    c = this.x.nextClean();
+                    if (c == '}') {
+                        return this.event = this.pop();
+                    }
+                    break;
+                case '}':
+                    return this.event = this.pop();
+                default:
+                    throw this.x.syntaxError("Expected a ',' or '}'");
+                }
+            }
+            switch (c) {
+            case 0:
+                throw this.x.syntaxError("A JSONObject text must end with '}'");
+            case '}':
+                return this.event = this.pop();
+            default:
+                this.x.back();
+                this.key = this.x.nextValue().toString();
+                this.value = null;
+                return this.event = KEY;
+            }
+        }
+        if (this.event == START_ARRAY) {
+            c = this.x.nextClean();
+            if (c == ']') {
+                return this.event = this.pop();
+            }
+        } else {
+            switch (this.x.nextClean()) {
+            case ';':
+            case ',':
+                c = this.x.nextClean();
+                if (c == ']') {
+                    return this.event = this.pop();
+                }
+                break;
+            case ']':
+                return this.event = this.pop();
+            default:
+                throw this.x.syntaxError("Expected a ',' or ']'");
+            }
+        }
+        if (c == ',') {
+            this.x.back();
+            this.value = JSONObject.NULL;
+            return this.event = VALUE;
+        }
+        return this.event = this.value(c);
+    }
+
+
+    /**
+     * Skip over the children of the object or array whose START_OBJECT or
+     * START_ARRAY is the current event, without building them. Afterwards the
+     * current event is the matching END_OBJECT or END_ARRAY. At any other
+     * event this does nothing.
+     * @throws JSONException If the text is not well formed.
+     */
+    public void skipChildren() throws JSONException {
+        if (this.event == START_OBJECT || this.event == START_ARRAY) {
+            int depth = this.top;
+            while (this.top >= depth) {
+                if (this.next() == END_DOCUMENT) {
+                    throw this.x.syntaxError("Unterminated "
+                        + (this.stack[depth - 1] == 'o' ? "object" : "array"));
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Return a description of the current position in the source.
+     * @return " at {index} [character {character} line {line}]"
+     */
+    public String toString() {
+        return this.x.toString();
+    }
+
+
+    /**
+     * Close the innermost container.
+     * @return END_OBJECT or END_ARRAY.
+     */
+    private int pop() {
+        this.top -= 1;
+        this.key = this.keys[this.top];
+        this.value = null;
+        return this.stack[this.top] == 'o' ? END_OBJECT : END_ARRAY;
+    }
+
+
+    /**
+     * Open a container.
+     * @param kind 'a' (array) or 'o' (object).
+     */
+    private void push(char kind) {
+        if (this.top == this.stack.length) {
+            char[] s = new char[this.top * 2];
+            String[] k = new String[this.top * 2];
+            System.arraycopy(this.stack, 0, s, 0, this.top);
+            System.arraycopy(this.keys, 0, k, 0, this.top);
+            this.stack = s;
+            this.keys = k;
+        }
+        this.stack[this.top] = kind;
+        this.keys[this.top] = this.key;
+        this.top += 1;
+        this.key = null;
+        this.value = null;
+    }
+
+
+    /**
+     * Begin a value whose first character has just been read.
+     * @param c The first character of the value.
+     * @return START_OBJECT, START_ARRAY or VALUE.
+     * @throws JSONException If the value is not well formed.
+     */
+    private int value(char c) throws JSONException {
+        switch (c) {
+        case '{':
+            this.push('o');
+            return START_OBJECT;
+        case '[':
+            this.push('a');
+            return START_ARRAY;
+        default:
+            this.x.back();
+            this.value = this.x.nextValue();
+            return VALUE;
+        }
+    }
+}
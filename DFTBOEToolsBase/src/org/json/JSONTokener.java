@@ -5,7 +5,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.StringReader;
+import java.nio.CharBuffer;
 
 /*
 Copyright (c) 2002 JSON.org
@@ -35,6 +35,13 @@ SOFTWARE.
  * A JSONTokener takes a source string and extracts characters and tokens from
  * it. It is used by the JSONObject and JSONArray constructors to parse
  * JSON source strings.
+ * <p>
+ * Sources that are already in memory (a String, a char array or a
+ * CharBuffer) are read directly from an array rather than through a Reader.
+ * Strings, numbers and whitespace are then scanned in bulk, any character
+ * ahead of the current position can be examined with {@link #peek(int)}, and
+ * the line and character position are only worked out when an error message
+ * needs them.
  * @author JSON.org
  * @version 2012-02-16
  */
@@ -48,6 +55,22 @@ public class JSONTokener {
     private Reader  reader;
     private boolean usePrevious;
 
+    /**
+     * The in-memory source, or null when reading from a Reader. The
+     * characters available are buffer[start] up to buffer[limit - 1], and pos
+     * is the position of the next character. pos may run past limit, each
+     * read past the end returns 0 just as a Reader at end of stream does.
+     */
+    private char[]  buffer;
+    private int     start;
+    private int     pos;
+    private int     limit;
+
+    /**
+     * Whether nested objects and arrays are to be deferred. See setLazy.
+     */
+    private boolean lazy;
+
 
     /**
      * Construct a JSONTokener from a Reader.
@@ -81,7 +104,53 @@ public class JSONTokener {
      * @param s     A source string.
      */
     public JSONTokener(String s) {
-        this(new StringReader(s));
+        this(s.toCharArray());
+    }
+
+
+    /**
+     * Construct a JSONTokener from a char array. The array is read in place,
+     * so it must not be modified while the tokener is in use.
+     *
+     * @param chars     The source characters.
+     */
+    public JSONTokener(char[] chars) {
+        this(chars, 0, chars.length);
+    }
+
+
+    /**
+     * Construct a JSONTokener from the remaining characters of a CharBuffer.
+     * The position of the buffer is not changed.
+     *
+     * @param chars     The source characters.
+     */
+    public JSONTokener(CharBuffer chars) {
+        if (chars.hasArray()) {
+            this.init(chars.array(), chars.arrayOffset() + chars.position(),
+                    chars.arrayOffset() + chars.limit());
+        } else {
+            this.init(chars.toString().toCharArray(), 0, chars.remaining());
+        }
+    }
+
+
+    JSONTokener(char[] chars, int start, int limit) {
+        this.init(chars, start, limit);
+    }
+
+
+    private void init(char[] chars, int start, int limit) {
+        this.buffer = chars;
+        this.start = start;
+        this.pos = start;
+        this.limit = limit;
+        this.eof = false;
+        this.usePrevious = false;
+        this.previous = 0;
+        this.index = 0;
+        this.character = 1;
+        this.line = 1;
     }
 
 
@@ -91,6 +160,15 @@ public class JSONTokener {
      * the next number or identifier.
      */
     public void back() throws JSONException {
+        if (this.buffer != null) {
+            if (this.usePrevious || this.pos <= this.start) {
+                throw new JSONException("Stepping back two steps is not supported");
+            }
+            this.pos -= 1;
+            this.usePrevious = true;
+            this.eof = false;
+            return;
+        }
         if (this.usePrevious || this.index <= 0) {
             throw new JSONException("Stepping back two steps is not supported");
         }
@@ -146,6 +224,15 @@ public class JSONTokener {
      * @return The next character, or 0 if past the end of the source string.
      */
     public char next() throws JSONException {
+        if (this.buffer != null) {
+            this.usePrevious = false;
+            int p = this.pos++;
+            if (p < this.limit && this.buffer[p] != 0) {
+                return this.buffer[p];
+            }
+            this.eof = true;
+            return 0;
+        }
         int c;
         if (this.usePrevious) {
             this.usePrevious = false;
@@ -177,6 +264,57 @@ public class JSONTokener {
     }
 
 
+    /**
+     * Finish a bulk scan of an in-memory source that stopped at position p.
+     * This leaves the tokener as though the characters had been read one at
+     * a time with next(), and the stopping character had been read and then
+     * handed back with back(), which is how the character by character loops
+     * end.
+     */
+    private void stopAt(int p) {
+        if (p < this.limit && this.buffer[p] != 0) {
+            this.pos = p;
+            this.usePrevious = true;
+        } else {
+            this.pos = p + 1;
+            this.usePrevious = false;
+            this.eof = true;
+        }
+    }
+
+
+    /**
+     * Look at a character ahead of the current position without consuming
+     * it. peek(0) returns the character that next() would return.
+     *
+     * @param ahead The number of characters to look past, 0 or more.
+     * @return The character, or 0 if it is past the end of the source.
+     */
+    public char peek(int ahead) throws JSONException {
+        if (this.buffer != null) {
+            int p = this.pos + ahead;
+            return p < this.limit ? this.buffer[p] : 0;
+        }
+        if (this.usePrevious) {
+            if (ahead == 0) {
+                return this.previous;
+            }
+            ahead -= 1;
+        }
+        try {
+            this.reader.mark(ahead + 1);
+            int c = 0;
+            for (int i = 0; i <= ahead && c >= 0; i += 1) {
+                c = this.reader.read();
+            }
+            this.reader.reset();
+            return c <= 0 ? 0 : (char) c;
+        } catch (IOException exception) {
+            throw new JSONException(exception);
+        }
+    }
+
+
     /**
      * Consume the next character, and check that it matches a specified
      * character.
@@ -208,6 +346,21 @@ public class JSONTokener {
              return "";
          }
 
+         if (this.buffer != null) {
+             int first = this.pos;
+             for (int p = first; p < first + n; p += 1) {
+                 if (p >= this.limit || this.buffer[p] == 0) {
+                     this.pos = p + 1;
+                     this.usePrevious = false;
+                     this.eof = true;
+                     throw this.syntaxError("Substring bounds error");
+                 }
+             }
+             this.usePrevious = false;
+             this.pos = first + n;
+             return new String(this.buffer, first, n);
+         }
+
          char[] chars = new char[n];
          int pos = 0;
 
@@ -228,6 +381,14 @@ public class JSONTokener {
      * @return  A character, or 0 if there are no more characters.
      */
     public char nextClean() throws JSONException {
+        if (this.buffer != null) {
+            char[] b = this.buffer;
+            int p = this.pos;
+            while (p < this.limit && b[p] > 0 && b[p] <= ' ') {
+                p += 1;
+            }
+            this.pos = p;
+        }
         for (;;) {
             char c = this.next();
             if (c == 0 || c > ' ') {
@@ -250,7 +411,35 @@ public class JSONTokener {
      */
     public String nextString(char quote) throws JSONException {
         char c;
-        StringBuffer sb = new StringBuffer();
+        StringBuffer sb = null;
+        if (this.buffer != null) {
+            char[] b = this.buffer;
+            int run = this.pos;
+            int p = run;
+            while (p < this.limit) {
+                c = b[p];
+                if (c == quote) {
+                    this.pos = p + 1;
+                    this.usePrevious = false;
+                    if (sb == null) {
+                        return new String(b, run, p - run);
+                    }
+                    return sb.append(b, run, p - run).toString();
+                }
+                if (c == '\\' || c == 0 || c == '\n' || c == '\r') {
+                    break;
+                }
+                p += 1;
+            }
+
+            // Copy the plain run and let the general loop below deal with
+            // the escape or the error.
+            sb = new StringBuffer(p - run + 16);
+            sb.append(b, run, p - run);
+            this.pos = p;
+        } else {
+            sb = new StringBuffer();
+        }
         for (;;) {
             c = this.next();
             switch (c) {
@@ -306,6 +495,20 @@ public class JSONTokener {
      * @return   A string.
      */
     public String nextTo(char delimiter) throws JSONException {
+        if (this.buffer != null) {
+            char[] b = this.buffer;
+            int p = this.pos;
+            while (p < this.limit) {
+                char c = b[p];
+                if (c == delimiter || c == 0 || c == '\n' || c == '\r') {
+                    break;
+                }
+                p += 1;
+            }
+            String s = new String(b, this.pos, p - this.pos).trim();
+            this.stopAt(p);
+            return s;
+        }
         StringBuffer sb = new StringBuffer();
         for (;;) {
             char c = this.next();
@@ -328,6 +531,21 @@ public class JSONTokener {
      */
     public String nextTo(String delimiters) throws JSONException {
         char c;
+        if (this.buffer != null) {
+            char[] b = this.buffer;
+            int p = this.pos;
+            while (p < this.limit) {
+                c = b[p];
+                if (delimiters.indexOf(c) >= 0 || c == 0 ||
+                        c == '\n' || c == '\r') {
+                    break;
+                }
+                p += 1;
+            }
+            String s = new String(b, this.pos, p - this.pos).trim();
+            this.stopAt(p);
+            return s;
+        }
         StringBuffer sb = new StringBuffer();
         for (;;) {
             c = this.next();
@@ -375,6 +593,23 @@ public class JSONTokener {
          * formatting character.
          */
 
+        if (this.buffer != null && c != 0) {
+            char[] b = this.buffer;
+            int first = this.pos - 1;
+            int p = first;
+            while (p < this.limit && b[p] >= ' ' &&
+                    ",:]}/\\\"[{;=#".indexOf(b[p]) < 0) {
+                p += 1;
+            }
+            this.pos = p;
+            this.usePrevious = true;
+            string = new String(b, first, p - first).trim();
+            if ("".equals(string)) {
+                throw this.syntaxError("Missing value");
+            }
+            return JSONObject.stringToValue(string);
+        }
+
         StringBuffer sb = new StringBuffer();
         while (c >= ' ' && ",:]}/\\\"[{;=#".indexOf(c) < 0) {
             sb.append(c);
@@ -390,6 +625,103 @@ public class JSONTokener {
     }
 
 
+    /**
+     * Get the next member of an object or element of an array. This is
+     * nextValue, except that in lazy mode a nested object or array is only
+     * scanned for its extent, and is returned as a LazyValue to be parsed when
+     * it is first used.
+     * @throws JSONException If syntax error.
+     *
+     * @return An object.
+     */
+    Object nextMember() throws JSONException {
+        if (this.lazy && this.buffer != null) {
+            char c = this.nextClean();
+            if (c == '{' || c == '[') {
+                int first = this.pos - 1;
+                int end = this.scanNested(first);
+                if (end > 0) {
+                    this.pos = end;
+                    return new LazyValue(this.buffer, first, end);
+                }
+            }
+            this.back();
+        }
+        return this.nextValue();
+    }
+
+
+    /**
+     * Find the end of the object or array that begins at position first by
+     * counting brackets outside of quoted strings. A quote begins a string
+     * only where a value or key could begin, as it does for nextValue.
+     * @param first The position of the opening '{' or '['.
+     * @return The position after the closing bracket, or -1 if the text is
+     *  not well enough formed to be scanned, in which case it should be
+     *  parsed eagerly to report the error.
+     */
+    private int scanNested(int first) {
+        char[] b = this.buffer;
+        int depth = 0;
+        char previous = '{';
+        for (int p = first; p < this.limit; p += 1) {
+            char c = b[p];
+            switch (c) {
+            case 0:
+                return -1;
+            case '{':
+            case '[':
+                depth += 1;
+                break;
+            case '}':
+            case ']':
+                depth -= 1;
+                if (depth == 0) {
+                    return p + 1;
+                }
+                break;
+            case '"':
+            case '\'':
+                if ("{[,:;=>".indexOf(previous) >= 0) {
+                    for (p += 1; p < this.limit && b[p] != c; p += 1) {
+                        if (b[p] == 0 || b[p] == '\n' || b[p] == '\r') {
+                            return -1;
+                        }
+                        if (b[p] == '\\') {
+                            p += 1;
+                        }
+                    }
+                    if (p >= this.limit) {
+                        return -1;
+                    }
+                }
+                break;
+            }
+            if (c > ' ') {
+                previous = c;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Set lazy mode. In lazy mode, which works only with a String, char array
+     * or CharBuffer source, the JSONObject and JSONArray constructors that
+     * take this tokener parse only the top level. Each nested object or array
+     * is scanned to find where it ends, and is parsed the first time it is
+     * used through get, opt, remove or serialization. A syntax error within a
+     * nested value is then reported at that time, with a position relative
+     * to the start of the value. The source must not be modified while lazy
+     * values that refer to it remain unparsed.
+     *
+     * @param lazy true to defer the parsing of nested values.
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+
     /**
      * Skip characters until the next character is the requested character.
      * If the requested character is not found, no characters are skipped.
@@ -399,6 +731,16 @@ public class JSONTokener {
      */
     public char skipTo(char to) throws JSONException {
         char c;
+        if (this.buffer != null) {
+            char[] b = this.buffer;
+            for (int p = this.pos; p < this.limit && b[p] != 0; p += 1) {
+                if (b[p] == to) {
+                    this.stopAt(p);
+                    return to;
+                }
+            }
+            return 0;
+        }
         try {
             long startIndex = this.index;
             long startCharacter = this.character;
@@ -440,7 +782,38 @@ public class JSONTokener {
      * @return " at {index} [character {character} line {line}]"
      */
     public String toString() {
+        if (this.buffer != null) {
+            this.countLines();
+        }
         return " at " + this.index + " [character " + this.character + " line " +
             this.line + "]";
     }
+
+
+    /**
+     * Work out the index, character and line that a Reader based tokener
+     * would have tracked on every call to next(), for an in-memory source.
+     */
+    private void countLines() {
+        long character = 1;
+        long line = 1;
+        char previous = 0;
+        int consumed = this.usePrevious ? this.pos + 1 : this.pos;
+        for (int p = this.start; p < consumed; p += 1) {
+            char c = p < this.limit ? this.buffer[p] : 0;
+            if (previous == '\r') {
+                line += 1;
+                character = c == '\n' ? 0 : 1;
+            } else if (c == '\n') {
+                line += 1;
+                character = 0;
+            } else {
+                character += 1;
+            }
+            previous = c;
+        }
+        this.index = this.pos - this.start;
+        this.character = this.usePrevious ? character - 1 : character;
+        this.line = line;
+    }
 }
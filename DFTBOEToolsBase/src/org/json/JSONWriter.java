@@ -209,7 +209,7 @@ public class JSONWriter {
                 if (this.comma) {
                     this.writer.write(',');
                 }
-                this.writer.write(JSONObject.quote(string));
+                JSONObject.quote(string, this.writer);
                 this.writer.write(':');
                 this.comma = false;
                 this.mode = 'o';
@@ -0,0 +1,116 @@
+package org.json;
+
+/*
+Copyright (c) 2002 JSON.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+The Software shall be used for Good, not Evil.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The KeyPool is a bounded, thread safe pool of key strings. It is split into
+ * stripes, each an access-ordered map guarded by its own lock, so that
+ * threads putting different keys rarely contend, and so that when a stripe is
+ * full only its least recently used key is dropped rather than the whole
+ * pool. A hit costs one lock and allocates nothing.
+ * @author JSON.org
+ * @version 2014-05-03
+ */
+final class KeyPool {
+
+    /**
+     * The number of stripes. This must be a power of two.
+     */
+    private static final int stripeCount = 16;
+
+    /**
+     * The stripes. Each is used as its own lock.
+     */
+    private final Stripe[] stripes;
+
+
+    /**
+     * A stripe of the pool: a map from key to itself which drops its least
+     * recently used entry when it grows beyond its capacity.
+     */
+    private static final class Stripe extends LinkedHashMap {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The most keys this stripe may hold.
+         */
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(capacity * 4 / 3 + 1, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return this.size() > this.capacity;
+        }
+    }
+
+
+    /**
+     * Construct a KeyPool.
+     * @param size The most keys the pool may hold. If this is less than 1,
+     *  the pool holds nothing and returns every key as given.
+     */
+    KeyPool(int size) {
+        if (size < 1) {
+            this.stripes = null;
+        } else {
+            int perStripe = (size + stripeCount - 1) / stripeCount;
+            this.stripes = new Stripe[stripeCount];
+            for (int i = 0; i < stripeCount; i += 1) {
+                this.stripes[i] = new Stripe(perStripe);
+            }
+        }
+    }
+
+
+    /**
+     * Get the pooled copy of a key, adding the key to the pool if it is not
+     * already there.
+     * @param key A key string.
+     * @return A string equal to the key.
+     */
+    String intern(String key) {
+        if (this.stripes == null) {
+            return key;
+        }
+        int h = key.hashCode();
+        h ^= (h >>> 16) ^ (h >>> 8);
+        Stripe stripe = this.stripes[h & (stripeCount - 1)];
+        synchronized (stripe) {
+            String pooled = (String)stripe.get(key);
+            if (pooled != null) {
+                return pooled;
+            }
+            stripe.put(key, key);
+            return key;
+        }
+    }
+}
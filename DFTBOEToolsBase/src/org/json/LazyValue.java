@@ -0,0 +1,83 @@
+package org.json;
+
+/*
+Copyright (c) 2002 JSON.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+The Software shall be used for Good, not Evil.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+/**
+ * A LazyValue stands in a JSONObject or JSONArray for a nested object or array
+ * that a lazy JSONTokener has located in its source but not yet parsed. The
+ * JSONObject or JSONArray replaces it with the parsed value when the value is
+ * first used. It never escapes from those classes.
+ * @author JSON.org
+ * @version 2014-05-03
+ */
+final class LazyValue {
+
+    /**
+     * The source characters, shared with the tokener that found the value.
+     */
+    private final char[] buffer;
+
+    /**
+     * The position after the closing bracket.
+     */
+    private final int end;
+
+    /**
+     * The position of the opening bracket.
+     */
+    private final int first;
+
+
+    LazyValue(char[] buffer, int first, int end) {
+        this.buffer = buffer;
+        this.first = first;
+        this.end = end;
+    }
+
+
+    /**
+     * Parse the value. Its own nested values are deferred in turn.
+     * @return A JSONObject or JSONArray.
+     * @throws JSONException If the value is not well formed.
+     */
+    Object parse() throws JSONException {
+        JSONTokener x = new JSONTokener(this.buffer, this.first, this.end);
+        x.setLazy(true);
+        Object value = x.nextValue();
+        if (x.nextClean() != 0) {
+            throw x.syntaxError("Unexpected text after a value");
+        }
+        return value;
+    }
+
+
+    /**
+     * Return the unparsed source text. This is only for debugging.
+     * @return The source text of the value.
+     */
+    public String toString() {
+        return new String(this.buffer, this.first, this.end - this.first);
+    }
+}
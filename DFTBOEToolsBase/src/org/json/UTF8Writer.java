@@ -0,0 +1,237 @@
+package org.json;
+
+/*
+Copyright (c) 2002 JSON.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+The Software shall be used for Good, not Evil.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * A UTF8Writer encodes characters as UTF-8 straight into a byte buffer that
+ * it writes to an OutputStream, so that JSON text can be written to a file or
+ * socket without first being built as a String. For example,
+ * <pre>
+ * Writer w = new UTF8Writer(new FileOutputStream(file));
+ * jsonobject.write(w);
+ * w.close();</pre>
+ * A surrogate that is not part of a pair is written as '?', as
+ * OutputStreamWriter does. Unlike OutputStreamWriter, a UTF8Writer is not
+ * synchronized; it should be used by one thread at a time.
+ * @author JSON.org
+ * @version 2014-05-03
+ */
+public class UTF8Writer extends Writer {
+
+    /**
+     * The encoded bytes not yet written to the stream.
+     */
+    private final byte[] buffer;
+
+    /**
+     * The number of bytes in the buffer.
+     */
+    private int count;
+
+    /**
+     * The stream, or null once the writer is closed.
+     */
+    private OutputStream out;
+
+    /**
+     * A high surrogate waiting for its low surrogate, or 0.
+     */
+    private char surrogate;
+
+
+    /**
+     * Construct a UTF8Writer with an 8K buffer.
+     * @param out The stream to write to.
+     */
+    public UTF8Writer(OutputStream out) {
+        this(out, 8192);
+    }
+
+
+    /**
+     * Construct a UTF8Writer.
+     * @param out The stream to write to.
+     * @param size The size of the byte buffer. It must be at least 4.
+     */
+    public UTF8Writer(OutputStream out, int size) {
+        if (size < 4) {
+            throw new IllegalArgumentException("Buffer size < 4");
+        }
+        this.out = out;
+        this.buffer = new byte[size];
+    }
+
+
+    /**
+     * Write any pending surrogate as '?', flush the buffer and close the
+     * stream.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (this.out != null) {
+            if (this.surrogate != 0) {
+                this.surrogate = 0;
+                this.encode('?');
+            }
+            this.flushBuffer();
+            this.out.close();
+            this.out = null;
+        }
+    }
+
+
+    /**
+     * Flush the buffer and the stream. A pending high surrogate is kept
+     * until its low surrogate is written.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        this.ensureOpen();
+        this.flushBuffer();
+        this.out.flush();
+    }
+
+
+    /**
+     * Write a single character.
+     * @param c The character.
+     * @throws IOException
+     */
+    public void write(int c) throws IOException {
+        this.ensureOpen();
+        this.encode((char)c);
+    }
+
+
+    /**
+     * Write part of an array of characters.
+     * @param cbuf The characters.
+     * @param off The offset of the first character.
+     * @param len The number of characters.
+     * @throws IOException
+     */
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        this.ensureOpen();
+        if (off < 0 || len < 0 || off + len > cbuf.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int end = off + len;
+        for (int i = off; i < end; i += 1) {
+            char c = cbuf[i];
+            if (c < 0x80 && this.count < this.buffer.length &&
+                    this.surrogate == 0) {
+                this.buffer[this.count++] = (byte)c;
+            } else {
+                this.encode(c);
+            }
+        }
+    }
+
+
+    /**
+     * Write part of a string.
+     * @param str The string.
+     * @param off The offset of the first character.
+     * @param len The number of characters.
+     * @throws IOException
+     */
+    public void write(String str, int off, int len) throws IOException {
+        this.ensureOpen();
+        if (off < 0 || len < 0 || off + len > str.length()) {
+            throw new IndexOutOfBoundsException();
+        }
+        int end = off + len;
+        for (int i = off; i < end; i += 1) {
+            char c = str.charAt(i);
+            if (c < 0x80 && this.count < this.buffer.length &&
+                    this.surrogate == 0) {
+                this.buffer[this.count++] = (byte)c;
+            } else {
+                this.encode(c);
+            }
+        }
+    }
+
+
+    /**
+     * Encode one character, making room in the buffer first if necessary.
+     * @param c The character.
+     * @throws IOException
+     */
+    private void encode(char c) throws IOException {
+        if (this.buffer.length - this.count < 4) {
+            this.flushBuffer();
+        }
+        if (this.surrogate != 0) {
+            char high = this.surrogate;
+            this.surrogate = 0;
+            if (c >= '\uDC00' && c <= '\uDFFF') {
+                int code = ((high - 0xD800) << 10) + (c - 0xDC00) + 0x10000;
+                this.buffer[this.count++] = (byte)(0xF0 | (code >> 18));
+                this.buffer[this.count++] =
+                    (byte)(0x80 | ((code >> 12) & 0x3F));
+                this.buffer[this.count++] = (byte)(0x80 | ((code >> 6) & 0x3F));
+                this.buffer[this.count++] = (byte)(0x80 | (code & 0x3F));
+                return;
+            }
+            this.buffer[this.count++] = (byte)'?';
+            this.encode(c);
+            return;
+        }
+        if (c < 0x80) {
+            this.buffer[this.count++] = (byte)c;
+        } else if (c < 0x800) {
+            this.buffer[this.count++] = (byte)(0xC0 | (c >> 6));
+            this.buffer[this.count++] = (byte)(0x80 | (c & 0x3F));
+        } else if (c >= '\uD800' && c <= '\uDBFF') {
+            this.surrogate = c;
+        } else if (c >= '\uDC00' && c <= '\uDFFF') {
+            this.buffer[this.count++] = (byte)'?';
+        } else {
+            this.buffer[this.count++] = (byte)(0xE0 | (c >> 12));
+            this.buffer[this.count++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+            this.buffer[this.count++] = (byte)(0x80 | (c & 0x3F));
+        }
+    }
+
+
+    private void ensureOpen() throws IOException {
+        if (this.out == null) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+
+    private void flushBuffer() throws IOException {
+        if (this.count > 0) {
+            this.out.write(this.buffer, 0, this.count);
+            this.count = 0;
+        }
+    }
+}
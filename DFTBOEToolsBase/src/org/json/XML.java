@@ -24,7 +24,10 @@ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
 SOFTWARE.
 */
 
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 
 /**
@@ -129,11 +132,6 @@ public class XML {
      */
     private static boolean parse(XMLTokener x, JSONObject context,
                                  String name) throws JSONException {
-        char       c;
-        int        i;
-        JSONObject jsonobject = null;
-        String     string;
-        String     tagName;
         Object     token;
 
 // Test for and skip past these forms:
@@ -151,37 +149,7 @@ public class XML {
 // <!
 
         if (token == BANG) {
-            c = x.next();
-            if (c == '-') {
-                if (x.next() == '-') {
-                    x.skipPast("-->");
-                    return false;
-                }
-                x.back();
-            } else if (c == '[') {
-                token = x.nextToken();
-                if ("CDATA".equals(token)) {
-                    if (x.next() == '[') {
-                        string = x.nextCDATA();
-                        if (string.length() > 0) {
-                            context.accumulate("content", string);
-                        }
-                        return false;
-                    }
-                }
-                throw x.syntaxError("Expected 'CDATA['");
-            }
-            i = 1;
-            do {
-                token = x.nextMeta();
-                if (token == null) {
-                    throw x.syntaxError("Missing '>' after '<!'.");
-                } else if (token == LT) {
-                    i += 1;
-                } else if (token == GT) {
-                    i -= 1;
-                }
-            } while (i > 0);
+            skipBang(x, context);
             return false;
         } else if (token == QUEST) {
 
@@ -211,81 +179,147 @@ public class XML {
 // Open tag <
 
         } else {
-            tagName = (String)token;
-            token = null;
-            jsonobject = new JSONObject();
-            for (;;) {
-                if (token == null) {
-                    token = x.nextToken();
+            parseElement(x, context, (String)token);
+            return false;
+        }
+    }
+
+
+    /**
+     * Skip past the rest of a markup declaration, comment or CDATA section
+     * whose <code>&lt;!</code> has been read. CDATA content is attached to the
+     * context.
+     * @param x       The XMLTokener containing the source string.
+     * @param context The JSONObject that will include CDATA content, or null
+     *  if it is to be discarded.
+     * @throws JSONException
+     */
+    private static void skipBang(XMLTokener x, JSONObject context)
+            throws JSONException {
+        char   c;
+        int    i;
+        String string;
+        Object token;
+
+        c = x.next();
+        if (c == '-') {
+            if (x.next() == '-') {
+                x.skipPast("-->");
+                return;
+            }
+            x.back();
+        } else if (c == '[') {
+            token = x.nextToken();
+            if ("CDATA".equals(token)) {
+                if (x.next() == '[') {
+                    string = x.nextCDATA();
+                    if (string.length() > 0 && context != null) {
+                        context.accumulate("content", string);
+                    }
+                    return;
                 }
+            }
+            throw x.syntaxError("Expected 'CDATA['");
+        }
+        i = 1;
+        do {
+            token = x.nextMeta();
+            if (token == null) {
+                throw x.syntaxError("Missing '>' after '<!'.");
+            } else if (token == LT) {
+                i += 1;
+            } else if (token == GT) {
+                i -= 1;
+            }
+        } while (i > 0);
+    }
+
+
+    /**
+     * Scan the attributes and content of an element whose open tag name has
+     * been read, attaching the element to the context.
+     * @param x       The XMLTokener containing the source string.
+     * @param context The JSONObject that will include the new material.
+     * @param tagName The tag name.
+     * @throws JSONException
+     */
+    private static void parseElement(XMLTokener x, JSONObject context,
+            String tagName) throws JSONException {
+        JSONObject jsonobject = new JSONObject();
+        String     string;
+        Object     token = null;
+
+        for (;;) {
+            if (token == null) {
+                token = x.nextToken();
+            }
 
 // attribute = value
 
-                if (token instanceof String) {
-                    string = (String)token;
+            if (token instanceof String) {
+                string = (String)token;
+                token = x.nextToken();
+                if (token == EQ) {
                     token = x.nextToken();
-                    if (token == EQ) {
-                        token = x.nextToken();
-                        if (!(token instanceof String)) {
-                            throw x.syntaxError("Missing value");
-                        }
-                        jsonobject.accumulate(string,
-                                XML.stringToValue((String)token));
-                        token = null;
-                    } else {
-                        jsonobject.accumulate(string, "");
+                    if (!(token instanceof String)) {
+                        throw x.syntaxError("Missing value");
                     }
+                    jsonobject.accumulate(string,
+                            XML.stringToValue((String)token));
+                    token = null;
+                } else {
+                    jsonobject.accumulate(string, "");
+                }
 
 // Empty tag <.../>
 
-                } else if (token == SLASH) {
-                    if (x.nextToken() != GT) {
-                        throw x.syntaxError("Misshaped tag");
-                    }
-                    if (jsonobject.length() > 0) {
-                        context.accumulate(tagName, jsonobject);
-                    } else {
-                        context.accumulate(tagName, "");
-                    }
-                    return false;
+            } else if (token == SLASH) {
+                if (x.nextToken() != GT) {
+                    throw x.syntaxError("Misshaped tag");
+                }
+                if (jsonobject.length() > 0) {
+                    context.accumulate(tagName, jsonobject);
+                } else {
+                    context.accumulate(tagName, "");
+                }
+                return;
 
 // Content, between <...> and </...>
 
-                } else if (token == GT) {
-                    for (;;) {
-                        token = x.nextContent();
-                        if (token == null) {
-                            if (tagName != null) {
-                                throw x.syntaxError("Unclosed tag " + tagName);
-                            }
-                            return false;
-                        } else if (token instanceof String) {
-                            string = (String)token;
-                            if (string.length() > 0) {
-                                jsonobject.accumulate("content",
-                                        XML.stringToValue(string));
-                            }
+            } else if (token == GT) {
+                for (;;) {
+                    token = x.nextContent();
+                    if (token == null) {
+                        if (tagName != null) {
+                            throw x.syntaxError("Unclosed tag " + tagName);
+                        }
+                        return;
+                    } else if (token instanceof String) {
+                        string = (String)token;
+                        if (string.length() > 0) {
+                            jsonobject.accumulate("content",
+                                    XML.stringToValue(string));
+                        }
 
 // Nested element
 
-                        } else if (token == LT) {
-                            if (parse(x, jsonobject, tagName)) {
-                                if (jsonobject.length() == 0) {
-                                    context.accumulate(tagName, "");
-                                } else if (jsonobject.length() == 1 &&
-                                       jsonobject.opt("content") != null) {
-                                    context.accumulate(tagName,
-                                            jsonobject.opt("content"));
-                                } else {
-                                    context.accumulate(tagName, jsonobject);
-                                }
-                                return false;
+                    } else if (token == LT) {
+                        if (parse(x, jsonobject, tagName)) {
+                            if (jsonobject.length() == 0) {
+                                context.accumulate(tagName, "");
+                            } else if (jsonobject.length() == 1 &&
+                                   jsonobject.opt("content") != null) {
+                                context.accumulate(tagName,
+                                        jsonobject.opt("content"));
+                            } else {
+                                context.accumulate(tagName, jsonobject);
                             }
+                            return;
                         }
                     }
-                } else {
-                    throw x.syntaxError("Misshaped tag");
                 }
+            } else {
+                throw x.syntaxError("Misshaped tag");
             }
         }
     }
@@ -334,11 +368,9 @@ public class XML {
                 if (string.indexOf('.') >= 0) {
                     return Double.valueOf(string);
                 } else if (string.indexOf('e') < 0 && string.indexOf('E') < 0) {
-                    Long myLong = new Long(string);
-                    if (myLong.longValue() == myLong.intValue()) {
-                        return new Integer(myLong.intValue());
-                    } else {
-                        return myLong;
+                    Number number = JSONObject.stringToNumber(string);
+                    if (number != null) {
+                        return number;
                     }
                 }
             }
@@ -372,6 +404,135 @@ public class XML {
     }
 
 
+    /**
+     * Get an iterator over the elements found at a path in an XML text, so
+     * that a large text can be converted one element at a time. The text is
+     * read as the iterator advances, and only the current element is held in
+     * memory. Elements outside the path, and their content, are skipped.
+     * An element nested within a matching element is not returned
+     * separately, even if it also matches.
+     * @param reader The source of the XML text.
+     * @param path   Tag names separated by '/', such as "servers/server". An
+     *  element matches if the names of its ancestors and itself end with
+     *  the path, or, if the path begins with '/', are equal to it.
+     * @return An Iterator of JSONObjects. Each has one member, named by the
+     *  tag, as toJSONObject would produce from the element's text alone. The
+     *  iterator's methods throw JSONException if the text is badly formed or
+     *  cannot be read.
+     */
+    public static Iterator elements(Reader reader, String path) {
+        return new ElementIterator(new XMLTokener(reader), path);
+    }
+
+
+    /**
+     * An iterator that scans ahead to the next element at a path.
+     */
+    private static final class ElementIterator implements Iterator {
+        private final boolean anchored;
+        private JSONObject next;
+        private final String[] path;
+        private final ArrayList stack;
+        private final XMLTokener x;
+
+        ElementIterator(XMLTokener x, String path) {
+            this.x = x;
+            this.anchored = path.startsWith("/");
+            this.path = (this.anchored ? path.substring(1) : path).split("/");
+            this.stack = new ArrayList();
+        }
+
+        public boolean hasNext() {
+            while (this.next == null && this.x.skipPast("<")) {
+                Object token = this.x.nextToken();
+                if (token == BANG) {
+                    skipBang(this.x, null);
+                } else if (token == QUEST) {
+                    this.x.skipPast("?>");
+                } else if (token == SLASH) {
+                    token = this.x.nextToken();
+                    if (this.stack.isEmpty() || !token.equals(
+                            this.stack.remove(this.stack.size() - 1))) {
+                        throw this.x.syntaxError("Mismatched close tag " +
+                                token);
+                    }
+                    if (this.x.nextToken() != GT) {
+                        throw this.x.syntaxError("Misshaped close tag");
+                    }
+                } else if (token instanceof String) {
+                    String tagName = (String)token;
+                    if (this.matches(tagName)) {
+                        JSONObject jo = new JSONObject();
+                        parseElement(this.x, jo, tagName);
+                        this.next = jo;
+                    } else {
+                        this.skipAttributes(tagName);
+                    }
+                } else {
+                    throw this.x.syntaxError("Misshaped tag");
+                }
+            }
+            return this.next != null;
+        }
+
+        public Object next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            JSONObject jo = this.next;
+            this.next = null;
+            return jo;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Determine whether an element opened within the current ancestors
+         * is at the path.
+         */
+        private boolean matches(String tagName) {
+            int depth = this.stack.size() + 1;
+            int length = this.path.length;
+            if (depth < length || (this.anchored && depth != length) ||
+                    !tagName.equals(this.path[length - 1])) {
+                return false;
+            }
+            for (int i = 0; i < length - 1; i += 1) {
+                if (!this.path[i].equals(
+                        this.stack.get(depth - length + i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Skip the attributes of an open tag that is not at the path, and
+         * enter the element unless the tag is empty.
+         */
+        private void skipAttributes(String tagName) throws JSONException {
+            for (;;) {
+                Object token = this.x.nextToken();
+                if (token == GT) {
+                    this.stack.add(tagName);
+                    return;
+                }
+                if (token == SLASH) {
+                    if (this.x.nextToken() != GT) {
+                        throw this.x.syntaxError("Misshaped tag");
+                    }
+                    return;
+                }
+                if (token != EQ && !(token instanceof String)) {
+                    throw this.x.syntaxError("Misshaped tag");
+                }
+            }
+        }
+    }
+
+
     /**
      * Convert a JSONObject into a well-formed, element-normal XML string.
      * @param object A JSONObject.